@@ -0,0 +1,161 @@
+package benchmarks;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Head scanning and parsing, as done for every request: by the client proxy before forwarding
+ * ({@code VPNClient.forwardToVPN}), by the server's stream handler ({@code VPNHandler.handleStream}), and
+ * for the origin's response. {@code headers} picks a bare request or a browser-sized one with cookies
+ * and validators.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpHeadBenchmark {
+    private static final String MINIMAL = """
+            GET http://example.com/ HTTP/1.1\r
+            Host: example.com\r
+            \r
+            """;
+    private static final String BROWSER = """
+            GET http://www.example.com/assets/app.js?v=20240601 HTTP/1.1\r
+            Host: www.example.com\r
+            User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:126.0) Gecko/20100101 Firefox/126.0\r
+            Accept: */*\r
+            Accept-Language: en-US,en;q=0.5\r
+            Accept-Encoding: gzip, deflate, br, zstd\r
+            Referer: http://www.example.com/\r
+            Cookie: session=6f1c2a9b8e7d4c3b2a1f0e9d8c7b6a5f; theme=dark; consent=1; _ga=GA1.2.123456789.1700000000\r
+            Proxy-Connection: keep-alive\r
+            Sec-Fetch-Dest: script\r
+            Sec-Fetch-Mode: no-cors\r
+            Sec-Fetch-Site: same-origin\r
+            If-None-Match: "5e8b1f-1a2b3c"\r
+            If-Modified-Since: Mon, 03 Jun 2024 10:00:00 GMT\r
+            \r
+            """;
+    private static final String RESPONSE = """
+            HTTP/1.1 200 OK\r
+            Date: Mon, 03 Jun 2024 10:00:00 GMT\r
+            Server: nginx\r
+            Content-Type: application/javascript; charset=utf-8\r
+            Transfer-Encoding: chunked\r
+            Connection: keep-alive\r
+            Cache-Control: public, max-age=3600\r
+            ETag: "5e8b1f-1a2b3c"\r
+            Vary: Accept-Encoding\r
+            \r
+            """;
+
+    @State(Scope.Thread)
+    public static class Request {
+        @Param({"minimal", "browser"})
+        public String headers;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup() {
+            bytes = (headers.equals("browser") ? BROWSER : MINIMAL).getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private final byte[] response = RESPONSE.getBytes(StandardCharsets.ISO_8859_1);
+    private final HttpHead head = new HttpHead();
+    private final ByteArrayOutputStream originHead = new ByteArrayOutputStream(4096);
+
+    /**
+     * The scan alone, over bytes already in memory.
+     */
+    @Benchmark
+    public boolean parseRequest(Request request) throws IOException {
+        head.reset(request.bytes, 0);
+        return head.parse(request.bytes, request.bytes.length);
+    }
+
+    /**
+     * What the client proxy does with a new request: read the head into a pooled buffer, check it, and
+     * take the request line for logging and routing.
+     */
+    @Benchmark
+    public void clientRequest(Request request, Blackhole bh) throws IOException {
+        HttpInput input = new HttpInput(new ByteArrayInputStream(request.bytes));
+        try {
+            HttpHead parsed = new HttpHead();
+            bh.consume(input.readHead(parsed) && parsed.tokenCount() >= 3);
+            bh.consume(parsed.startLine());
+            bh.consume(parsed.methodIs("CONNECT"));
+            bh.consume(parsed.methodIs("GET"));
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * The server's stream handler up to forwarding: read the head, the request line, CONNECT or not,
+     * and the Host header.
+     */
+    @Benchmark
+    public void serverRequest(Request request, Blackhole bh) throws IOException {
+        HttpInput input = new HttpInput(new ByteArrayInputStream(request.bytes));
+        try {
+            HttpHead parsed = new HttpHead();
+            bh.consume(input.readHead(parsed));
+            bh.consume(parsed.startLine());
+            bh.consume(parsed.methodIs("CONNECT"));
+            bh.consume(parsed.header("host"));
+        } finally {
+            input.release();
+        }
+    }
+
+    /**
+     * Rewriting the request head for the origin: proxy-only fields dropped, Connection replaced.
+     */
+    @Benchmark
+    public int originHead(Request request) throws IOException {
+        head.reset(request.bytes, 0);
+        head.parse(request.bytes, request.bytes.length);
+        originHead.reset();
+        Relay.writeOriginHead(head, "GET /assets/app.js?v=20240601 HTTP/1.1", "keep-alive", originHead);
+        return originHead.size();
+    }
+
+    /**
+     * The origin's response head and the framing decisions made from it.
+     */
+    @Benchmark
+    public void responseHead(Blackhole bh) throws IOException {
+        head.reset(response, 0);
+        bh.consume(head.parse(response, response.length));
+        bh.consume(head.statusCode());
+        bh.consume(Relay.responseHasBody(false, head.statusCode()));
+        bh.consume(head.isChunked());
+        bh.consume(head.contentLength());
+        bh.consume(head.isKeepAlive(true));
+        bh.consume(Relay.isCompressible(head));
+    }
+}
@@ -0,0 +1,135 @@
+package benchmarks;
+
+import http.FlushingOutput;
+import http.HttpInput;
+import http.Relay;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The body relay loop between two streams, as every response passes through it twice (origin to tunnel on
+ * the server, tunnel to browser on the client): Content-Length framing, and chunked framing, which is
+ * scanned line by line. The destination is the coalescing {@link FlushingOutput} over a sink that only
+ * touches each slice, so the numbers are the relay's own cost per body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+    @State(Scope.Thread)
+    public static class Body {
+        @Param({"1024", "65536", "1048576"})
+        public int payloadSize;
+
+        byte[] data;
+        FlushingOutput out;
+
+        @Setup
+        public void setup(Blackhole bh) {
+            data = new byte[payloadSize];
+            for (int i = 0; i < data.length; i++) data[i] = (byte) ('a' + i % 26);
+            out = Relay.output(new Sink(bh));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            out.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ChunkedBody {
+        @Param({"1024", "65536", "1048576"})
+        public int payloadSize;
+
+        @Param({"256", "4096", "16384"})
+        public int chunkSize;
+
+        byte[] data;
+        FlushingOutput out;
+
+        @Setup
+        public void setup(Blackhole bh) throws IOException {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(payloadSize + payloadSize / chunkSize * 8 + 16);
+            for (int left = payloadSize; left > 0; ) {
+                int n = Math.min(left, chunkSize);
+                encoded.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                for (int i = 0; i < n; i++) encoded.write('a' + i % 26);
+                encoded.write('\r');
+                encoded.write('\n');
+                left -= n;
+            }
+            encoded.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            data = encoded.toByteArray();
+            out = Relay.output(new Sink(bh));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public void contentLength(Body body) throws IOException {
+        HttpInput in = new HttpInput(new ByteArrayInputStream(body.data));
+        try {
+            in.relay(body.out, body.payloadSize);
+            body.out.flush();
+        } finally {
+            in.release();
+        }
+    }
+
+    @Benchmark
+    public void chunked(ChunkedBody body) throws IOException {
+        HttpInput in = new HttpInput(new ByteArrayInputStream(body.data));
+        try {
+            in.relayChunked(body.out);
+            body.out.flush();
+        } finally {
+            in.release();
+        }
+    }
+
+    /**
+     * Reads one byte of each slice, so the JIT cannot drop the copies into it.
+     */
+    private static final class Sink extends OutputStream {
+        private final Blackhole bh;
+
+        Sink(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (len > 0) bh.consume(b[off + len - 1]);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package benchmarks;
+
+import Security.SSLUtils;
+import loadtest.TestCertificates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TLS layer under the tunnel, over loopback with the tunnel's own contexts and socket policy from
+ * {@link SSLUtils} (throwaway certificates): building an SSLContext from the key stores, a full or resumed
+ * handshake, and bulk throughput of application records on an established connection. The peer is a
+ * server socket in the same process that completes handshakes and discards what it reads.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    /**
+     * Certificates and a listening TLS server; set up once per fork, before SSLUtils is loaded.
+     */
+    @State(Scope.Benchmark)
+    public static class Peer {
+        SSLServerSocket server;
+        final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+
+        @Setup
+        public void setup() throws Exception {
+            TestCertificates.install();
+            server = (SSLServerSocket) SSLUtils.getSSLServerSocketFactory()
+                    .createServerSocket(0, 512, InetAddress.getLoopbackAddress());
+            SSLUtils.configure(server);
+            connections.execute(this::accept);
+        }
+
+        private void accept() {
+            try {
+                while (!server.isClosed()) {
+                    Socket socket = server.accept();
+                    connections.execute(() -> drain(socket));
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private static void drain(Socket socket) {
+            byte[] buffer = new byte[64 * 1024];
+            try (socket; InputStream in = socket.getInputStream()) {
+                socket.setTcpNoDelay(true);
+                ((SSLSocket) socket).startHandshake();
+                // One byte to read, so the client also takes in the session ticket sent after the handshake.
+                socket.getOutputStream().write(1);
+                socket.getOutputStream().flush();
+                while (in.read(buffer) != -1) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Client went away
+            }
+        }
+
+        /**
+         * A handshaken connection. TLS 1.3 sends the session ticket after the handshake, so a client that
+         * never reads would never be able to resume; this one reads the peer's first byte.
+         */
+        SSLSocket connect() throws Exception {
+            SSLSocket socket = (SSLSocket) SSLUtils.getSSLSocketFactory()
+                    .createSocket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            try {
+                SSLUtils.configure(socket);
+                socket.setTcpNoDelay(true);
+                socket.startHandshake();
+                if (socket.getInputStream().read() == -1) throw new IOException("Peer closed the connection");
+                return socket;
+            } catch (Exception e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            server.close();
+            connections.shutdownNow();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Handshake {
+        /**
+         * Whether the client offers its cached session, as a reconnecting client does.
+         */
+        @Param({"false", "true"})
+        public boolean resume;
+    }
+
+    /**
+     * Connect, handshake, first byte, close. Without resumption the client's session is dropped after
+     * each, so the next handshake is a full one (certificate and its verification); with it, the next
+     * one resumes with the ticket.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 5)
+    public boolean handshake(Peer peer, Handshake handshake) throws Exception {
+        try (SSLSocket socket = peer.connect()) {
+            if (!handshake.resume) socket.getSession().invalidate();
+            return socket.getSession().isValid();
+        }
+    }
+
+    /**
+     * One established connection per thread; every operation writes one payload.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"1024", "16384", "262144"})
+        public int payloadSize;
+
+        SSLSocket socket;
+        OutputStream out;
+        byte[] payload;
+
+        @Setup
+        public void setup(Peer peer) throws Exception {
+            socket = peer.connect();
+            out = socket.getOutputStream();
+            payload = new byte[payloadSize];
+            for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Encrypting and sending records; the score times payloadSize is the throughput.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void bulk(Connection connection) throws IOException {
+        connection.out.write(connection.payload);
+    }
+
+    /**
+     * Forces the next context lookup to rebuild, as a certificate rotation on disk does.
+     */
+    @State(Scope.Thread)
+    public static class Rotation {
+        Path keystore;
+        long stamp;
+
+        @Setup
+        public void setup(Peer peer) {
+            keystore = Path.of(System.getProperty("vpn.tls.serverKeystore"));
+            stamp = System.currentTimeMillis();
+        }
+
+        @Setup(Level.Invocation)
+        public void touch() throws IOException {
+            stamp += 1000;
+            Files.setLastModifiedTime(keystore, FileTime.fromMillis(stamp));
+        }
+    }
+
+    /**
+     * Building the server's SSLContext: loading both key stores and initialising the key and trust managers.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SSLContext contextBuild(Rotation rotation) throws Exception {
+        return SSLUtils.getServerSSLContext();
+    }
+
+    /**
+     * The per-connection lookup of the cached context, which checks both stores for changes.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SSLContext contextLookup(Peer peer) throws Exception {
+        return SSLUtils.getServerSSLContext();
+    }
+}
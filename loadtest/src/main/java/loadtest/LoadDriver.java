@@ -0,0 +1,239 @@
+package loadtest;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simulated users sending requests through the client's proxy, one connection per request.
+ *
+ * Closed loop (rate 0): each of the users sends its next request when the last one is answered, after the
+ * think time; throughput is whatever the tunnel sustains. Open loop: requests start on a fixed schedule
+ * whatever the tunnel does, with at most {@code users} outstanding. A request that cannot start on time
+ * because all users are busy still counts from when it should have started, so a stalled tunnel shows up
+ * in the percentiles instead of being hidden by the driver waiting politely for it.
+ */
+final class LoadDriver {
+    /**
+     * What to run; sizes are cycled through by successive requests.
+     */
+    record Plan(int users, double rate, long durationSeconds, long warmupSeconds, long thinkMillis,
+                long[] sizes, int chunkSize, long originDelayMillis, long reportSeconds) {
+    }
+
+    /**
+     * Totals of the measured part of a run (after warm-up).
+     */
+    record Result(long requests, long errors, long bytes, double seconds, LatencyHistogram latencies,
+                  Map<String, Long> errorKinds) {
+        double throughput() {
+            return requests / seconds;
+        }
+
+        double errorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+    }
+
+    private final Plan plan;
+    private final int proxyPort;
+    private final int originPort;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean measuring = false;
+
+    // Totals since warm-up ended, and the current report interval.
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder intervalRequests = new LongAdder();
+    private final LongAdder intervalErrors = new LongAdder();
+    private final Map<String, LongAdder> errorKinds = new ConcurrentSkipListMap<>();
+
+    LoadDriver(Plan plan, int proxyPort, int originPort) {
+        this.plan = plan;
+        this.proxyPort = proxyPort;
+        this.originPort = originPort;
+    }
+
+    Result run() throws InterruptedException {
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(plan.warmupSeconds());
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(plan.durationSeconds());
+        try (ExecutorService users = Executors.newVirtualThreadPerTaskExecutor()) {
+            Thread reporter = Thread.ofVirtual().name("loadtest-report").start(() -> report(measureFrom, end));
+            if (plan.rate() > 0) {
+                openLoop(users, start, end);
+            } else {
+                for (int i = 0; i < plan.users(); i++) users.execute(() -> closedLoop(end));
+            }
+            users.shutdown();
+            users.awaitTermination(1, TimeUnit.MINUTES);
+            reporter.join();
+        }
+        total.drainFrom(interval);
+        double seconds = (System.nanoTime() - measureFrom) / 1e9;
+        Map<String, Long> kinds = new ConcurrentSkipListMap<>();
+        errorKinds.forEach((kind, count) -> kinds.put(kind, count.sum()));
+        return new Result(requests.sum(), errors.sum(), bytes.sum(), seconds, total, kinds);
+    }
+
+    private void closedLoop(long end) {
+        while (System.nanoTime() < end) {
+            exchange(System.nanoTime());
+            if (plan.thinkMillis() > 0) {
+                try {
+                    Thread.sleep(plan.thinkMillis());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void openLoop(ExecutorService users, long start, long end) throws InterruptedException {
+        Semaphore outstanding = new Semaphore(plan.users());
+        double periodNanos = 1e9 / plan.rate();
+        for (long n = 0; ; n++) {
+            long intended = start + (long) (n * periodNanos);
+            if (intended >= end) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            outstanding.acquire();
+            users.execute(() -> {
+                try {
+                    exchange(intended);
+                } finally {
+                    outstanding.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends one request and reads its response; the latency counts from {@code intendedStart}.
+     */
+    private void exchange(long intendedStart) {
+        long n = sequence.getAndIncrement();
+        long size = plan.sizes()[(int) (n % plan.sizes().length)];
+        String error = null;
+        long received = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort)) {
+            socket.setTcpNoDelay(true);
+            String target = "http://127.0.0.1:" + originPort + "/?size=" + size + "&chunk=" + plan.chunkSize()
+                    + "&delay=" + plan.originDelayMillis() + "&n=" + n;
+            String head = "GET " + target + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort
+                    + "\r\nUser-Agent: vpn-loadtest\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(head.getBytes(StandardCharsets.US_ASCII));
+            HttpInput in = new HttpInput(socket.getInputStream());
+            try {
+                HttpHead response = new HttpHead();
+                if (!in.readHead(response)) {
+                    error = "no response";
+                } else if (response.statusCode() != 200) {
+                    error = "HTTP " + response.statusCode();
+                } else {
+                    // The head is parsed in the read buffer, which the body overwrites.
+                    boolean chunked = response.isChunked();
+                    CountingSink body = new CountingSink();
+                    Relay.body(in, response, true, body);
+                    received = body.count;
+                    // A chunked body is counted with its framing, so it only has to be at least as long.
+                    if (chunked ? received < size : received != size) error = "short body";
+                }
+            } finally {
+                in.release();
+            }
+        } catch (IOException e) {
+            error = e.getClass().getSimpleName();
+        }
+        long micros = (System.nanoTime() - intendedStart) / 1000;
+        if (!measuring) return;
+        requests.increment();
+        intervalRequests.increment();
+        bytes.add(received);
+        interval.record(micros);
+        if (error != null) {
+            errors.increment();
+            intervalErrors.increment();
+            errorKinds.computeIfAbsent(error, kind -> new LongAdder()).increment();
+        }
+    }
+
+    private void report(long measureFrom, long end) {
+        try {
+            long wait = measureFrom - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            measuring = true;
+            long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(plan.reportSeconds(), 1));
+            long last = System.nanoTime();
+            while (last < end) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(reportNanos, end - last));
+                long now = System.nanoTime();
+                LatencyHistogram window = new LatencyHistogram();
+                window.drainFrom(interval);
+                long done = intervalRequests.sumThenReset();
+                long failed = intervalErrors.sumThenReset();
+                System.out.printf("%6.0f req/s  errors %5.2f%%  p50 %s  p99 %s  p99.9 %s  |  %s%n",
+                        done / ((now - last) / 1e9), done == 0 ? 0.0 : 100.0 * failed / done,
+                        millis(window.percentile(0.50)), millis(window.percentile(0.99)),
+                        millis(window.percentile(0.999)), resources());
+                total.drainFrom(window);
+                last = now;
+            }
+        } catch (InterruptedException e) {
+            // Not expected: the reporter ends on its own at the end of the run
+        }
+    }
+
+    static String millis(long micros) {
+        return String.format("%.1f ms", micros / 1000.0);
+    }
+
+    /**
+     * Heap, threads and open files of this process (driver, client and server together), to spot leaks
+     * over a soak run.
+     */
+    static String resources() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        String files = "";
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+            files = "  fds " + unix.getOpenFileDescriptorCount();
+        }
+        return String.format("heap %d MB  threads %d%s", heap.getUsed() >> 20,
+                ManagementFactory.getThreadMXBean().getThreadCount(), files);
+    }
+
+    private static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
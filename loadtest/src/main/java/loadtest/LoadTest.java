@@ -0,0 +1,157 @@
+package loadtest;
+
+import client.VPNClient;
+import server.VPNServer;
+import ui.LogLevel;
+import ui.LogPipeline;
+import ui.VPNListener;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load and soak test that needs nothing but the JDK: it starts an {@link OriginStub}, a
+ * VPNServer with throwaway certificates and a VPNClient, all on free loopback ports in this process, then
+ * drives simulated users through the client's proxy, the tunnel and the server to the origin. Progress is
+ * printed every report interval, and a summary at the end; the exit status is 1 if a limit is exceeded,
+ * so a CI job can gate on it.
+ *
+ * Usage: {@code java -jar target/loadtest.jar} (built by cd loadtest && mvn package). The engines take
+ * their usual vpn.* properties, e.g. -Dvpn.server.engine=NIO or -Dvpn.client.transport.
+ *
+ * Tunables (system properties): vpn.load.users (50), vpn.load.rate (requests per second; 0 for a closed
+ * loop), vpn.load.durationSeconds (30), vpn.load.warmupSeconds (5), vpn.load.thinkMillis (0, closed loop
+ * only), vpn.load.sizes (response sizes in bytes, comma-separated and cycled; 16384), vpn.load.chunkSize
+ * (0 for a Content-Length body), vpn.load.originDelayMillis (0), vpn.load.reportSeconds (10),
+ * vpn.load.maxErrorRate (fraction, e.g. 0.01) and vpn.load.maxP99Millis (no limit by default).
+ */
+public final class LoadTest {
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        setDefault("vpn.log.level", "ERROR");
+        setDefault("vpn.log.console", "true");
+        System.setProperty("java.awt.headless", "true");
+        // Engines read these once, when first loaded, so they are all set before either is created.
+        TestCertificates.install();
+        System.setProperty("vpn.server.port", "0");
+        System.setProperty("vpn.client.proxyPort", "0");
+
+        LoadDriver.Plan plan = new LoadDriver.Plan(
+                Integer.getInteger("vpn.load.users", 50),
+                Double.parseDouble(System.getProperty("vpn.load.rate", "0")),
+                Long.getLong("vpn.load.durationSeconds", 30),
+                Long.getLong("vpn.load.warmupSeconds", 5),
+                Long.getLong("vpn.load.thinkMillis", 0),
+                Arrays.stream(System.getProperty("vpn.load.sizes", "16384").split(","))
+                        .mapToLong(size -> Long.parseLong(size.trim())).toArray(),
+                Integer.getInteger("vpn.load.chunkSize", 0),
+                Long.getLong("vpn.load.originDelayMillis", 0),
+                Long.getLong("vpn.load.reportSeconds", 10));
+
+        LogPipeline logs = new LogPipeline("loadtest", null);
+        try (OriginStub origin = new OriginStub()) {
+            // The origin is a loopback port, which the server refuses to reach unless told otherwise.
+            System.setProperty("vpn.target.allowLocal", "true");
+            System.setProperty("vpn.target.httpPorts", String.valueOf(origin.port()));
+            ReadyListener serverReady = new ReadyListener(logs);
+            VPNServer server = new VPNServer(serverReady);
+            Thread serverThread = new Thread(server::startServer, "loadtest-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            int serverPort = serverReady.port();
+
+            System.setProperty("vpn.client.servers", "127.0.0.1:" + serverPort);
+            ReadyListener clientReady = new ReadyListener(logs);
+            VPNClient client = new VPNClient(clientReady);
+            client.startClient();
+            int proxyPort = clientReady.port();
+
+            System.out.printf("Origin :%d, VPN server :%d, client proxy :%d; %d users, %s, %d s after %d s warm-up%n",
+                    origin.port(), serverPort, proxyPort, plan.users(),
+                    plan.rate() > 0 ? "open loop at " + plan.rate() + " req/s" : "closed loop",
+                    plan.durationSeconds(), plan.warmupSeconds());
+            LoadDriver.Result result = new LoadDriver(plan, proxyPort, origin.port()).run();
+
+            client.stopClient();
+            server.stopServer();
+            logs.close();
+            System.exit(summarize(result) ? 0 : 1);
+        }
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) System.setProperty(key, value);
+    }
+
+    /**
+     * Prints the totals and checks them against the limits.
+     *
+     * @return false if a limit was exceeded
+     */
+    private static boolean summarize(LoadDriver.Result result) {
+        LatencyHistogram latencies = result.latencies();
+        System.out.printf("%nRequests %d in %.1f s: %.0f req/s, %.1f MB/s, errors %d (%.2f%%)%n",
+                result.requests(), result.seconds(), result.throughput(),
+                result.bytes() / result.seconds() / 1e6, result.errors(), 100 * result.errorRate());
+        for (Map.Entry<String, Long> kind : result.errorKinds().entrySet()) {
+            System.out.printf("  %s: %d%n", kind.getKey(), kind.getValue());
+        }
+        System.out.printf("Latency p50 %s  p99 %s  p99.9 %s  max %s%n",
+                LoadDriver.millis(latencies.percentile(0.50)), LoadDriver.millis(latencies.percentile(0.99)),
+                LoadDriver.millis(latencies.percentile(0.999)), LoadDriver.millis(latencies.percentile(1.0)));
+        System.out.println("End: " + LoadDriver.resources());
+
+        boolean passed = true;
+        String maxErrorRate = System.getProperty("vpn.load.maxErrorRate");
+        if (maxErrorRate != null && result.errorRate() > Double.parseDouble(maxErrorRate)) {
+            System.out.printf("❌ Error rate %.2f%% is above the limit of %.2f%%%n",
+                    100 * result.errorRate(), 100 * Double.parseDouble(maxErrorRate));
+            passed = false;
+        }
+        String maxP99 = System.getProperty("vpn.load.maxP99Millis");
+        if (maxP99 != null && latencies.percentile(0.99) / 1000.0 > Double.parseDouble(maxP99)) {
+            System.out.printf("❌ p99 of %s is above the limit of %s ms%n", LoadDriver.millis(latencies.percentile(0.99)), maxP99);
+            passed = false;
+        }
+        if (result.requests() == 0) {
+            System.out.println("❌ No request completed");
+            passed = false;
+        }
+        return passed;
+    }
+
+    /**
+     * Logs to the pipeline and hands over the port an engine bound.
+     */
+    private static final class ReadyListener implements VPNListener {
+        private final LogPipeline logs;
+        private final CompletableFuture<Integer> port = new CompletableFuture<>();
+
+        ReadyListener(LogPipeline logs) {
+            this.logs = logs;
+        }
+
+        int port() throws Exception {
+            return port.get(30, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void log(String message) {
+            logs.log(message);
+        }
+
+        @Override
+        public void log(LogLevel level, String pattern, Object... args) {
+            logs.log(level, pattern, args);
+        }
+
+        @Override
+        public void listening(int port) {
+            this.port.complete(port);
+        }
+    }
+}
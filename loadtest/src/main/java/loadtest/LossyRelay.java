@@ -0,0 +1,239 @@
+package loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Test relay that puts a lossy, slow link between a VPN client and server, to compare the TLS tunnel with
+ * the datagram transport. It forwards TCP and UDP on the same port to the server and adds a one-way delay
+ * (plus jitter) to everything in both directions.
+ *
+ * UDP packets are dropped with the given probability, so the datagram transport has to recover them.
+ * Dropping bytes of a TCP stream is not possible from user space, so the relay models what a lost TCP
+ * segment costs instead: with the same probability per 1460-byte segment, that segment and everything
+ * behind it on the connection is held back for one more round trip, as a fast retransmit would. This
+ * leaves out TCP's window cut and retransmission timeouts, so it favours the TLS tunnel.
+ *
+ * Usage: {@code java -cp target/loadtest.jar loadtest.LossyRelay listenPort serverHost:serverPort [loss]
+ * [delayMillis] [jitterMillis]}, e.g. {@code 9443 localhost:443 0.02 20 5}; point the client at port 9443 and start the server with
+ * vpn.datagram.publicPort=9443 so datagram setups also go through the relay.
+ */
+public final class LossyRelay {
+    private static final int SEGMENT = 1460;
+
+    private final InetSocketAddress target;
+    private final double loss;
+    private final long delayNanos;
+    private final long jitterNanos;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder stalled = new LongAdder();
+
+    private LossyRelay(InetSocketAddress target, double loss, long delayMillis, long jitterMillis) {
+        this.target = target;
+        this.loss = loss;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LossyRelay listenPort serverHost:serverPort [loss] [delayMillis] [jitterMillis]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        int colon = args[1].lastIndexOf(':');
+        InetSocketAddress target = new InetSocketAddress(args[1].substring(0, colon), Integer.parseInt(args[1].substring(colon + 1)));
+        LossyRelay relay = new LossyRelay(target,
+                args.length > 2 ? Double.parseDouble(args[2]) : 0.01,
+                args.length > 3 ? Long.parseLong(args[3]) : 20,
+                args.length > 4 ? Long.parseLong(args[4]) : 0);
+        Thread udp = new Thread(() -> relay.relayUdp(port), "relay-udp");
+        udp.setDaemon(true);
+        udp.start();
+        relay.timer.scheduleAtFixedRate(relay::report, 10, 10, TimeUnit.SECONDS);
+        System.out.printf("Relaying TCP and UDP :%d -> %s, loss %.1f%%, delay %d±%d ms%n", port, target,
+                relay.loss * 100, TimeUnit.NANOSECONDS.toMillis(relay.delayNanos), TimeUnit.NANOSECONDS.toMillis(relay.jitterNanos));
+        relay.relayTcp(port);
+    }
+
+    private long delay() {
+        return delayNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+    }
+
+    private void report() {
+        System.out.printf("UDP %d packets, %d dropped; TCP %d segments, %d stalled%n",
+                packets.sum(), dropped.sum(), segments.sum(), stalled.sum());
+    }
+
+    // ---- UDP ----
+
+    private void relayUdp(int port) {
+        // One upstream socket per client address, so the server sees each client separately.
+        Map<SocketAddress, DatagramChannel> upstreams = new ConcurrentHashMap<>();
+        try (DatagramChannel listener = DatagramChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (true) {
+                buffer.clear();
+                SocketAddress client = listener.receive(buffer);
+                buffer.flip();
+                DatagramChannel upstream = upstreams.get(client);
+                if (upstream == null) {
+                    upstream = DatagramChannel.open();
+                    upstream.connect(target);
+                    upstreams.put(client, upstream);
+                    DatagramChannel from = upstream;
+                    Thread back = new Thread(() -> relayBack(from, listener, client), "relay-udp-" + client);
+                    back.setDaemon(true);
+                    back.start();
+                }
+                DatagramChannel to = upstream;
+                forward(buffer, packet -> to.write(packet));
+            }
+        } catch (IOException e) {
+            System.err.println("UDP relay stopped: " + e.getMessage());
+        }
+    }
+
+    private void relayBack(DatagramChannel upstream, DatagramChannel listener, SocketAddress client) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (true) {
+                buffer.clear();
+                upstream.receive(buffer);
+                buffer.flip();
+                forward(buffer, packet -> listener.send(packet, client));
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private interface Send {
+        void send(ByteBuffer packet) throws IOException;
+    }
+
+    private void forward(ByteBuffer buffer, Send send) {
+        packets.increment();
+        if (ThreadLocalRandom.current().nextDouble() < loss) {
+            dropped.increment();
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+        timer.schedule(() -> {
+            try {
+                send.send(copy);
+            } catch (IOException ignored) {
+            }
+        }, delay(), TimeUnit.NANOSECONDS);
+    }
+
+    // ---- TCP ----
+
+    private void relayTcp(int port) throws IOException {
+        try (ServerSocket listener = new ServerSocket(port)) {
+            while (true) {
+                Socket client = listener.accept();
+                Socket server = new Socket();
+                try {
+                    server.connect(target);
+                } catch (IOException e) {
+                    client.close();
+                    continue;
+                }
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                // Both sockets close once both directions are done, or one of them failed.
+                AtomicInteger open = new AtomicInteger(2);
+                Runnable done = () -> {
+                    if (open.decrementAndGet() == 0) {
+                        closeQuietly(client);
+                        closeQuietly(server);
+                    }
+                };
+                pump(client, server, done);
+                pump(server, client, done);
+            }
+        }
+    }
+
+    private record Chunk(long due, byte[] data) {
+    }
+
+    /**
+     * Copies one direction: a reader cuts the stream into segments and stamps each with its delivery time,
+     * a writer delivers them in order once due.
+     */
+    private void pump(Socket from, Socket to, Runnable done) throws IOException {
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[SEGMENT];
+            long lastDue = 0;
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    segments.increment();
+                    long due = Math.max(System.nanoTime() + delay(), lastDue);
+                    if (ThreadLocalRandom.current().nextDouble() < loss) {
+                        // Lost and resent: one more round trip for this segment and all behind it.
+                        stalled.increment();
+                        due += 2 * delayNanos;
+                    }
+                    lastDue = due;
+                    queue.add(new Chunk(due, Arrays.copyOf(buffer, n)));
+                }
+            } catch (IOException ignored) {
+            }
+            queue.add(new Chunk(lastDue, null));
+        }, "relay-tcp-in");
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long wait = chunk.due() - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    if (chunk.data() == null) break;
+                    out.write(chunk.data());
+                }
+                to.shutdownOutput();
+                done.run();
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }, "relay-tcp-out");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
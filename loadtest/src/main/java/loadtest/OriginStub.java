@@ -0,0 +1,133 @@
+package loadtest;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for the web sites behind the VPN, so a load test needs no network. It answers every
+ * request on 127.0.0.1 with a body shaped by the query string: {@code /?size=16384&chunk=4096&delay=20}
+ * waits 20 ms, then sends 16 KiB in 4 KiB HTTP chunks; without {@code chunk} the body has a
+ * Content-Length. Connections are kept alive as a real origin would, one virtual thread each.
+ */
+final class OriginStub implements Closeable {
+    private static final byte[] FILLER = new byte[64 * 1024];
+
+    static {
+        for (int i = 0; i < FILLER.length; i++) FILLER[i] = (byte) ('a' + i % 26);
+    }
+
+    private final ServerSocket server;
+    private final ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+    private final LongAdder requests = new LongAdder();
+
+    OriginStub() throws IOException {
+        server = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        threads.execute(this::accept);
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    private void accept() {
+        try {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                threads.execute(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        HttpInput in = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            in = new HttpInput(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            HttpHead request = new HttpHead();
+            while (in.readHead(request)) {
+                requests.increment();
+                // Discard a request body, if any.
+                Relay.body(in, request, Relay.requestHasBody(request), OutputStream.nullOutputStream());
+                String target = request.tokenCount() > 1 ? request.token(1) : "/";
+                long size = parameter(target, "size", 0);
+                int chunk = (int) Math.min(parameter(target, "chunk", 0), FILLER.length);
+                long delay = parameter(target, "delay", 0);
+                if (delay > 0) Thread.sleep(delay);
+                respond(out, size, chunk);
+                out.flush();
+                if (!request.isKeepAlive(false)) break;
+            }
+        } catch (IOException e) {
+            // Client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (in != null) in.release();
+        }
+    }
+
+    private static void respond(OutputStream out, long size, int chunk) throws IOException {
+        String framing = chunk > 0 ? "Transfer-Encoding: chunked" : "Content-Length: " + size;
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" + framing + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        for (long left = size; left > 0; ) {
+            int n = (int) Math.min(left, chunk > 0 ? chunk : FILLER.length);
+            if (chunk > 0) out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(FILLER, 0, n);
+            if (chunk > 0) {
+                out.write('\r');
+                out.write('\n');
+            }
+            left -= n;
+        }
+        if (chunk > 0) out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * A numeric query parameter of the request target, or {@code fallback}.
+     */
+    static long parameter(String target, String name, long fallback) {
+        int query = target.indexOf('?');
+        if (query < 0) return fallback;
+        for (String pair : target.substring(query + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                try {
+                    return Long.parseLong(pair.substring(eq + 1));
+                } catch (NumberFormatException e) {
+                    return fallback;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        threads.shutdownNow();
+    }
+}
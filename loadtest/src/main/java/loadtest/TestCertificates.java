@@ -0,0 +1,57 @@
+package loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throwaway key and trust stores for a test run: a fresh self-signed certificate for localhost, made with
+ * the JDK's keytool in a temporary directory that is deleted on exit. The certificates the real server
+ * and client use are never read. Also used by the benchmarks module.
+ */
+public final class TestCertificates {
+    private static final String PASSWORD = "loadtest";
+
+    private TestCertificates() {
+    }
+
+    /**
+     * Creates the stores and points the vpn.tls.* properties at them; must run before SSLUtils is loaded.
+     */
+    public static void install() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("vpn-loadtest-");
+        Path keystore = dir.resolve("keystore.jks");
+        Path certificate = dir.resolve("localhost.crt");
+        Path truststore = dir.resolve("truststore.jks");
+        // Deleted in reverse order of registration: the files, then the directory.
+        dir.toFile().deleteOnExit();
+        for (Path file : List.of(keystore, certificate, truststore)) file.toFile().deleteOnExit();
+
+        keytool("-genkeypair", "-alias", "vpn", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+                "-storetype", "JKS", "-keystore", keystore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-alias", "vpn", "-keystore", keystore.toString(), "-storepass", PASSWORD,
+                "-file", certificate.toString());
+        keytool("-importcert", "-noprompt", "-alias", "vpn", "-file", certificate.toString(),
+                "-storetype", "JKS", "-keystore", truststore.toString(), "-storepass", PASSWORD);
+
+        // Both sides use the one key pair; the client's is only presented if the server asks for it.
+        System.setProperty("vpn.tls.serverKeystore", keystore.toString());
+        System.setProperty("vpn.tls.serverTruststore", truststore.toString());
+        System.setProperty("vpn.tls.clientKeystore", keystore.toString());
+        System.setProperty("vpn.tls.clientTruststore", truststore.toString());
+        System.setProperty("vpn.tls.password", PASSWORD);
+    }
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) throw new IOException("keytool " + args[0] + " failed: " + output.trim());
+    }
+}
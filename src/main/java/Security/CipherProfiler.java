@@ -0,0 +1,210 @@
+package Security;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures bulk AEAD throughput of the tunnel's candidate ciphers on this machine and orders the TLS
+ * suites accordingly. AES-GCM is usually fastest where the CPU has AES instructions, ChaCha20-Poly1305
+ * where it does not. Each cipher seals and opens 16 KiB records (one full TLS record) for a total of
+ * vpn.tls.profileMillis; profiling runs once, the first time the order is needed.
+ *
+ * Overrides (system properties): vpn.tls.cipherSuites (explicit comma-separated order, no profiling),
+ * vpn.tls.profile (true; false keeps the JDK's default order), vpn.tls.profileMillis (600).
+ */
+public final class CipherProfiler {
+    private static final int RECORD_SIZE = 16 * 1024;
+    private static final long PROFILE_NANOS = Long.getLong("vpn.tls.profileMillis", 600) * 1_000_000L;
+    private static final int ROUNDS = 8;
+
+    /**
+     * Bulk ciphers and the TLS 1.3 / TLS 1.2 suites that use them.
+     */
+    private enum Bulk {
+        AES_128_GCM("AES/GCM/NoPadding", 16, "TLS_AES_128_GCM_SHA256",
+                "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"),
+        AES_256_GCM("AES/GCM/NoPadding", 32, "TLS_AES_256_GCM_SHA384",
+                "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"),
+        CHACHA20_POLY1305("ChaCha20-Poly1305", 32, "TLS_CHACHA20_POLY1305_SHA256",
+                "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256", "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256");
+
+        final String transformation;
+        final int keyBytes;
+        final String tls13Suite;
+        final String[] tls12Suites;
+
+        Bulk(String transformation, int keyBytes, String tls13Suite, String... tls12Suites) {
+            this.transformation = transformation;
+            this.keyBytes = keyBytes;
+            this.tls13Suite = tls13Suite;
+            this.tls12Suites = tls12Suites;
+        }
+
+        AlgorithmParameterSpec nonce(long counter) {
+            byte[] iv = new byte[12];
+            for (int i = 0; i < 8; i++) iv[4 + i] = (byte) (counter >>> (56 - 8 * i));
+            return this == CHACHA20_POLY1305 ? new IvParameterSpec(iv) : new GCMParameterSpec(128, iv);
+        }
+
+        String algorithm() {
+            return this == CHACHA20_POLY1305 ? "ChaCha20" : "AES";
+        }
+    }
+
+    // Published once profiling finishes; read by report() without forcing a profile.
+    private static volatile Map<Bulk, Double> throughput;
+    // The last computed order and the supported-suite set it was computed for.
+    private static volatile Ordered ordered;
+
+    private CipherProfiler() {
+    }
+
+    /**
+     * The suites to enable, fastest first, restricted to those in {@code supported}. Returns null when
+     * neither profiling nor an explicit order applies, meaning "keep the JDK default". The order is computed
+     * once per supported-suite set and then handed out without locking; callers must not modify the array.
+     */
+    public static String[] preferredSuites(String[] supported) {
+        Ordered current = ordered;
+        if (current != null && Arrays.equals(current.supported, supported)) return current.suites;
+        String[] suites = order(supported);
+        ordered = new Ordered(supported.clone(), suites);
+        return suites;
+    }
+
+    private static String[] order(String[] supported) {
+        List<String> available = Arrays.asList(supported);
+        String explicit = System.getProperty("vpn.tls.cipherSuites");
+        if (explicit != null && !explicit.isBlank()) {
+            return Arrays.stream(explicit.split(",")).map(String::trim).filter(available::contains).toArray(String[]::new);
+        }
+        if (!Boolean.parseBoolean(System.getProperty("vpn.tls.profile", "true"))) return null;
+
+        List<Bulk> order = new ArrayList<>(Measured.THROUGHPUT.keySet());
+        List<String> suites = new ArrayList<>();
+        // TLS 1.3 suites first (all of them, fastest first), then the TLS 1.2 fallbacks in the same order.
+        for (Bulk bulk : order) {
+            if (available.contains(bulk.tls13Suite)) suites.add(bulk.tls13Suite);
+        }
+        for (Bulk bulk : order) {
+            for (String suite : bulk.tls12Suites) {
+                if (available.contains(suite)) suites.add(suite);
+            }
+        }
+        return suites.isEmpty() ? null : suites.toArray(String[]::new);
+    }
+
+    /**
+     * Measured throughput per bulk cipher, e.g. "AES_128_GCM 2210 MB/s, AES_256_GCM 1880 MB/s, ...".
+     */
+    public static String report() {
+        Map<Bulk, Double> measured = throughput;
+        if (measured == null) return "not profiled";
+        StringBuilder sb = new StringBuilder();
+        measured.forEach((bulk, mbps) -> {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(bulk).append(' ').append(mbps < 0 ? "unavailable" : Math.round(mbps) + " MB/s");
+        });
+        return sb.toString();
+    }
+
+    /**
+     * Profiles on first use; the JVM's class initialisation runs it exactly once without a lock of our own.
+     */
+    private static final class Measured {
+        static final Map<Bulk, Double> THROUGHPUT = profile();
+    }
+
+    private record Ordered(String[] supported, String[] suites) {
+    }
+
+    /**
+     * Runs the measurement and returns the results, fastest first. The ciphers are measured in interleaved
+     * rounds and each keeps its best round, so JIT warm-up does not favour whichever runs last.
+     */
+    private static Map<Bulk, Double> profile() {
+        Map<Bulk, Double> best = new LinkedHashMap<>();
+        Map<Bulk, Probe> probes = new LinkedHashMap<>();
+        for (Bulk bulk : Bulk.values()) {
+            try {
+                probes.put(bulk, new Probe(bulk));
+                best.put(bulk, 0.0);
+            } catch (GeneralSecurityException e) {
+                best.put(bulk, -1.0);
+            }
+        }
+        long slice = PROFILE_NANOS / (ROUNDS * Math.max(probes.size(), 1));
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Map.Entry<Bulk, Probe> probe : probes.entrySet()) {
+                try {
+                    best.merge(probe.getKey(), probe.getValue().run(slice), Math::max);
+                } catch (GeneralSecurityException e) {
+                    best.put(probe.getKey(), -1.0);
+                }
+            }
+        }
+        Map<Bulk, Double> sorted = new LinkedHashMap<>();
+        best.entrySet().stream()
+                .sorted(Map.Entry.<Bulk, Double>comparingByValue(Comparator.reverseOrder()))
+                .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+        throughput = Collections.unmodifiableMap(sorted);
+        return throughput;
+    }
+
+    /**
+     * Seals and opens records with one cipher; keeps its state between rounds.
+     */
+    private static final class Probe {
+        private final Bulk bulk;
+        private final SecretKeySpec key;
+        private final Cipher sealer;
+        private final Cipher opener;
+        private final byte[] plain = new byte[RECORD_SIZE];
+        private final byte[] sealed = new byte[RECORD_SIZE + 16];
+        private final byte[] opened = new byte[RECORD_SIZE];
+        private long counter = 0;
+
+        Probe(Bulk bulk) throws GeneralSecurityException {
+            this.bulk = bulk;
+            this.key = new SecretKeySpec(new byte[bulk.keyBytes], bulk.algorithm());
+            this.sealer = Cipher.getInstance(bulk.transformation);
+            this.opener = Cipher.getInstance(bulk.transformation);
+        }
+
+        /**
+         * Seal/open throughput in MB/s over roughly {@code nanos}.
+         */
+        double run(long nanos) throws GeneralSecurityException {
+            long bytes = 0;
+            long start = System.nanoTime();
+            long end = start + nanos;
+            long now;
+            do {
+                roundTrip(counter++);
+                bytes += RECORD_SIZE;
+                now = System.nanoTime();
+            } while (now < end);
+            return bytes / ((now - start) / 1e9) / (1024 * 1024);
+        }
+
+        private void roundTrip(long counter) throws GeneralSecurityException {
+            // A fresh nonce per record, as in TLS; the JDK refuses to reuse one for encryption.
+            AlgorithmParameterSpec nonce = bulk.nonce(counter);
+            sealer.init(Cipher.ENCRYPT_MODE, key, nonce);
+            int n = sealer.doFinal(plain, 0, plain.length, sealed, 0);
+            opener.init(Cipher.DECRYPT_MODE, key, nonce);
+            opener.doFinal(sealed, 0, n, opened, 0);
+        }
+    }
+}
@@ -2,70 +2,234 @@ package Security;
 
 import javax.net.ssl.*;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyStore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SSLUtils {
-    // Server certificate files
-    private static final String SERVER_KEYSTORE = "C:/Users/User/Documents/UOR/6th sem/VPN/vpn/src/main/java/certificates/server_keystore.jks";
-    private static final String SERVER_TRUSTSTORE = "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\server_truststore.jks";
+    // Server certificate files (vpn.tls.serverKeystore, vpn.tls.serverTruststore)
+    private static final String SERVER_KEYSTORE = System.getProperty("vpn.tls.serverKeystore",
+            "C:/Users/User/Documents/UOR/6th sem/VPN/vpn/src/main/java/certificates/server_keystore.jks");
+    private static final String SERVER_TRUSTSTORE = System.getProperty("vpn.tls.serverTruststore",
+            "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\server_truststore.jks");
+
+    // Client certificate files (vpn.tls.clientKeystore, vpn.tls.clientTruststore)
+    private static final String CLIENT_KEYSTORE = System.getProperty("vpn.tls.clientKeystore",
+            "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\client_keystore.jks");
+    private static final String CLIENT_TRUSTSTORE = System.getProperty("vpn.tls.clientTruststore",
+            "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\client_truststore.jks");
+
+    private static final String PASSWORD = System.getProperty("vpn.tls.password", "password"); // Change this to match your certificate passwords
+
+    // Session caches sized for resumption: every reconnect of a recent client should find its session.
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("vpn.tls.sessionCacheSize", 4096);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("vpn.tls.sessionTimeoutSeconds", 24 * 60 * 60);
+
+    private static final String[] PROTOCOLS = System.getProperty("vpn.tls.protocols", "TLSv1.3,TLSv1.2").split(",");
+
+    static {
+        // Stateless TLS 1.3 session tickets, so the server keeps no per-session state for resumption.
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+        }
+    }
 
-    // Client certificate files
-    private static final String CLIENT_KEYSTORE = "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\client_keystore.jks";
-    private static final String CLIENT_TRUSTSTORE = "C:\\Users\\User\\Documents\\UOR\\6th sem\\VPN\\vpn\\src\\main\\java\\certificates\\client_truststore.jks";
+    private static final CachedContext SERVER = new CachedContext(SERVER_KEYSTORE, SERVER_TRUSTSTORE, true);
+    private static final CachedContext CLIENT = new CachedContext(CLIENT_KEYSTORE, CLIENT_TRUSTSTORE, false);
 
-    private static final String PASSWORD = "password"; // Change this to match your certificate passwords
+    private static final LongAdder fullHandshakes = new LongAdder();
+    private static final LongAdder resumedHandshakes = new LongAdder();
 
     public static SSLServerSocketFactory getSSLServerSocketFactory() throws Exception {
-        SSLContext sslContext = SSLContext.getInstance("TLS");
+        return getServerSSLContext().getServerSocketFactory();
+    }
 
-        // Initialize Server KeyStore
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        try (FileInputStream keyStoreFile = new FileInputStream(SERVER_KEYSTORE)) {
-            keyStore.load(keyStoreFile, PASSWORD.toCharArray());
-        }
+    /**
+     * Returns the server-side SSLContext. The context (and with it the session cache) is built once and
+     * rebuilt only when a keystore file changes; both server engines fetch it per connection through
+     * {@link #serverSocket} and {@link #serverEngine}, so a replaced certificate applies from the next one.
+     */
+    public static SSLContext getServerSSLContext() throws Exception {
+        return SERVER.get();
+    }
+
+    /**
+     * Layers server-side TLS, with the current context and the tunnel's policy, over an accepted
+     * connection; the handshake is left to the caller.
+     */
+    public static SSLSocket serverSocket(Socket accepted) throws IOException {
+        SSLSocket socket = (SSLSocket) serverContext().getSocketFactory().createSocket(accepted, null, true);
+        configure(socket);
+        return socket;
+    }
 
-        // Initialize Server TrustStore
-        KeyStore trustStore = KeyStore.getInstance("JKS");
-        try (FileInputStream trustStoreFile = new FileInputStream(SERVER_TRUSTSTORE)) {
-            trustStore.load(trustStoreFile, PASSWORD.toCharArray());
+    /**
+     * A server-mode engine for the non-blocking server, with the current context and the tunnel's policy.
+     */
+    public static SSLEngine serverEngine() throws IOException {
+        SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        configure(engine);
+        return engine;
+    }
+
+    private static SSLContext serverContext() throws IOException {
+        try {
+            return SERVER.get();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Server TLS context unavailable: " + e.getMessage(), e);
         }
+    }
 
-        // Initialize KeyManagerFactory for server
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+    /**
+     * Returns the client socket factory. Reusing one context is what lets reconnects resume their session.
+     */
+    public static SSLSocketFactory getSSLSocketFactory() throws Exception {
+        return CLIENT.get().getSocketFactory();
+    }
 
-        // Initialize TrustManagerFactory for server
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        trustManagerFactory.init(trustStore);
+    /**
+     * Applies the tunnel's protocol and cipher-suite policy to a listening socket.
+     */
+    public static void configure(SSLServerSocket socket) {
+        socket.setSSLParameters(tunnelParameters(socket.getSSLParameters(), socket.getSupportedCipherSuites()));
+    }
 
-        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-        return sslContext.getServerSocketFactory();
+    /**
+     * Applies the tunnel's protocol and cipher-suite policy to a client socket; call before the handshake.
+     */
+    public static void configure(SSLSocket socket) {
+        socket.setSSLParameters(tunnelParameters(socket.getSSLParameters(), socket.getSupportedCipherSuites()));
     }
 
-    public static SSLSocketFactory getSSLSocketFactory() throws Exception {
-        SSLContext sslContext = SSLContext.getInstance("TLS");
+    /**
+     * Applies the tunnel's protocol and cipher-suite policy to an engine of the non-blocking server.
+     */
+    public static void configure(SSLEngine engine) {
+        engine.setSSLParameters(tunnelParameters(engine.getSSLParameters(), engine.getSupportedCipherSuites()));
+    }
+
+    /**
+     * TLS 1.3 and 1.2 only, with suites in the order measured fastest on this machine (see {@link CipherProfiler})
+     * and the server's order taking precedence over the client's.
+     */
+    private static SSLParameters tunnelParameters(SSLParameters params, String[] supportedSuites) {
+        params.setProtocols(PROTOCOLS);
+        String[] suites = CipherProfiler.preferredSuites(supportedSuites);
+        if (suites != null && suites.length > 0) params.setCipherSuites(suites);
+        params.setUseCipherSuitesOrder(true);
+        return params;
+    }
+
+    /**
+     * Counts a completed handshake. A resumed session keeps the creation time of the session it resumes,
+     * so it predates the start of this handshake.
+     *
+     * @return true if the handshake resumed an earlier session
+     */
+    public static boolean recordHandshake(SSLSession session, long handshakeStartMillis) {
+        boolean resumed = session.getCreationTime() < handshakeStartMillis;
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        return resumed;
+    }
+
+    /**
+     * Handshake totals and resumption rate since startup, e.g. "12 handshakes, 9 resumed (75%)".
+     */
+    public static String handshakeReport() {
+        long resumed = resumedHandshakes.sum();
+        long total = resumed + fullHandshakes.sum();
+        long rate = total == 0 ? 0 : resumed * 100 / total;
+        return total + " handshakes, " + resumed + " resumed (" + rate + "%)";
+    }
 
-        // Initialize Client KeyStore
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        try (FileInputStream keyStoreFile = new FileInputStream(CLIENT_KEYSTORE)) {
-            keyStore.load(keyStoreFile, PASSWORD.toCharArray());
+    /**
+     * An SSLContext built from a keystore/truststore pair and rebuilt when either file's timestamp changes.
+     * A rebuild that fails (say, a keystore caught half-written) keeps the previous context until the files
+     * change again.
+     */
+    private static final class CachedContext {
+        private final String keyStorePath;
+        private final String trustStorePath;
+        private final boolean server;
+        private final ReentrantLock lock = new ReentrantLock();
+        private SSLContext context;
+        private long keyStoreModified;
+        private long trustStoreModified;
+
+        CachedContext(String keyStorePath, String trustStorePath, boolean server) {
+            this.keyStorePath = keyStorePath;
+            this.trustStorePath = trustStorePath;
+            this.server = server;
         }
 
-        // Initialize Client TrustStore
-        KeyStore trustStore = KeyStore.getInstance("JKS");
-        try (FileInputStream trustStoreFile = new FileInputStream(CLIENT_TRUSTSTORE)) {
-            trustStore.load(trustStoreFile, PASSWORD.toCharArray());
+        SSLContext get() throws Exception {
+            lock.lock();
+            try {
+                long keyModified = lastModified(keyStorePath);
+                long trustModified = lastModified(trustStorePath);
+                if (context == null || keyModified != keyStoreModified || trustModified != trustStoreModified) {
+                    keyStoreModified = keyModified;
+                    trustStoreModified = trustModified;
+                    try {
+                        context = build();
+                    } catch (Exception e) {
+                        if (context == null) throw e;
+                    }
+                }
+                return context;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        // Initialize KeyManagerFactory for client
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-        keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+        private SSLContext build() throws Exception {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
 
-        // Initialize TrustManagerFactory for client
-        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        trustManagerFactory.init(trustStore);
+            // Initialize KeyStore
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            try (FileInputStream keyStoreFile = new FileInputStream(keyStorePath)) {
+                keyStore.load(keyStoreFile, PASSWORD.toCharArray());
+            }
 
-        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-        return sslContext.getSocketFactory();
+            // Initialize TrustStore
+            KeyStore trustStore = KeyStore.getInstance("JKS");
+            try (FileInputStream trustStoreFile = new FileInputStream(trustStorePath)) {
+                trustStore.load(trustStoreFile, PASSWORD.toCharArray());
+            }
+
+            // Initialize KeyManagerFactory
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD.toCharArray());
+
+            // Initialize TrustManagerFactory
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(trustStore);
+
+            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+
+            SSLSessionContext sessions = server ? sslContext.getServerSessionContext() : sslContext.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return sslContext;
+        }
+
+        private static long lastModified(String path) {
+            try {
+                return Files.getLastModifiedTime(Path.of(path)).toMillis();
+            } catch (IOException | RuntimeException e) {
+                // Missing or unreadable: let build() report the real error.
+                return -1;
+            }
+        }
     }
-}
\ No newline at end of file
+}
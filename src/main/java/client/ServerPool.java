@@ -0,0 +1,409 @@
+package client;
+
+import Security.SSLUtils;
+import tunnel.Deadline;
+import tunnel.TimerWheel;
+import tunnel.TunnelConnection;
+import tunnel.TunnelStream;
+import ui.LogLevel;
+import ui.VPNListener;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The VPN servers the client can tunnel through. The pool keeps a tunnel open to every reachable server
+ * and probes each one every interval with a PING frame on that tunnel (a few bytes inside the existing
+ * TLS session); servers that do not answer pings are measured by their TLS handshake time instead. New
+ * streams go to the healthy server with the lowest smoothed round-trip time, and traffic only moves to
+ * another server when that one is clearly faster, so close RTTs do not make it flap.
+ *
+ * A server is down as soon as its tunnel drops, or when it leaves pings unanswered for a few intervals
+ * (a half-open connection); its tunnel is then closed so the streams on it fail fast, and it is retried
+ * with exponential backoff. Replayable requests that lose their server before getting a response are
+ * retried by {@link VPNClient} on the next best one.
+ *
+ * With vpn.client.transport=datagram, each server that offers it also gets a datagram connection set up
+ * through its tunnel, and new streams to that server go over UDP while the datagram connection answers
+ * pings. If UDP is blocked or the datagram connection dies, streams stay on (or return to) the TLS
+ * tunnel and the setup is retried after the maximum backoff.
+ *
+ * Tunables (system properties): vpn.client.servers ("host:port,host:port,..."; default the single
+ * vpn.client.server:vpn.client.serverPort), vpn.client.probeMillis (1000), vpn.client.downAfterProbes (3),
+ * vpn.client.maxBackoffMillis (30000), vpn.client.switchMargin (0.2, how much faster another server must
+ * be to take over new streams), vpn.client.transport (tcp or datagram).
+ */
+final class ServerPool {
+    private static final long PROBE_MILLIS = Math.max(Long.getLong("vpn.client.probeMillis", 1000), 10);
+    private static final int DOWN_AFTER_PROBES = Math.max(Integer.getInteger("vpn.client.downAfterProbes", 3), 1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("vpn.client.maxBackoffMillis", 30_000));
+    private static final double SWITCH_MARGIN = Double.parseDouble(System.getProperty("vpn.client.switchMargin", "0.2"));
+    // Below this RTT difference servers count as equally fast, whatever the ratio (jitter on a LAN).
+    private static final long SWITCH_MIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Weight of a new RTT sample in the smoothed RTT, as in TCP.
+    private static final double RTT_WEIGHT = 0.125;
+    private static final boolean DATAGRAM = "datagram".equalsIgnoreCase(System.getProperty("vpn.client.transport", "tcp"));
+
+    private final List<Server> servers;
+    private final VPNListener ui;
+    private final ExecutorService threadPool;
+    private final ScheduledExecutorService prober;
+    private volatile Server current;
+
+    ServerPool(VPNListener ui, ExecutorService threadPool) {
+        this.ui = ui;
+        this.threadPool = threadPool;
+        this.servers = parse(System.getProperty("vpn.client.servers",
+                System.getProperty("vpn.client.server", "localhost") + ":" + Integer.getInteger("vpn.client.serverPort", 443)));
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vpn-probe");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Connects to every server in the background and starts probing them.
+     */
+    void start() {
+        for (Server server : servers) threadPool.execute(() -> server.connect(false));
+        prober.scheduleWithFixedDelay(this::probe, PROBE_MILLIS, PROBE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The tunnel of the best healthy server. When none is up, connects to the servers in order of
+     * their last known RTT (skipping those still backing off) and returns the first that answers.
+     */
+    TunnelConnection tunnel() throws IOException {
+        Server best = select();
+        TunnelConnection udp = best == null ? null : best.datagramTunnel;
+        if (udp != null && !udp.isClosed()) return udp;
+        TunnelConnection live = best == null ? null : best.tunnel;
+        if (live != null && !live.isClosed()) return live;
+        ui.log("🔄 Reconnecting to VPN server...");
+        List<Server> order = new ArrayList<>(servers);
+        order.sort(Comparator.comparingDouble(Server::rank));
+        for (Server server : order) {
+            TunnelConnection connection = server.connect(true);
+            if (connection != null) return connection;
+        }
+        throw new IOException("VPN server unavailable");
+    }
+
+    /**
+     * Picks the server for new streams: the current one while it is up and not clearly slower than the
+     * fastest, else the fastest.
+     */
+    private Server select() {
+        Server fastest = null;
+        for (Server server : servers) {
+            if (server.isUp() && (fastest == null || server.rank() < fastest.rank())) fastest = server;
+        }
+        Server chosen = current;
+        if (chosen != null && chosen.isUp() && fastest != null
+                && (fastest.rank() >= chosen.rank() * (1 - SWITCH_MARGIN) || chosen.rank() - fastest.rank() < SWITCH_MIN_NANOS)) {
+            return chosen;
+        }
+        if (fastest != chosen && fastest != null) {
+            current = fastest;
+            if (chosen != null) {
+                ui.log(LogLevel.INFO, "🔀 Switching to VPN server {} ({} ms, was {})", fastest, fastest.rttMillis(), chosen);
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Runs every probe interval: pings live tunnels, declares silent ones down and retries down servers
+     * whose backoff has passed.
+     */
+    private void probe() {
+        long now = System.nanoTime();
+        for (Server server : servers) {
+            TunnelConnection connection = server.tunnel;
+            if (connection != null && !connection.isClosed()) {
+                long pong = connection.lastPongNanos();
+                if (pong != server.sampledPong) {
+                    server.sampledPong = pong;
+                    server.pinged(connection.rttNanos());
+                }
+                try {
+                    if (connection.ping() && now - connection.lastPongNanos()
+                            > TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS * DOWN_AFTER_PROBES)) {
+                        server.down(connection, "no answer to " + DOWN_AFTER_PROBES + " pings");
+                        continue;
+                    }
+                } catch (IOException e) {
+                    server.down(connection, e.getMessage());
+                    continue;
+                }
+                if (DATAGRAM) server.probeDatagram(connection, now);
+            } else if (connection != null) {
+                server.down(connection, "tunnel closed");
+            } else if (now - server.nextAttempt >= 0 && !server.connectLock.isLocked()) {
+                threadPool.execute(() -> server.connect(false));
+            }
+        }
+    }
+
+    /**
+     * How often a request may be tried before giving up: once per server, plus once more per server when
+     * a datagram connection may fail over to its TLS tunnel.
+     */
+    int attempts() {
+        return DATAGRAM ? 2 * servers.size() : servers.size();
+    }
+
+    /**
+     * Every server with its state, e.g. "a:443 up 1.2 ms, b:443 down (3 failures)".
+     */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        for (Server server : servers) {
+            if (!report.isEmpty()) report.append(", ");
+            report.append(server).append(server == current ? " *" : "").append(' ');
+            if (server.isUp()) {
+                report.append("up ").append(server.rttMillis()).append(" ms");
+                TunnelConnection udp = server.datagramTunnel;
+                if (udp != null && !udp.isClosed()) report.append(" (").append(udp.transportReport()).append(')');
+            }
+            else report.append("down (").append(server.failures).append(" failures)");
+        }
+        return report.toString();
+    }
+
+    void close() {
+        prober.shutdownNow();
+        for (Server server : servers) {
+            TunnelConnection connection = server.tunnel;
+            if (connection != null) connection.close();
+            server.dropDatagram();
+        }
+    }
+
+    private List<Server> parse(String spec) {
+        List<Server> parsed = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String address = entry.trim();
+            if (address.isEmpty()) continue;
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                parsed.add(new Server(address, 443));
+            } else {
+                parsed.add(new Server(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1).trim())));
+            }
+        }
+        if (parsed.isEmpty()) throw new IllegalArgumentException("No VPN servers in \"" + spec + "\"");
+        return List.copyOf(parsed);
+    }
+
+    /**
+     * One VPN server and its tunnel.
+     */
+    private final class Server {
+        private final String host;
+        private final int port;
+        // A lock rather than synchronized so a virtual thread blocked in the TLS handshake does not pin its carrier.
+        private final ReentrantLock connectLock = new ReentrantLock();
+        private volatile TunnelConnection tunnel;
+        // Datagram connection keyed through the tunnel, used for new streams while it answers pings.
+        private volatile TunnelConnection datagramTunnel;
+        private volatile boolean datagramPending;
+        private volatile long nextDatagramAttempt;
+        // Smoothed RTT in nanos, 0 before the first sample.
+        private volatile double srtt;
+        private long sampledPong; // prober thread only
+        private volatile boolean pinged;
+        private volatile int failures;
+        private volatile long nextAttempt = System.nanoTime();
+
+        Server(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        boolean isUp() {
+            TunnelConnection connection = tunnel;
+            return connection != null && !connection.isClosed();
+        }
+
+        /**
+         * Sort key for selection: the smoothed RTT, with unmeasured servers last.
+         */
+        double rank() {
+            return srtt > 0 ? srtt : Double.MAX_VALUE;
+        }
+
+        String rttMillis() {
+            return String.format("%.1f", srtt / 1e6);
+        }
+
+        void sample(long rttNanos) {
+            if (rttNanos <= 0) return;
+            srtt = srtt == 0 ? rttNanos : srtt + (rttNanos - srtt) * RTT_WEIGHT;
+        }
+
+        /**
+         * A PING round trip. The first replaces the handshake-based estimate, which also counts the
+         * handshake's own round trips and crypto.
+         */
+        void pinged(long rttNanos) {
+            if (rttNanos <= 0) return;
+            if (!pinged) srtt = 0;
+            pinged = true;
+            sample(rttNanos);
+        }
+
+        /**
+         * Opens the tunnel unless it is up already; returns it, or null on failure. {@code now} ignores
+         * the backoff, for a request that has no server at all.
+         */
+        TunnelConnection connect(boolean now) {
+            connectLock.lock();
+            try {
+                TunnelConnection connection = tunnel;
+                if (connection != null && !connection.isClosed()) return connection;
+                if (!now && System.nanoTime() - nextAttempt < 0) return null;
+                long handshakeStart = System.currentTimeMillis();
+                long started = System.nanoTime();
+                SSLSocket socket = (SSLSocket) SSLUtils.getSSLSocketFactory().createSocket(host, port);
+                SSLUtils.configure(socket);
+                // Frames are already coalesced by the relays; Nagle would only hold back the last of each burst.
+                socket.setTcpNoDelay(true);
+                TimerWheel.Timeout deadline = Deadline.HANDSHAKE.arm(() -> closeQuietly(socket));
+                try {
+                    socket.startHandshake();
+                } finally {
+                    deadline.cancel();
+                }
+                // The handshake time stands in for an RTT sample until pings answer (or if they never do).
+                if (!pinged) sample(System.nanoTime() - started);
+                boolean resumed = SSLUtils.recordHandshake(socket.getSession(), handshakeStart);
+                // The server never opens streams towards the client; reject any it tries.
+                connection = new TunnelConnection(socket, true, TunnelStream::reset);
+                threadPool.execute(connection);
+                tunnel = connection;
+                failures = 0;
+                ui.log("🌐 Connected to VPN Server at " + this + " via SSL ("
+                        + socket.getSession().getCipherSuite() + (resumed ? ", resumed session" : "") + ")");
+                ui.log("🔐 TLS: " + SSLUtils.handshakeReport());
+                if (DATAGRAM) startDatagram(connection);
+                return connection;
+            } catch (Exception e) {
+                failed();
+                // Retries of a server that is known to be down are only worth a debug line.
+                ui.log(failures == 1 ? LogLevel.WARN : LogLevel.DEBUG, "❌ Error connecting to VPN server {}: {}", this, e.getMessage());
+                return null;
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        /**
+         * Takes the server out of rotation and closes its tunnel, failing the streams still on it.
+         */
+        void down(TunnelConnection connection, String reason) {
+            connectLock.lock();
+            try {
+                if (tunnel != connection) return;
+                tunnel = null;
+                failed();
+            } finally {
+                connectLock.unlock();
+            }
+            connection.close();
+            dropDatagram();
+            ui.log(LogLevel.WARN, "⚠️ VPN server {} is down: {}", this, reason);
+        }
+
+        /**
+         * Sets up the datagram connection in the background and only starts using it once a PING went
+         * through it, i.e. once UDP is known to reach the server both ways.
+         */
+        private void startDatagram(TunnelConnection connection) {
+            datagramPending = true;
+            nextDatagramAttempt = System.nanoTime() + MAX_BACKOFF_NANOS;
+            threadPool.execute(() -> {
+                try {
+                    TunnelConnection udp = connection.openDatagramTunnel(host, Deadline.HANDSHAKE.millis(), TunnelStream::reset);
+                    if (udp == null) {
+                        ui.log(LogLevel.INFO, "📡 VPN server {} offers no datagram transport, staying on TCP", this);
+                        return;
+                    }
+                    threadPool.execute(udp);
+                    long rtt = udp.pingAndWait(PROBE_MILLIS * DOWN_AFTER_PROBES);
+                    if (rtt < 0 || connection.isClosed()) {
+                        udp.close();
+                        ui.log(LogLevel.WARN, "⚠️ No UDP path to VPN server {}, staying on TCP", this);
+                        return;
+                    }
+                    datagramTunnel = udp;
+                    ui.log(LogLevel.INFO, "📡 Datagram transport to VPN server {} ({} ms)", this, String.format("%.1f", rtt / 1e6));
+                } catch (IOException e) {
+                    ui.log(LogLevel.WARN, "⚠️ Datagram setup with VPN server {} failed: {}", this, e.getMessage());
+                } finally {
+                    datagramPending = false;
+                }
+            });
+        }
+
+        /**
+         * Keeps the datagram connection alive with pings (they also catch a UDP path that stopped
+         * working) and sets it up again after the backoff when it is gone.
+         */
+        void probeDatagram(TunnelConnection connection, long now) {
+            TunnelConnection udp = datagramTunnel;
+            if (udp != null && !udp.isClosed()) {
+                try {
+                    if (udp.ping() && now - udp.lastPongNanos() > TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS * DOWN_AFTER_PROBES)) {
+                        udp.close();
+                    }
+                } catch (IOException e) {
+                    udp.close();
+                }
+                if (!udp.isClosed()) return;
+            }
+            if (udp != null) {
+                datagramTunnel = null;
+                ui.log(LogLevel.WARN, "⚠️ Datagram transport to VPN server {} lost, back on TCP: {}", this, udp.transportReport());
+                nextDatagramAttempt = now + MAX_BACKOFF_NANOS;
+            } else if (!datagramPending && now - nextDatagramAttempt >= 0) {
+                startDatagram(connection);
+            }
+        }
+
+        void dropDatagram() {
+            TunnelConnection udp = datagramTunnel;
+            datagramTunnel = null;
+            if (udp != null) udp.close();
+        }
+
+        // Called with connectLock held.
+        private void failed() {
+            int n = ++failures;
+            long backoff = Math.min(MAX_BACKOFF_NANOS, TimeUnit.MILLISECONDS.toNanos(PROBE_MILLIS) << Math.min(n - 1, 16));
+            nextAttempt = System.nanoTime() + backoff;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
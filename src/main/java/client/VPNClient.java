@@ -1,59 +1,58 @@
 package client;
 
-import Security.SSLUtils;
-import ui.VPNClientGUI;
+import http.FlushingOutput;
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import http.Splice;
+import tunnel.Compression;
+import tunnel.Deadline;
+import tunnel.ThreadMode;
+import tunnel.TimerWheel;
+import tunnel.TunnelConnection;
+import tunnel.TunnelStream;
+import ui.LogLevel;
+import ui.VPNListener;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLHandshakeException;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class VPNClient {
-    private static final String VPN_SERVER_IP = "localhost"; // Or remote VPN server IP
-    private static final int VPN_SERVER_PORT = 443;            // VPN server's SSL port
-    private static final int LOCAL_PROXY_PORT = 3128;          // Local proxy port for clients
+    private static final int LOCAL_PROXY_PORT = Integer.getInteger("vpn.client.proxyPort", 3128);    // Local proxy port for clients
+    private static final String[] FORWARDED_METHODS = {"GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS"};
+    private static final int PIPELINE_DEPTH = Integer.getInteger("vpn.client.pipelineDepth", 16);    // Pipelined requests in flight per local connection
 
-    private final VPNClientGUI ui;
+    private final VPNListener ui;
     private volatile boolean running = false;
     private ServerSocket proxyServer;
-    private SSLSocket vpnSocket;
-    private BufferedReader vpnIn;
-    private PrintWriter vpnOut;
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private final ThreadMode threadMode = ThreadMode.configured();
+    private final ExecutorService threadPool = threadMode.newExecutor("vpn-client");
+    // The VPN servers (vpn.client.servers), with a tunnel to each; see ServerPool.
+    private final ServerPool servers;
 
-    public VPNClient(VPNClientGUI ui) {
+    public VPNClient(VPNListener ui) {
         this.ui = ui;
+        this.servers = new ServerPool(ui, threadPool);
         // Shutdown hook for graceful exit
         Runtime.getRuntime().addShutdownHook(new Thread(this::stopClient));
     }
 
     public void startClient() {
         running = true;
-        // Start VPN connection in its own thread
-        threadPool.execute(this::connectToVPNServer);
+        // Connect to the VPN servers and start probing them
+        servers.start();
         // Start local proxy listener
         threadPool.execute(this::startProxy);
     }
 
-    /**
-     * Connects to the VPN server over SSL.
-     */
-    private synchronized void connectToVPNServer() {
-        try {
-            vpnSocket = (SSLSocket) SSLUtils.getSSLSocketFactory().createSocket(VPN_SERVER_IP, VPN_SERVER_PORT);
-            // Initialize readers and writers for this VPN connection.
-            vpnIn = new BufferedReader(new InputStreamReader(vpnSocket.getInputStream()));
-            vpnOut = new PrintWriter(vpnSocket.getOutputStream(), true);
-            ui.log("🌐 Connected to VPN Server at " + VPN_SERVER_IP + ":" + VPN_SERVER_PORT + " via SSL");
-        } catch (SSLHandshakeException e) {
-            ui.log("❌ SSL Handshake failed: " + e.getMessage());
-        } catch (Exception e) {
-            ui.log("❌ Error connecting to VPN server: " + e.getMessage());
-        }
-    }
-
     /**
      * Starts the local proxy server to accept client connections.
      */
@@ -62,9 +61,12 @@ public class VPNClient {
             server.setReuseAddress(true);
             server.bind(new InetSocketAddress(LOCAL_PROXY_PORT));
             proxyServer = server;
-            ui.log("✅ VPN Client running as local proxy on port " + LOCAL_PROXY_PORT);
+            ui.log("✅ VPN Client running as local proxy on port " + server.getLocalPort() + " (" + threadMode + " threads)");
+            ui.listening(server.getLocalPort());
             while (running) {
                 Socket clientSocket = proxyServer.accept();
+                // Responses are coalesced by the relay; Nagle would delay the tail of each one.
+                clientSocket.setTcpNoDelay(true);
                 threadPool.execute(() -> handleClient(clientSocket));
             }
         } catch (IOException e) {
@@ -73,214 +75,413 @@ public class VPNClient {
     }
 
     /**
-     * Handles an individual client connection.
+     * Handles an individual client connection: HTTP/1.1 requests one after another for as long as both
+     * sides keep the connection alive. Requests the client pipelines (sends before the previous response
+     * arrived) go through the tunnel together, see {@link #forwardPipelined}.
      */
     private void handleClient(Socket clientSocket) {
+        HttpInput input = null;
+        TimerWheel.Timeout deadline = TimerWheel.Timeout.NONE;
         try (InputStream clientIn = clientSocket.getInputStream();
-             OutputStream clientOut = clientSocket.getOutputStream();
-             BufferedReader reader = new BufferedReader(new InputStreamReader(clientIn));
-             PrintWriter writer = new PrintWriter(clientOut, true)) {
+             OutputStream clientOut = clientSocket.getOutputStream()) {
 
-            // Read the initial request line.
-            String requestLine = reader.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
-                sendErrorResponse(writer, 400, "Bad Request");
-                return;
-            }
-            ui.log("📥 Incoming request: " + requestLine);
+            input = new HttpInput(clientIn);
+            HttpHead pending = null;
+            for (boolean first = true; running; first = false) {
+                HttpHead request = pending;
+                pending = null;
+                if (request == null) {
+                    if (!first) {
+                        // Between requests the connection may idle; once the next one starts, its head
+                        // is held to the header deadline like the first.
+                        deadline = Deadline.IDLE.arm(() -> closeQuietly(clientSocket));
+                        boolean more = input.awaitData();
+                        deadline.cancel();
+                        if (!more) return;
+                    }
+                    // A local client that never completes its request head (slowloris) is dropped.
+                    deadline = Deadline.HEADER.arm(() -> closeQuietly(clientSocket));
+                    // Read and parse the request head in place.
+                    request = new HttpHead();
+                    if (!input.readHead(request)) request = null;
+                    deadline.cancel();
+                }
+                if (request == null || request.tokenCount() < 3) {
+                    sendErrorResponse(clientOut, 400, "Bad Request");
+                    return;
+                }
+                String requestLine = request.startLine();
+                ui.log(LogLevel.INFO, "📥 Incoming request: {}", requestLine);
 
-            // We only support GET and POST in this example.
-            String[] parts = requestLine.split(" ");
-            if (parts.length < 3 ||
-                    !(parts[0].equalsIgnoreCase("GET") || parts[0].equalsIgnoreCase("POST"))) {
-                ui.log("❌ Rejecting non-HTTP/GET/POST request: " + requestLine);
-                sendErrorResponse(writer, 405, "Method Not Allowed");
-                return;
-            }
+                // CONNECT opens an opaque tunnel (HTTPS); everything else is forwarded as plain HTTP.
+                if (request.methodIs("CONNECT")) {
+                    tunnelToVPN(request, requestLine, clientSocket, input);
+                    return;
+                }
+                if (!isForwardedMethod(request)) {
+                    ui.log(LogLevel.WARN, "❌ Rejecting unsupported request: {}", requestLine);
+                    sendErrorResponse(clientOut, 405, "Method Not Allowed");
+                    return;
+                }
 
-            forwardToVPN(requestLine, reader, clientOut);
+                boolean keepAlive;
+                if (isPipelinable(request) && input.buffered() > 0) {
+                    // The client sent more without waiting for this response: take what has arrived.
+                    List<HttpHead> batch = new ArrayList<>();
+                    batch.add(request.copy());
+                    boolean malformed = false;
+                    while (batch.size() < PIPELINE_DEPTH && input.buffered() > 0) {
+                        HttpHead next = new HttpHead();
+                        // Only heads that have fully arrived join; waiting for the rest would hold back
+                        // the responses already due. A partial one is read once the batch is answered.
+                        try {
+                            if (!input.readBufferedHead(next)) break;
+                        } catch (IOException e) {
+                            ui.log(LogLevel.WARN, "❌ Malformed pipelined request: {}", e.getMessage());
+                            malformed = true;
+                            break;
+                        }
+                        if (!isPipelinable(next)) {
+                            // Served on its own once the batch is done; its head stays valid in the
+                            // buffer, as the batch reads nothing more from the client.
+                            pending = next;
+                            break;
+                        }
+                        ui.log(LogLevel.INFO, "📥 Incoming pipelined request: {}", next.startLine());
+                        batch.add(next.copy());
+                    }
+                    // The requests before a malformed one are answered before the connection is dropped.
+                    keepAlive = forwardPipelined(batch, clientSocket, clientOut) && !malformed;
+                } else {
+                    keepAlive = forwardToVPN(request, requestLine, input, clientOut);
+                }
+                if (!keepAlive) return;
+            }
         } catch (IOException e) {
-            ui.log("❌ Error handling client: " + e.getMessage());
+            ui.log(LogLevel.ERROR, "❌ Error handling client: {}", e.getMessage());
+        } finally {
+            deadline.cancel();
+            if (input != null) input.release();
+        }
+    }
+
+    private static boolean isForwardedMethod(HttpHead request) {
+        for (String method : FORWARDED_METHODS) {
+            if (request.methodIs(method)) return true;
         }
+        return false;
     }
 
     /**
-     * Forwards the HTTP request to the VPN server and relays the full response (headers and body)
-     * back to the local client. The response headers are read as raw bytes until the header terminator
-     * (CRLF CRLF) is found, then the remainder of the response is forwarded without interpreting the data.
+     * Whether a request can be sent ahead of the responses before it: a complete, forwarded request
+     * without a body (which would have to be read off the connection first).
      */
-    private synchronized void forwardToVPN(String request, BufferedReader clientReader, OutputStream clientOut) {
-        try {
-            // Ensure VPN connection is live.
-            if (vpnSocket == null || vpnSocket.isClosed()) {
-                ui.log("🔄 Reconnecting to VPN server...");
-                connectToVPNServer();
-            }
+    private static boolean isPipelinable(HttpHead request) {
+        return request.tokenCount() >= 3 && isForwardedMethod(request) && !request.methodIs("CONNECT")
+                && !Relay.requestHasBody(request);
+    }
 
-            // Send the request line.
-            vpnOut.println(request);
-            // Forward remaining headers from client.
-            String headerLine;
-            while ((headerLine = clientReader.readLine()) != null && !headerLine.isEmpty()) {
-                vpnOut.println(headerLine);
+    /**
+     * Forwards the HTTP request to the VPN server on its own tunnel stream and relays the full response
+     * (headers and body) back to the local client. Requests from different local connections run
+     * concurrently; each only waits for its own response. The request head is forwarded exactly as
+     * received, and the response head is parsed in place so the body can be framed by Content-Length,
+     * chunked encoding or end of stream without decoding it. The body goes through the shared pooled
+     * relay, which coalesces flushes to the local client.
+     * A request body is uploaded on a second task while the response is read, so an origin may answer
+     * before the upload ends; the tunnel window bounds how much of it is in flight.
+     *
+     * @return true if the local connection can carry another request
+     */
+    private boolean forwardToVPN(HttpHead request, String requestLine, HttpInput clientIn, OutputStream clientOut) {
+        // Decided up front: an upload reuses the buffer the request head was parsed in.
+        boolean headRequest = request.methodIs("HEAD");
+        boolean keepAlive = request.isKeepAlive(false);
+        Exchange exchange = null;
+        FlushingOutput out = Relay.output(clientOut);
+        try {
+            // Send the request head, then the body if there is one, and wait for the response head.
+            exchange = exchange(request, requestLine, clientIn);
+            ui.log(LogLevel.INFO, "🌍 Forwarded request to VPN server: {}", requestLine);
+            keepAlive = relayResponse(exchange, headRequest, keepAlive, out);
+        } catch (IOException e) {
+            ui.log(LogLevel.ERROR, "❌ Error forwarding HTTP request to VPN server: {}", e.getMessage());
+            keepAlive = false;
+        } finally {
+            try {
+                out.finish();
+            } catch (IOException ignored) {
+                keepAlive = false;
             }
-            // End of request headers.
-            vpnOut.println();
-            vpnOut.flush();
-            ui.log("🌍 Forwarded request to VPN server: " + request);
+            // The upload still reads from clientIn, which the caller releases once we return. If the
+            // response came first and the upload is cut short, the rest of the body is never read.
+            if (exchange != null && !exchange.finish()) keepAlive = false;
+        }
+        return keepAlive;
+    }
 
-            // --- Read the response headers as raw bytes ---
-            InputStream vpnRaw = vpnSocket.getInputStream();
-            ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
-            int state = 0; // to detect CRLF CRLF
-            int b;
-            while ((b = vpnRaw.read()) != -1) {
-                headerBuffer.write(b);
-                // Simple state machine for "\r\n\r\n"
-                if (state == 0 && b == '\r') state = 1;
-                else if (state == 1 && b == '\n') state = 2;
-                else if (state == 2 && b == '\r') state = 3;
-                else if (state == 3 && b == '\n') {
-                    state = 4;
-                    break;
-                } else {
-                    state = 0;
+    /**
+     * Serves requests the client pipelined: all of them go through the tunnel at once, each on its own
+     * stream, and the responses are relayed back in request order. Once a response ends the connection
+     * (or fails), the client's side is shut down at once and the exchanges behind it are reset without
+     * waiting for them; the client sends those again on a new connection.
+     *
+     * @param batch request heads that own their bytes (see {@link HttpHead#copy()})
+     * @return true if the local connection can carry another request
+     */
+    private boolean forwardPipelined(List<HttpHead> batch, Socket clientSocket, OutputStream clientOut) {
+        List<Future<Exchange>> exchanges = new ArrayList<>(batch.size());
+        for (HttpHead request : batch) {
+            exchanges.add(threadPool.submit(() -> exchange(request, request.startLine(), null)));
+        }
+        boolean keepAlive = true;
+        int next = 0;
+        FlushingOutput out = Relay.output(clientOut);
+        try {
+            for (; keepAlive && next < batch.size(); next++) {
+                HttpHead request = batch.get(next);
+                Future<Exchange> pending = exchanges.get(next);
+                Exchange exchange = null;
+                try {
+                    exchange = pending.get();
+                    keepAlive = relayResponse(exchange, request.methodIs("HEAD"), request.isKeepAlive(false), out);
+                } catch (ExecutionException | IOException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    ui.log(LogLevel.ERROR, "❌ Error forwarding pipelined request {}: {}", request.startLine(), cause.getMessage());
+                    keepAlive = false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    keepAlive = false;
+                    abandon(pending);
+                } finally {
+                    if (exchange != null) exchange.finish();
                 }
             }
-            byte[] headerBytes = headerBuffer.toByteArray();
-            String headerString = new String(headerBytes, "ISO-8859-1"); // Use ISO-8859-1 for HTTP headers
-            // Parse headers
-            String[] headerLines = headerString.split("\\r\\n");
-            String statusLine = headerLines.length > 0 ? headerLines[0] : "";
-            StringBuilder responseHeaders = new StringBuilder();
-            responseHeaders.append(statusLine).append("\r\n");
-            int contentLength = -1;
-            boolean chunked = false;
-            for (int i = 1; i < headerLines.length; i++) {
-                String lineStr = headerLines[i];
-                if (lineStr.isEmpty()) continue;
-                responseHeaders.append(lineStr).append("\r\n");
-                String lower = lineStr.toLowerCase();
-                if (lower.startsWith("content-length:")) {
-                    try {
-                        contentLength = Integer.parseInt(lineStr.substring("content-length:".length()).trim());
-                    } catch (NumberFormatException e) {
-                        ui.log("❌ Error parsing Content-Length: " + e.getMessage());
-                    }
-                } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
-                    chunked = true;
+        } finally {
+            try {
+                out.finish();
+            } catch (IOException ignored) {
+                keepAlive = false;
+            }
+        }
+        if (next < batch.size()) {
+            // A response framed by end of stream ends here, not once the abandoned origins have answered.
+            try {
+                clientSocket.shutdownOutput();
+            } catch (IOException ignored) {
+            }
+            for (int i = next; i < batch.size(); i++) {
+                abandon(exchanges.get(i));
+            }
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Resets the stream of an exchange whose response will not be relayed. The exchange may still be
+     * waiting for its response head, so the reset happens on the pool rather than holding up the caller.
+     */
+    private void abandon(Future<Exchange> pending) {
+        try {
+            threadPool.execute(() -> {
+                try {
+                    Exchange exchange = pending.get();
+                    exchange.stream().reset();
+                    exchange.finish();
+                } catch (ExecutionException | InterruptedException | CancellationException ignored) {
+                    // It failed on its own, or the client is stopping.
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            // The client is stopping and its tunnel with it.
+            pending.cancel(true);
+        }
+    }
+
+    /**
+     * Relays a response from the tunnel to the local client. Interim responses (100 Continue) pass
+     * through unchanged; the final head gets the Connection field of the local hop, which stays open
+     * only if the client wants that and the body is framed (not ended by closing the stream).
+     *
+     * @return true if the local connection can carry another request
+     */
+    private boolean relayResponse(Exchange exchange, boolean headRequest, boolean keepAlive, FlushingOutput out) throws IOException {
+        HttpHead response = exchange.response();
+        HttpInput vpnIn = exchange.in();
+        while (Relay.isInterim(response.statusCode())) {
+            response.writeTo(out);
+            out.flush();
+            if (!vpnIn.readHead(response)) {
+                throw new IOException("VPN server closed the stream without a response");
             }
-            responseHeaders.append("\r\n");
+        }
+        boolean hasBody = Relay.responseHasBody(headRequest, response.statusCode());
+        keepAlive &= !hasBody || response.isChunked() || response.contentLength() >= 0;
+        Relay.writeClientHead(response, keepAlive ? "keep-alive" : "close", out);
+        out.flush();
+        return Relay.body(vpnIn, response, hasBody, out) && keepAlive;
+    }
 
-            // Write headers to the client.
-            clientOut.write(responseHeaders.toString().getBytes("ISO-8859-1"));
+    /**
+     * Streams the request body from the local client into the tunnel and ends the stream's output.
+     *
+     * @return true if the whole body was read from the client
+     */
+    private boolean uploadBody(HttpHead request, HttpInput clientIn, OutputStream vpnOut) {
+        try (FlushingOutput body = Relay.output(vpnOut)) {
+            Relay.body(clientIn, request, true, body);
+            return true;
+        } catch (IOException e) {
+            ui.log(LogLevel.ERROR, "❌ Error uploading request body to VPN server: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Handles a CONNECT request: the server dials the target and answers with its status line, after
+     * which the local connection and the tunnel stream are spliced byte for byte in both directions.
+     * Bytes the browser sent right after the CONNECT head (already buffered in {@code clientIn}) are
+     * passed on first.
+     */
+    private void tunnelToVPN(HttpHead request, String requestLine, Socket clientSocket, HttpInput clientIn) {
+        TunnelStream stream = null;
+        HttpInput vpnIn = null;
+        try {
+            OutputStream clientOut = clientSocket.getOutputStream();
+            Exchange exchange = exchange(request, requestLine, clientIn);
+            stream = exchange.stream();
+            vpnIn = exchange.in();
+            OutputStream vpnOut = stream.getOutputStream();
+            exchange.response().writeTo(clientOut);
             clientOut.flush();
+            if (exchange.response().statusCode() / 100 != 2) {
+                // The error body (if any) ends with the stream.
+                vpnOut.close();
+                Relay.stream(vpnIn, clientOut);
+                return;
+            }
+            ui.log(LogLevel.INFO, "🔒 Tunnel opened: {}", requestLine);
+
+            TunnelStream tunnelStream = stream;
+            TimerWheel.Timeout idle = Deadline.IDLE.arm(() -> {
+                tunnelStream.reset();
+                closeQuietly(clientSocket);
+            });
+            Splice.Endpoint local = new Splice.Endpoint(idle.touching(clientIn), clientOut, clientSocket::shutdownOutput,
+                    clientSocket::close);
+            Splice.Endpoint remote = new Splice.Endpoint(idle.touching(vpnIn), vpnOut, vpnOut::close,
+                    () -> tunnelStream.getInputStream().close());
+            try {
+                Splice.duplex(local, remote, threadPool);
+            } finally {
+                idle.cancel();
+            }
+        } catch (IOException e) {
+            ui.log(LogLevel.ERROR, "❌ Error tunnelling {}: {}", requestLine, e.getMessage());
+            if (stream != null) stream.reset();
+        } finally {
+            if (vpnIn != null) vpnIn.release();
+        }
+    }
 
-            // Check if there are extra bytes already read beyond the headers.
-            String headerTerminator = "\r\n\r\n";
-            int headerEndIndex = headerString.indexOf(headerTerminator) + headerTerminator.length();
-            byte[] initialBodyBytes = null;
-            if (headerBytes.length > headerEndIndex) {
-                int extraLength = headerBytes.length - headerEndIndex;
-                initialBodyBytes = new byte[extraLength];
-                System.arraycopy(headerBytes, headerEndIndex, initialBodyBytes, 0, extraLength);
+    /**
+     * A request sent on a tunnel stream whose response head has arrived, with its body upload if any.
+     */
+    private record Exchange(TunnelStream stream, HttpInput in, HttpHead response, Future<Boolean> upload) {
+        /**
+         * Releases the stream once the response has been relayed (or abandoned), first waiting for the
+         * upload; one that is still running is cut short by resetting the stream.
+         *
+         * @return true if the request body, if any, was read to its end
+         */
+        boolean finish() {
+            in.release();
+            try {
+                stream.getInputStream().close();
+            } catch (IOException ignored) {
+            }
+            if (upload == null) return true;
+            if (!upload.isDone()) stream.reset();
+            try {
+                return upload.get();
+            } catch (Exception e) {
+                return false;
             }
+        }
+    }
 
-            // --- Forward the response body ---
-            if (chunked) {
-                // For chunked encoding, we can use a BufferedReader to read chunk-size lines.
-                BufferedReader chunkedReader = new BufferedReader(new InputStreamReader(vpnRaw, "ISO-8859-1"));
-                // If there are already body bytes, forward them first.
-                if (initialBodyBytes != null && initialBodyBytes.length > 0) {
-                    clientOut.write(initialBodyBytes);
-                    clientOut.flush();
+    /**
+     * Opens a stream on the best VPN server, sends the request head (and starts uploading the body, if
+     * there is one) and reads the first response head. If the server goes away before answering, a
+     * request without a body is sent again on the next best server (or over the TLS tunnel, when its
+     * datagram connection died), at most {@link ServerPool#attempts()} times. The local client has seen
+     * nothing at that point, and bytes it sent after a CONNECT head are still buffered in
+     * {@code clientIn}.
+     */
+    private Exchange exchange(HttpHead request, String requestLine, HttpInput clientIn) throws IOException {
+        boolean replayable = !Relay.requestHasBody(request);
+        for (int attempt = 1; ; attempt++) {
+            TunnelConnection tunnel = servers.tunnel();
+            TunnelStream stream = tunnel.openStream();
+            HttpInput vpnIn = null;
+            Future<Boolean> upload = null;
+            try {
+                OutputStream vpnOut = stream.getOutputStream();
+                request.writeTo(vpnOut);
+                if (!replayable) {
+                    upload = threadPool.submit(() -> uploadBody(request, clientIn, vpnOut));
+                } else if (!request.methodIs("CONNECT")) {
+                    vpnOut.close();
                 }
-                String chunkSizeLine;
-                while ((chunkSizeLine = chunkedReader.readLine()) != null) {
-                    clientOut.write((chunkSizeLine + "\r\n").getBytes("ISO-8859-1"));
-                    clientOut.flush();
-                    int chunkSize;
-                    try {
-                        chunkSize = Integer.parseInt(chunkSizeLine.trim(), 16);
-                    } catch (NumberFormatException e) {
-                        ui.log("❌ Error parsing chunk size: " + e.getMessage());
-                        break;
-                    }
-                    if (chunkSize == 0) {
-                        // Last chunk; forward any trailing headers.
-                        String trailingLine;
-                        while ((trailingLine = chunkedReader.readLine()) != null) {
-                            clientOut.write((trailingLine + "\r\n").getBytes("ISO-8859-1"));
-                            if (trailingLine.isEmpty()) break;
+                vpnIn = new HttpInput(stream.getInputStream());
+                HttpHead response = new HttpHead();
+                if (!vpnIn.readHead(response)) {
+                    throw new IOException("VPN server closed the stream without a response");
+                }
+                return new Exchange(stream, vpnIn, response, upload);
+            } catch (IOException e) {
+                if (vpnIn != null) vpnIn.release();
+                if (!replayable || !tunnel.isClosed() || attempt >= servers.attempts()) {
+                    stream.reset();
+                    if (upload != null) {
+                        try {
+                            upload.get();
+                        } catch (Exception ignored) {
                         }
-                        break;
                     }
-                    byte[] chunkData = new byte[chunkSize];
-                    int totalRead = 0;
-                    while (totalRead < chunkSize) {
-                        int bytesRead = vpnRaw.read(chunkData, totalRead, chunkSize - totalRead);
-                        if (bytesRead == -1) break;
-                        totalRead += bytesRead;
-                    }
-                    clientOut.write(chunkData, 0, totalRead);
-                    // Read and forward the trailing CRLF after chunk data.
-                    byte[] crlf = new byte[2];
-                    int r = vpnRaw.read(crlf);
-                    if (r == 2) {
-                        clientOut.write(crlf);
-                    }
-                    clientOut.flush();
-                }
-            } else if (contentLength >= 0) {
-                // Forward any already-read initial body bytes.
-                if (initialBodyBytes != null && initialBodyBytes.length > 0) {
-                    clientOut.write(initialBodyBytes);
-                    clientOut.flush();
-                }
-                byte[] buffer = new byte[4096];
-                int remaining = contentLength - (initialBodyBytes == null ? 0 : initialBodyBytes.length);
-                int bytesRead;
-                while (remaining > 0 && (bytesRead = vpnRaw.read(buffer, 0, Math.min(buffer.length, remaining))) != -1) {
-                    clientOut.write(buffer, 0, bytesRead);
-                    remaining -= bytesRead;
-                }
-                clientOut.flush();
-            } else {
-                // No Content-Length and not chunked; forward until end of stream.
-                if (initialBodyBytes != null && initialBodyBytes.length > 0) {
-                    clientOut.write(initialBodyBytes);
-                    clientOut.flush();
-                }
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = vpnRaw.read(buffer)) != -1) {
-                    clientOut.write(buffer, 0, bytesRead);
+                    throw e;
                 }
-                clientOut.flush();
+                ui.log(LogLevel.WARN, "🔁 VPN server lost before answering, retrying on another: {}", requestLine);
             }
-        } catch (IOException e) {
-            ui.log("❌ Error forwarding HTTP request to VPN server: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
         }
     }
 
     /**
      * Sends an HTTP error response to the client.
      */
-    private void sendErrorResponse(PrintWriter writer, int statusCode, String message) {
-        writer.printf("HTTP/1.1 %d %s\r\nContent-Type: text/plain\r\nConnection: close\r\n\r\n%s\r\n",
+    private void sendErrorResponse(OutputStream out, int statusCode, String message) throws IOException {
+        String response = String.format("HTTP/1.1 %d %s\r\nContent-Type: text/plain\r\nConnection: close\r\n\r\n%s\r\n",
                 statusCode, message, message);
-        writer.flush();
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
     }
 
     public void stopClient() {
         running = false;
         threadPool.shutdownNow();
         try {
-            if (vpnOut != null) vpnOut.close();
-            if (vpnIn != null) vpnIn.close();
-            if (vpnSocket != null) vpnSocket.close();
+            servers.close();
             if (proxyServer != null && !proxyServer.isClosed()) proxyServer.close();
+            if (Compression.ENABLED) ui.log("🗜️ Compression: " + Compression.totalReport());
+            ui.log("⏱️ Timeouts: " + Deadline.report());
+            ui.log("🛰️ Servers: " + servers.report());
             ui.log("🛑 VPN Client stopped.");
         } catch (IOException e) {
             ui.log("❌ Error closing VPN connection: " + e.getMessage());
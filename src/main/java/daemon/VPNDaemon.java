@@ -0,0 +1,122 @@
+package daemon;
+
+import client.VPNClient;
+import server.VPNServer;
+import ui.LogLevel;
+import ui.LogPipeline;
+import ui.VPNListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+/**
+ * Headless launcher for the server or the client, for running as a service: no window, and no AWT or
+ * Swing class is ever loaded. Logs go to standard output through the {@link LogPipeline} (and to files
+ * with vpn.log.dir).
+ *
+ * Usage: {@code java -jar vpn-daemon.jar server|client [config.properties]}
+ *
+ * The config file (default ./vpn.properties, if present) holds the same vpn.* keys as the system
+ * properties, e.g. vpn.server.port, vpn.server.engine, vpn.tls.serverKeystore, vpn.client.server; a -D on
+ * the command line wins over the file. It is applied before any engine class is loaded, since those read
+ * their tunables once, when first used.
+ *
+ * Once the engine accepts connections the daemon logs the time taken since main and since the process
+ * started. For faster starts, pin vpn.tls.cipherSuites to the order the last run logged (skips cipher
+ * profiling), and reuse a class data archive: run once with
+ * {@code -XX:ArchiveClassesAtExit=vpn.jsa -Dvpn.daemon.exitWhenReady=true}, then start with
+ * {@code -XX:SharedArchiveFile=vpn.jsa}. The archive needs the class path to be a jar (mvn -Pdaemon
+ * package builds one) and is only valid for the same JDK and jar.
+ */
+public final class VPNDaemon {
+    private VPNDaemon() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long mainStart = System.nanoTime();
+        if (args.length < 1 || !(args[0].equals("server") || args[0].equals("client"))) {
+            System.err.println("Usage: VPNDaemon server|client [config.properties]");
+            System.exit(2);
+        }
+        try {
+            loadConfig(args.length > 1 ? Path.of(args[1]) : Path.of("vpn.properties"), args.length > 1);
+        } catch (IOException e) {
+            System.err.println("❌ Cannot read config: " + e.getMessage());
+            System.exit(2);
+        }
+        if (System.getProperty("vpn.log.console") == null) System.setProperty("vpn.log.console", "true");
+        System.setProperty("java.awt.headless", "true");
+
+        LogPipeline logs = new LogPipeline(args[0], null);
+        VPNListener listener = new ReadyListener(logs, mainStart);
+        if (args[0].equals("server")) {
+            VPNServer server = new VPNServer(listener);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stopServer));
+            // The accept loop runs on this thread until shutdown.
+            server.startServer();
+        } else {
+            VPNClient client = new VPNClient(listener);
+            client.startClient();
+            Thread.currentThread().join();
+        }
+    }
+
+    /**
+     * Copies the file's entries into the system properties, leaving those already set alone. A missing
+     * default file is fine; a missing file named on the command line is not.
+     */
+    private static void loadConfig(Path file, boolean required) throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            config.load(in);
+        } catch (NoSuchFileException e) {
+            if (required) throw e;
+            return;
+        }
+        for (String key : config.stringPropertyNames()) {
+            if (System.getProperty(key) == null) System.setProperty(key, config.getProperty(key).trim());
+        }
+    }
+
+    /**
+     * Logs to the pipeline and reports the startup time once the engine is listening.
+     */
+    private static final class ReadyListener implements VPNListener {
+        private final LogPipeline logs;
+        private final long mainStart;
+
+        ReadyListener(LogPipeline logs, long mainStart) {
+            this.logs = logs;
+            this.mainStart = mainStart;
+        }
+
+        @Override
+        public void log(String message) {
+            logs.log(message);
+        }
+
+        @Override
+        public void log(LogLevel level, String pattern, Object... args) {
+            logs.log(level, pattern, args);
+        }
+
+        @Override
+        public void listening(int port) {
+            long sinceMain = (System.nanoTime() - mainStart) / 1_000_000;
+            long sinceJvm = ProcessHandle.current().info().startInstant()
+                    .map(start -> Duration.between(start, Instant.now()).toMillis()).orElse(sinceMain);
+            logs.log(LogLevel.INFO, "🚀 Ready on port {} in {} ms ({} ms since process start)", port, sinceMain, sinceJvm);
+            if (Boolean.getBoolean("vpn.daemon.exitWhenReady")) {
+                // Training run for a class data archive: everything startup needs is loaded by now.
+                logs.close();
+                System.exit(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package http;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of fixed-size relay buffers, borrowed by the stream relays. Acquiring never blocks: when
+ * the pool is empty a new buffer is allocated, and buffers returned to a full pool are simply dropped
+ * for the GC.
+ *
+ * Tunables (system properties): vpn.buffers.size (16384), vpn.buffers.max (512).
+ */
+public final class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(
+            Integer.getInteger("vpn.buffers.size", 16 * 1024),
+            Integer.getInteger("vpn.buffers.max", 512));
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> arrays = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledArrays = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public byte[] acquire() {
+        byte[] buffer = arrays.poll();
+        if (buffer == null) return new byte[bufferSize];
+        pooledArrays.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()}. Buffers of a different size are ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) return;
+        if (pooledArrays.incrementAndGet() <= maxPooled) {
+            arrays.offer(buffer);
+        } else {
+            pooledArrays.decrementAndGet();
+        }
+    }
+}
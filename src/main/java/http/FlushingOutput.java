@@ -0,0 +1,107 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output side of the relay. Small writes are gathered in a pooled buffer and passed on in full slices;
+ * the destination is only flushed once enough bytes or time have accumulated, or when {@link #flush()}
+ * is called explicitly. Relays call flush() when their source has nothing more ready, so a fast
+ * transfer produces few large writes while a trickling one is never held back.
+ *
+ * Tunables (system properties): vpn.relay.flushBytes (65536), vpn.relay.flushMillis (20).
+ */
+public class FlushingOutput extends OutputStream {
+    private static final int FLUSH_BYTES = Integer.getInteger("vpn.relay.flushBytes", 64 * 1024);
+    private static final long FLUSH_NANOS = Long.getLong("vpn.relay.flushMillis", 20) * 1_000_000L;
+
+    private static final byte[] RELEASED = new byte[0];
+
+    private final OutputStream out;
+    private final BufferPool pool;
+    private byte[] buf;
+    private int count = 0;
+    private long unflushed = 0;
+    private long written = 0;
+    private long lastFlush = System.nanoTime();
+
+    public FlushingOutput(OutputStream out, BufferPool pool) {
+        this.out = out;
+        this.pool = pool;
+        this.buf = pool.acquire();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length) drain();
+        buf[count++] = (byte) b;
+        unflushed++;
+        written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buf.length) {
+            // Full slices bypass the buffer.
+            drain();
+            out.write(b, off, len);
+        } else {
+            if (len > buf.length - count) drain();
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+        unflushed += len;
+        written += len;
+        if (unflushed >= FLUSH_BYTES || System.nanoTime() - lastFlush >= FLUSH_NANOS) {
+            flush();
+        }
+    }
+
+    /**
+     * Bytes accepted so far, whether or not they have been passed on yet.
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * Passes everything buffered on and flushes the destination.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (unflushed > 0) {
+            out.flush();
+            unflushed = 0;
+        }
+        lastFlush = System.nanoTime();
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Flushes and returns the buffer to the pool without closing the destination.
+     */
+    public void finish() throws IOException {
+        try {
+            flush();
+        } finally {
+            pool.release(buf);
+            buf = RELEASED;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x head parser (request or status line plus header fields).
+ * It scans raw bytes in place and only records offsets into the caller's buffer, so parsing a head
+ * allocates nothing; Strings are created only when a caller explicitly asks for one.
+ * An instance is reusable: call {@link #reset(byte[], int)} before every new head.
+ */
+public final class HttpHead {
+    public static final int MAX_HEADERS = 128;
+
+    private byte[] buf;
+    private int start;
+    private int scan;
+    private int lineStart;
+    private int end = -1;
+    private boolean startLineSeen;
+
+    // Start line tokens: method/target/version for requests, version/status/reason for responses.
+    private final int[] tokenStart = new int[3];
+    private final int[] tokenEnd = new int[3];
+    private int tokenCount;
+
+    private final int[] nameStart = new int[MAX_HEADERS];
+    private final int[] nameEnd = new int[MAX_HEADERS];
+    private final int[] valueStart = new int[MAX_HEADERS];
+    private final int[] valueEnd = new int[MAX_HEADERS];
+    private int count;
+
+    /**
+     * Prepares to parse a new head that begins at {@code start} in {@code buf}.
+     */
+    public void reset(byte[] buf, int start) {
+        this.buf = buf;
+        this.start = start;
+        this.scan = start;
+        this.lineStart = start;
+        this.end = -1;
+        this.startLineSeen = false;
+        this.tokenCount = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Continues parsing up to {@code limit}. The buffer may be replaced by a larger copy between calls
+     * as long as the head keeps its offsets.
+     *
+     * @return true once the blank line ending the head has been seen
+     */
+    public boolean parse(byte[] buf, int limit) throws IOException {
+        this.buf = buf;
+        if (end >= 0) return true;
+        for (int i = scan; i < limit; i++) {
+            if (buf[i] != '\n') continue;
+            int lineEnd = (i > lineStart && buf[i - 1] == '\r') ? i - 1 : i;
+            if (lineEnd == lineStart) {
+                if (startLineSeen) {
+                    end = i + 1;
+                    scan = end;
+                    return true;
+                }
+                // Leading empty lines before the start line are ignored.
+            } else if (!startLineSeen) {
+                parseStartLine(lineStart, lineEnd);
+                startLineSeen = true;
+            } else {
+                parseHeader(lineStart, lineEnd);
+            }
+            lineStart = i + 1;
+        }
+        scan = limit;
+        return false;
+    }
+
+    private void parseStartLine(int from, int to) throws IOException {
+        int i = from;
+        while (i < to && tokenCount < 3) {
+            while (i < to && buf[i] == ' ') i++;
+            if (i == to) break;
+            tokenStart[tokenCount] = i;
+            // The last token (reason phrase) may itself contain spaces.
+            if (tokenCount == 2) {
+                i = to;
+            } else {
+                while (i < to && buf[i] != ' ') i++;
+            }
+            tokenEnd[tokenCount++] = i;
+        }
+        if (tokenCount < 2) throw new IOException("Malformed HTTP start line");
+    }
+
+    private void parseHeader(int from, int to) throws IOException {
+        if (buf[from] == ' ' || buf[from] == '\t') throw new IOException("Obsolete header line folding");
+        if (count == MAX_HEADERS) throw new IOException("Too many HTTP header fields");
+        int colon = from;
+        while (colon < to && buf[colon] != ':') colon++;
+        if (colon == to || colon == from) throw new IOException("Malformed HTTP header field");
+        int vs = colon + 1;
+        int ve = to;
+        while (vs < ve && (buf[vs] == ' ' || buf[vs] == '\t')) vs++;
+        while (ve > vs && (buf[ve - 1] == ' ' || buf[ve - 1] == '\t')) ve--;
+        nameStart[count] = from;
+        nameEnd[count] = colon;
+        valueStart[count] = vs;
+        valueEnd[count] = ve;
+        count++;
+    }
+
+    // ---- Head as a whole ----
+
+    public boolean isComplete() {
+        return end >= 0;
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int headStart() {
+        return start;
+    }
+
+    /**
+     * Offset just past the blank line that ends the head, i.e. where the body starts.
+     */
+    public int headEnd() {
+        return end;
+    }
+
+    public int headLength() {
+        return end - start;
+    }
+
+    /**
+     * Writes the head exactly as received.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, start, end - start);
+    }
+
+    /**
+     * A parsed copy of this complete head backed by its own array, so it stays valid while the buffer it
+     * was read into is reused for the next message.
+     */
+    public HttpHead copy() throws IOException {
+        byte[] bytes = Arrays.copyOfRange(buf, start, end);
+        HttpHead copy = new HttpHead();
+        copy.reset(bytes, 0);
+        copy.parse(bytes, bytes.length);
+        return copy;
+    }
+
+    // ---- Start line ----
+
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * True if start line token {@code index} equals {@code value} exactly (e.g. the method "GET").
+     */
+    public boolean tokenEquals(int index, String value) {
+        return index < tokenCount && regionEquals(tokenStart[index], tokenEnd[index], value, false);
+    }
+
+    public boolean methodIs(String method) {
+        return tokenEquals(0, method);
+    }
+
+    /**
+     * Status code of a response head, or -1 if the second token is not a three-digit number.
+     */
+    public int statusCode() {
+        if (tokenCount < 2 || tokenEnd[1] - tokenStart[1] != 3) return -1;
+        int code = 0;
+        for (int i = tokenStart[1]; i < tokenEnd[1]; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            code = code * 10 + d;
+        }
+        return code;
+    }
+
+    /**
+     * True if the head declares HTTP/1.1 (request version is the third token, response version the first).
+     */
+    public boolean isHttp11(boolean response) {
+        return tokenEquals(response ? 0 : 2, "HTTP/1.1");
+    }
+
+    public String token(int index) {
+        return index < tokenCount ? ascii(tokenStart[index], tokenEnd[index]) : null;
+    }
+
+    public String startLine() {
+        return tokenCount == 0 ? "" : ascii(tokenStart[0], tokenEnd[tokenCount - 1]);
+    }
+
+    // ---- Header fields ----
+
+    public int headerCount() {
+        return count;
+    }
+
+    /**
+     * Index of the first field whose name matches {@code lowerName} ignoring ASCII case, or -1.
+     */
+    public int indexOf(String lowerName) {
+        for (int i = 0; i < count; i++) {
+            if (regionEquals(nameStart[i], nameEnd[i], lowerName, true)) return i;
+        }
+        return -1;
+    }
+
+    public boolean nameEquals(int index, String lowerName) {
+        return regionEquals(nameStart[index], nameEnd[index], lowerName, true);
+    }
+
+    public int nameStart(int index) {
+        return nameStart[index];
+    }
+
+    public int nameEnd(int index) {
+        return nameEnd[index];
+    }
+
+    public int valueStart(int index) {
+        return valueStart[index];
+    }
+
+    public int valueEnd(int index) {
+        return valueEnd[index];
+    }
+
+    public String value(int index) {
+        return ascii(valueStart[index], valueEnd[index]);
+    }
+
+    public String header(String lowerName) {
+        int i = indexOf(lowerName);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * Parses the field value as a non-negative decimal number, or returns -1.
+     */
+    public long longValue(int index) {
+        int from = valueStart[index], to = valueEnd[index];
+        if (from == to || to - from > 18) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * True if the comma-separated field value contains {@code lowerToken}, ignoring ASCII case.
+     */
+    public boolean valueHasToken(int index, String lowerToken) {
+        int i = valueStart[index], to = valueEnd[index];
+        while (i < to) {
+            while (i < to && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == ',')) i++;
+            int ts = i;
+            while (i < to && buf[i] != ',' && buf[i] != ';') i++;
+            int te = i;
+            while (te > ts && (buf[te - 1] == ' ' || buf[te - 1] == '\t')) te--;
+            if (regionEquals(ts, te, lowerToken, true)) return true;
+            while (i < to && buf[i] != ',') i++;
+        }
+        return false;
+    }
+
+    /**
+     * True if any field named {@code lowerName} contains {@code lowerToken}.
+     */
+    public boolean hasToken(String lowerName, String lowerToken) {
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, lowerName) && valueHasToken(i, lowerToken)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Content-Length of the message, or -1 if absent or invalid.
+     */
+    public long contentLength() {
+        int i = indexOf("content-length");
+        return i < 0 ? -1 : longValue(i);
+    }
+
+    public boolean isChunked() {
+        return hasToken("transfer-encoding", "chunked");
+    }
+
+    /**
+     * Rejects a request whose body framing a proxy could read differently from the origin behind it
+     * (RFC 9112 §6.3): Transfer-Encoding together with Content-Length, a Transfer-Encoding whose final
+     * coding is not chunked, and Content-Length values that are invalid or disagree.
+     */
+    public void checkRequestFraming() throws IOException {
+        long length = -1;
+        int lastEncoding = -1;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, "content-length")) {
+                long v = longValue(i);
+                if (v < 0) throw new IOException("Invalid Content-Length");
+                if (length >= 0 && v != length) throw new IOException("Conflicting Content-Length fields");
+                length = v;
+            } else if (nameEquals(i, "transfer-encoding")) {
+                lastEncoding = i;
+            }
+        }
+        if (lastEncoding < 0) return;
+        if (length >= 0) throw new IOException("Both Transfer-Encoding and Content-Length");
+        int ts = valueStart[lastEncoding], te = valueEnd[lastEncoding];
+        for (int i = ts; i < te; i++) {
+            if (buf[i] == ',') ts = i + 1;
+        }
+        while (ts < te && (buf[ts] == ' ' || buf[ts] == '\t')) ts++;
+        if (!regionEquals(ts, te, "chunked", true)) throw new IOException("Transfer-Encoding does not end in chunked");
+    }
+
+    /**
+     * Whether the connection stays open after this message, per the version default and Connection header.
+     */
+    public boolean isKeepAlive(boolean response) {
+        if (hasToken("connection", "close")) return false;
+        return isHttp11(response) || hasToken("connection", "keep-alive");
+    }
+
+    private boolean regionEquals(int from, int to, String s, boolean ignoreCase) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            int b = buf[from + i] & 0xFF;
+            if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String ascii(int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
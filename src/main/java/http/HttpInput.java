@@ -0,0 +1,262 @@
+package http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffered input for HTTP/1.x messages. Heads are read in bulk and parsed in place by {@link HttpHead};
+ * whatever arrived after the head stays buffered and is served first to the body readers, so no
+ * bytes are lost or copied between header and body handling.
+ * A parsed head's offsets point into this buffer and stay valid only until the next read.
+ * Body relays copy in buffer-sized slices and flush the destination whenever the source has nothing
+ * more ready, so bytes are never held back while waiting on the network.
+ */
+public class HttpInput extends InputStream {
+    public static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int MAX_LINE = 8 * 1024;
+    private static final byte[] RELEASED = new byte[0];
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+
+    public HttpInput(InputStream in) {
+        this(in, BufferPool.shared());
+    }
+
+    /**
+     * Borrows the read buffer from {@code pool}; call {@link #release()} when done with the stream.
+     */
+    public HttpInput(InputStream in, BufferPool pool) {
+        this.in = in;
+        this.pool = pool;
+        this.buf = pool.acquire();
+    }
+
+    /**
+     * Returns the read buffer to its pool. Buffered bytes are discarded.
+     */
+    public void release() {
+        pool.release(buf);
+        buf = RELEASED;
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Reads and parses the next message head.
+     *
+     * @return false if the stream ended cleanly before the first byte of a head
+     */
+    public boolean readHead(HttpHead head) throws IOException {
+        compact();
+        head.reset(buf, 0);
+        while (!head.parse(buf, limit)) {
+            if (limit == buf.length) {
+                if (buf.length >= MAX_HEAD_SIZE) throw new IOException("HTTP head too large");
+                byte[] bigger = new byte[Math.min(buf.length * 2, MAX_HEAD_SIZE)];
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                buf = bigger;
+            }
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n == -1) {
+                if (limit == 0) return false;
+                throw new EOFException("Connection closed inside HTTP head");
+            }
+            limit += n;
+        }
+        pos = head.headEnd();
+        return true;
+    }
+
+    /**
+     * Parses the next message head if it has arrived in full, without reading from the stream.
+     *
+     * @return false, consuming nothing, if the buffered bytes do not hold a complete head
+     */
+    public boolean readBufferedHead(HttpHead head) throws IOException {
+        compact();
+        head.reset(buf, 0);
+        if (!head.parse(buf, limit)) return false;
+        pos = head.headEnd();
+        return true;
+    }
+
+    public int buffered() {
+        return limit - pos;
+    }
+
+    /**
+     * Blocks until at least one byte is buffered, without consuming it; for a persistent connection that
+     * idles between messages.
+     *
+     * @return false if the stream ended first
+     */
+    public boolean awaitData() throws IOException {
+        return pos < limit || fill() > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == limit && fill() == -1) return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos < limit) {
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        // Large reads bypass the buffer.
+        if (len >= buf.length) return in.read(b, off, len);
+        if (fill() == -1) return -1;
+        return read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - pos) + in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Copies exactly {@code length} bytes to {@code out}.
+     */
+    public void relay(OutputStream out, long length) throws IOException {
+        while (length > 0) {
+            if (pos == limit && refill(out) == -1) throw new EOFException("Connection closed with " + length + " body bytes missing");
+            int n = (int) Math.min(limit - pos, length);
+            out.write(buf, pos, n);
+            pos += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copies everything up to end of stream to {@code out}.
+     *
+     * @return number of bytes copied
+     */
+    public long relayToEof(OutputStream out) throws IOException {
+        long total = 0;
+        while (pos < limit || refill(out) != -1) {
+            int n = limit - pos;
+            out.write(buf, pos, n);
+            pos = limit;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Copies one line including its terminator to {@code out}.
+     *
+     * @return length of the line without CRLF
+     */
+    public int relayLine(OutputStream out) throws IOException {
+        int lf = findLineEnd(out);
+        int contentEnd = (lf > pos && buf[lf - 1] == '\r') ? lf - 1 : lf;
+        int length = contentEnd - pos;
+        out.write(buf, pos, lf + 1 - pos);
+        pos = lf + 1;
+        return length;
+    }
+
+    /**
+     * Copies a chunk-size line (with any extensions) to {@code out} and returns the parsed size.
+     */
+    public long relayChunkSize(OutputStream out) throws IOException {
+        int lf = findLineEnd(out);
+        long size = 0;
+        int digits = 0;
+        for (int i = pos; i < lf; i++) {
+            int b = buf[i];
+            int d;
+            if (b >= '0' && b <= '9') d = b - '0';
+            else if (b >= 'a' && b <= 'f') d = b - 'a' + 10;
+            else if (b >= 'A' && b <= 'F') d = b - 'A' + 10;
+            else if (b == ' ' || b == '\t') continue;
+            else break; // ';' extension or CR
+            if (++digits > 15) throw new IOException("Chunk size too large");
+            size = (size << 4) | d;
+        }
+        if (digits == 0) throw new IOException("Malformed chunk size line");
+        out.write(buf, pos, lf + 1 - pos);
+        pos = lf + 1;
+        return size;
+    }
+
+    /**
+     * Relays a complete chunked body: every chunk, the last-chunk and the trailer section.
+     */
+    public void relayChunked(OutputStream out) throws IOException {
+        long size;
+        while ((size = relayChunkSize(out)) > 0) {
+            relay(out, size + 2); // chunk data and its CRLF
+        }
+        while (relayLine(out) > 0) {
+            // Trailer fields, terminated by an empty line.
+        }
+    }
+
+    /**
+     * Returns the index of the next LF, reading more data as needed.
+     */
+    private int findLineEnd(OutputStream out) throws IOException {
+        int scanned = pos;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buf[i] == '\n') return i;
+            }
+            if (limit - pos >= MAX_LINE) throw new IOException("Line too long");
+            int offset = limit - pos;
+            compact();
+            scanned = offset;
+            if (limit == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                buf = bigger;
+            }
+            if (in.available() <= 0) out.flush();
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n == -1) throw new EOFException("Connection closed inside line");
+            limit += n;
+        }
+    }
+
+    /**
+     * Refills the buffer for a relay, first flushing {@code out} if the read is about to block.
+     */
+    private int refill(OutputStream out) throws IOException {
+        if (in.available() <= 0) out.flush();
+        return fill();
+    }
+
+    private int fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n > 0) limit = n;
+        return n;
+    }
+
+    private void compact() {
+        if (pos == 0) return;
+        int remaining = limit - pos;
+        if (remaining > 0) System.arraycopy(buf, pos, buf, 0, remaining);
+        pos = 0;
+        limit = remaining;
+    }
+}
@@ -0,0 +1,222 @@
+package http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The streaming relay shared by VPNClient and the server: copies HTTP bodies (Content-Length, chunked
+ * or read-to-EOF) and raw streams in fixed-size slices through pooled buffers, with flushes coalesced
+ * by {@link FlushingOutput}.
+ */
+public final class Relay {
+    // Request fields that only concern the client-proxy hop; Expect is answered by the proxy itself.
+    private static final List<String> PROXY_ONLY_FIELDS = List.of(
+            "connection", "keep-alive", "proxy-connection", "proxy-authorization", "te", "trailer", "upgrade", "expect");
+    // Response fields that only concern the proxy-client hop, whose persistence the proxy decides itself.
+    private static final List<String> HOP_FIELDS = List.of("connection", "keep-alive", "proxy-connection");
+    private static final List<String> CONDITIONAL_FIELDS = List.of(
+            "if-none-match", "if-modified-since", "if-match", "if-unmodified-since", "if-range");
+    // Media types worth compressing; everything else (images, video, archives, fonts) is already dense.
+    private static final List<String> COMPRESSIBLE_TYPES = List.of(
+            "application/json", "application/javascript", "application/xml", "application/xhtml+xml",
+            "application/x-www-form-urlencoded", "application/wasm", "image/svg+xml", "font/ttf", "font/otf");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private Relay() {
+    }
+
+    /**
+     * Wraps a destination in a coalescing output backed by the shared buffer pool.
+     */
+    public static FlushingOutput output(OutputStream out) {
+        return new FlushingOutput(out, BufferPool.shared());
+    }
+
+    /**
+     * Whether a response with this status to this kind of request carries a body.
+     */
+    public static boolean responseHasBody(boolean headRequest, int statusCode) {
+        return !(headRequest || statusCode / 100 == 1 || statusCode == 204 || statusCode == 304);
+    }
+
+    /**
+     * Whether a status is an interim 1xx response that is followed by another head (101 is final).
+     */
+    public static boolean isInterim(int statusCode) {
+        return statusCode / 100 == 1 && statusCode != 101;
+    }
+
+    /**
+     * Whether a response body is worth compressing: textual media that carries no Content-Encoding yet.
+     */
+    public static boolean isCompressible(HttpHead response) {
+        String encoding = response.header("content-encoding");
+        if (encoding != null && !encoding.isBlank() && !encoding.trim().equalsIgnoreCase("identity")) return false;
+        String type = response.header("content-type");
+        if (type == null) return false;
+        int semicolon = type.indexOf(';');
+        type = (semicolon >= 0 ? type.substring(0, semicolon) : type).trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    /**
+     * Whether a request carries a body; requests without Content-Length or chunked encoding have none.
+     */
+    public static boolean requestHasBody(HttpHead request) {
+        return request.isChunked() || request.contentLength() > 0;
+    }
+
+    /**
+     * Whether the client holds back its body until it sees "100 Continue".
+     */
+    public static boolean expectsContinue(HttpHead request) {
+        return request.hasToken("expect", "100-continue");
+    }
+
+    /**
+     * Writes the head of a request bound for the origin: {@code requestLine}, then the client's header
+     * fields copied straight from the parse buffer minus the proxy-only ones, then the given Connection field.
+     */
+    public static void writeOriginHead(HttpHead request, String requestLine, String connection, OutputStream out) throws IOException {
+        writeOriginHead(request, requestLine, connection, null, out);
+    }
+
+    /**
+     * Like {@link #writeOriginHead(HttpHead, String, String, OutputStream)}, but when {@code conditionalFields}
+     * is non-null the client's own validators are replaced by it (CRLF-terminated lines, possibly empty).
+     * The response cache uses this to revalidate its copy, or to fetch a complete one.
+     */
+    public static void writeOriginHead(HttpHead request, String requestLine, String connection,
+                                       String conditionalFields, OutputStream out) throws IOException {
+        out.write(requestLine.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        byte[] buf = request.array();
+        for (int i = 0; i < request.headerCount(); i++) {
+            if (isProxyOnly(request, i)) continue;
+            if (conditionalFields != null && isConditional(request, i)) continue;
+            out.write(buf, request.nameStart(i), request.valueEnd(i) - request.nameStart(i));
+            out.write(CRLF);
+        }
+        String tail = (conditionalFields == null ? "" : conditionalFields) + "Connection: " + connection + "\r\n\r\n";
+        out.write(tail.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Writes a response head for the local client: the status line and the origin's header fields minus
+     * the hop-by-hop ones, then the given Connection field.
+     */
+    public static void writeClientHead(HttpHead response, String connection, OutputStream out) throws IOException {
+        out.write(response.startLine().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(CRLF);
+        byte[] buf = response.array();
+        for (int i = 0; i < response.headerCount(); i++) {
+            if (isHopField(response, i)) continue;
+            out.write(buf, response.nameStart(i), response.valueEnd(i) - response.nameStart(i));
+            out.write(CRLF);
+        }
+        out.write(("Connection: " + connection + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean isHopField(HttpHead response, int index) {
+        for (String name : HOP_FIELDS) {
+            if (response.nameEquals(index, name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether header field {@code index} makes the request conditional (If-None-Match and friends).
+     */
+    public static boolean isConditional(HttpHead request, int index) {
+        for (String name : CONDITIONAL_FIELDS) {
+            if (request.nameEquals(index, name)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isProxyOnly(HttpHead request, int index) {
+        for (String name : PROXY_ONLY_FIELDS) {
+            if (request.nameEquals(index, name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Relays the body following {@code head}, which must be the head most recently read from {@code in}.
+     *
+     * @return true if the body was self-delimited, i.e. the connection is still usable afterwards
+     */
+    public static boolean body(HttpInput in, HttpHead head, boolean hasBody, OutputStream out) throws IOException {
+        if (!hasBody) {
+            // No body follows.
+        } else if (head.isChunked()) {
+            in.relayChunked(out);
+        } else if (head.contentLength() >= 0) {
+            in.relay(out, head.contentLength());
+        } else {
+            // No Content-Length and not chunked; forward until end of stream.
+            in.relayToEof(out);
+            out.flush();
+            return false;
+        }
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Copies a raw stream to end of file through a pooled buffer, flushing whenever the source would block.
+     *
+     * @return number of bytes copied
+     */
+    public static long stream(InputStream in, OutputStream out) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        try {
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                total += n;
+                if (in.available() <= 0) out.flush();
+            }
+            out.flush();
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Like {@link #stream}, but frames the copy with chunked encoding, one chunk per read, and ends it
+     * with the last-chunk, so the receiver can tell a complete body from a truncated one.
+     *
+     * @return number of body bytes copied
+     */
+    public static long streamChunked(InputStream in, OutputStream out) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        try {
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (n == 0) continue;
+                out.write(Integer.toHexString(n).getBytes(StandardCharsets.ISO_8859_1));
+                out.write(CRLF);
+                out.write(buffer, 0, n);
+                out.write(CRLF);
+                total += n;
+                if (in.available() <= 0) out.flush();
+            }
+            out.write(LAST_CHUNK);
+            out.flush();
+            return total;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
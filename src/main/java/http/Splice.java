@@ -0,0 +1,98 @@
+package http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Full-duplex byte splice used once a CONNECT tunnel is established: both directions are copied
+ * concurrently through pooled buffers with no HTTP parsing. End of stream on one side is passed on as
+ * a half-close of the other, so protocols that shut down one direction early keep working.
+ */
+public final class Splice {
+
+    /**
+     * One side of a splice.
+     *
+     * @param in            bytes arriving from this side
+     * @param out           bytes going to this side
+     * @param shutdownOutput signals end of stream to this side while still reading from it
+     * @param close         releases this side completely
+     */
+    public record Endpoint(InputStream in, OutputStream out, Closeable shutdownOutput, Closeable close) {
+    }
+
+    private Splice() {
+    }
+
+    /**
+     * Copies {@code a -> b} on the calling thread and {@code b -> a} on {@code executor} until both
+     * directions have ended, then closes both endpoints. An error in either direction tears down both.
+     */
+    public static void duplex(Endpoint a, Endpoint b, Executor executor) throws IOException {
+        FutureTask<Void> reverse = new FutureTask<>(() -> {
+            pump(b, a);
+            return null;
+        });
+        executor.execute(reverse);
+        try {
+            pump(a, b);
+            await(reverse);
+        } finally {
+            reverse.cancel(true);
+            closeQuietly(a.close());
+            closeQuietly(b.close());
+        }
+    }
+
+    /**
+     * Copies one direction to end of stream and half-closes the destination.
+     */
+    private static void pump(Endpoint from, Endpoint to) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        try {
+            InputStream in = from.in();
+            OutputStream out = to.out();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                // Interactive protocols (TLS handshakes) need every read passed on immediately.
+                if (in.available() <= 0) out.flush();
+            }
+            out.flush();
+            to.shutdownOutput().close();
+        } catch (IOException e) {
+            // Unblock the opposite direction, which is most likely waiting on a read.
+            closeQuietly(from.close());
+            closeQuietly(to.close());
+            throw e;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private static void await(Future<Void> direction) throws IOException {
+        try {
+            direction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splicing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
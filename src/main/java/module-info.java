@@ -3,6 +3,8 @@ module com.example.vpn {
     requires javafx.fxml;
     requires java.desktop;
     requires java.net.http;
+    requires java.management;
+    requires java.naming;
 
 
     opens com.example.vpn to javafx.fxml;
@@ -0,0 +1,161 @@
+package server;
+
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for both server engines, so that a connection storm or a slow upstream degrades
+ * service instead of exhausting threads and memory.
+ *
+ * Connections are admitted up to a global and a per-address cap; beyond that the acceptor resets them
+ * straight away, before any TLS work. Requests (tunnel streams) are admitted up to an adaptive
+ * concurrency limit driven by upstream latency, in the spirit of a gradient limiter: while the recent
+ * latency stays close to its long-term baseline the limit grows, and when it degrades the limit shrinks
+ * in proportion. Rejected requests get an immediate 503 written by the tunnel's reader thread (or event
+ * loop), without starting a worker for them.
+ *
+ * Tunables (system properties): vpn.admission.maxConnections (10000), vpn.admission.maxPerAddress (100),
+ * vpn.admission.queue (256, blocking engine handshake queue), vpn.admission.handshakeWorkers (2 per core),
+ * vpn.admission.initialLimit (200), vpn.admission.minLimit (20), vpn.admission.maxLimit (5000),
+ * vpn.admission.tolerance (2.0, latency growth over the baseline that is taken as normal).
+ */
+final class AdmissionControl {
+    static final int MAX_CONNECTIONS = Integer.getInteger("vpn.admission.maxConnections", 10_000);
+    static final int MAX_PER_ADDRESS = Integer.getInteger("vpn.admission.maxPerAddress", 100);
+    static final int QUEUE = Integer.getInteger("vpn.admission.queue", 256);
+    static final int HANDSHAKE_WORKERS = Integer.getInteger("vpn.admission.handshakeWorkers",
+            2 * Runtime.getRuntime().availableProcessors());
+    private static final int INITIAL_LIMIT = Integer.getInteger("vpn.admission.initialLimit", 200);
+    private static final int MIN_LIMIT = Integer.getInteger("vpn.admission.minLimit", 20);
+    private static final int MAX_LIMIT = Integer.getInteger("vpn.admission.maxLimit", 5000);
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("vpn.admission.tolerance", "2.0"));
+    // Weights of one latency sample in the short- and long-term averages, and of a new limit estimate.
+    private static final double SHORT_WEIGHT = 0.1;
+    private static final double LONG_WEIGHT = 0.005;
+    private static final double SMOOTHING = 0.2;
+
+    static final byte[] OVERLOADED = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "Retry-After: 1\r\n"
+            + "Connection: close\r\n\r\n"
+            + "Service Unavailable: VPN server overloaded\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<String, Integer> perAddress = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit = INITIAL_LIMIT;
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    // Latency averages in nanos, guarded by this.
+    private double shortLatency;
+    private double longLatency;
+    private double estimate = INITIAL_LIMIT;
+
+    /**
+     * Admits a connection from {@code address}, or returns null if a cap is reached.
+     */
+    Permit admit(String address) {
+        if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+            return null;
+        }
+        boolean[] admitted = new boolean[1];
+        perAddress.compute(address, (a, count) -> {
+            int n = count == null ? 0 : count;
+            if (n >= MAX_PER_ADDRESS) return count;
+            admitted[0] = true;
+            return n + 1;
+        });
+        if (!admitted[0]) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+            return null;
+        }
+        return new Permit(address);
+    }
+
+    private void release(String address) {
+        connections.decrementAndGet();
+        perAddress.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Refuses a connection without a handshake: an abortive close, so it leaves no TIME_WAIT behind.
+     */
+    void reject(Socket socket) {
+        try (socket) {
+            socket.setSoLinger(true, 0);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Claims a slot for one request; false means the server is over its limit and should answer 503.
+     */
+    boolean tryStartRequest() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                rejectedRequests.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void requestDone() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Feeds one upstream latency sample (time to first response byte, or to connect for CONNECT).
+     */
+    synchronized void onLatency(long nanos) {
+        if (longLatency == 0) {
+            shortLatency = longLatency = nanos;
+            return;
+        }
+        shortLatency += (nanos - shortLatency) * SHORT_WEIGHT;
+        longLatency += (nanos - longLatency) * LONG_WEIGHT;
+        // Recover the baseline quickly once latency drops again.
+        if (shortLatency < longLatency) longLatency = shortLatency;
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        double next = estimate * gradient;
+        // Grow only while the limit is actually being used; headroom of sqrt(limit) lets it probe upwards.
+        if (gradient == 1.0 && inFlight.get() >= estimate / 2) next += Math.sqrt(estimate);
+        estimate = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, estimate * (1 - SMOOTHING) + next * SMOOTHING));
+        limit = (int) estimate;
+    }
+
+    /**
+     * Current state, e.g. "limit 180, 12 in flight, 340 connections, rejected 0 connections / 5 requests".
+     */
+    String report() {
+        return "limit " + limit + ", " + inFlight.get() + " in flight, " + connections.get() + " connections, rejected "
+                + rejectedConnections.sum() + " connections / " + rejectedRequests.sum() + " requests";
+    }
+
+    /**
+     * An admitted connection; release it exactly once when the connection ends (extra calls are ignored).
+     */
+    final class Permit {
+        private final String address;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String address) {
+            this.address = address;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) AdmissionControl.this.release(address);
+        }
+    }
+}
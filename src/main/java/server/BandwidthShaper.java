@@ -0,0 +1,246 @@
+package server;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token-bucket bandwidth shaping of the data sent to clients. Each user (client certificate CN when the
+ * client presented one, otherwise its address) has a bucket, and an optional global bucket caps the
+ * server as a whole. With a global limit, the active users share it fairly: each user's rate is capped
+ * at the global rate divided by the number of users that sent data within the last second, so one bulk
+ * downloader cannot starve the rest, and bandwidth left by idle users is redistributed.
+ *
+ * Buckets follow the GCRA formulation (a "theoretical arrival time" advanced by a CAS per chunk), so
+ * there are no locks, and a quiet user keeps a burst allowance: short, interactive responses go through
+ * without waiting even while bulk transfers are being paced. Senders pay after each chunk, which keeps
+ * the non-blocking engine simple and bounds any overshoot to one chunk.
+ *
+ * Tunables (system properties, rates in bytes per second with optional k/m/g suffix, 0 = unlimited):
+ * vpn.shape.global (0), vpn.shape.user (0), vpn.shape.users (per-user overrides, e.g.
+ * "10.0.0.7=512k,alice=4m"), vpn.shape.burstMillis (250).
+ */
+final class BandwidthShaper {
+    private static final long GLOBAL_RATE = parseRate(System.getProperty("vpn.shape.global", "0"));
+    private static final long USER_RATE = parseRate(System.getProperty("vpn.shape.user", "0"));
+    private static final Map<String, Long> USER_RATES = parseUserRates(System.getProperty("vpn.shape.users", ""));
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("vpn.shape.burstMillis", 250));
+    // A user counts as active for fair sharing if it sent data this recently.
+    private static final long ACTIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Chunk size for blocking writers, so pacing stays smooth.
+    private static final int CHUNK = 16 * 1024;
+
+    private final Bucket global = GLOBAL_RATE > 0 ? new Bucket(GLOBAL_RATE) : null;
+    private final Map<String, Share> shares = new ConcurrentHashMap<>();
+    private final AtomicLong nextRefresh = new AtomicLong(System.nanoTime());
+
+    boolean enabled() {
+        return GLOBAL_RATE > 0 || USER_RATE > 0 || !USER_RATES.isEmpty();
+    }
+
+    /**
+     * Human-readable configuration, e.g. "global 10.0 MB/s, per user 2.0 MB/s, 1 override".
+     */
+    String describe() {
+        return "global " + rate(GLOBAL_RATE) + ", per user " + rate(USER_RATE) + ", " + USER_RATES.size() + " override(s)";
+    }
+
+    /**
+     * The share of the user behind a connection; release it when the connection closes.
+     */
+    Share open(String user) {
+        // Counted inside compute, so a concurrent release cannot drop the share from the map meanwhile.
+        return shares.compute(user, (name, existing) -> {
+            Share share = existing != null ? existing : new Share(name);
+            share.connections.incrementAndGet();
+            return share;
+        });
+    }
+
+    /**
+     * User identity for shaping: the CN of the client certificate if there is one, else the address.
+     */
+    static String identity(SSLSession session, String address) {
+        try {
+            String dn = session.getPeerPrincipal().getName();
+            for (Rdn rdn : new LdapName(dn).getRdns()) {
+                if (rdn.getType().equalsIgnoreCase("CN")) return rdn.getValue().toString();
+            }
+            return dn;
+        } catch (SSLPeerUnverifiedException | InvalidNameException e) {
+            return address;
+        }
+    }
+
+    /**
+     * Recomputes the fair share of every user from the number of active users; at most every 100 ms.
+     */
+    private void refresh(long now) {
+        long due = nextRefresh.get();
+        if (now - due < 0 || !nextRefresh.compareAndSet(due, now + REFRESH_NANOS)) return;
+        int active = 0;
+        for (Share share : shares.values()) {
+            if (now - share.lastActive < ACTIVE_NANOS) active++;
+        }
+        long fair = global == null ? 0 : GLOBAL_RATE / Math.max(active, 1);
+        for (Share share : shares.values()) {
+            long rate = share.limit;
+            if (fair > 0) rate = rate > 0 ? Math.min(rate, fair) : fair;
+            share.bucket.setRate(rate);
+        }
+    }
+
+    /**
+     * One user's bucket, shared by all of that user's connections.
+     */
+    final class Share {
+        private final String user;
+        private final long limit;
+        private final Bucket bucket;
+        private final AtomicLong connections = new AtomicLong();
+        private volatile long lastActive;
+
+        private Share(String user) {
+            this.user = user;
+            this.limit = USER_RATES.getOrDefault(user.toLowerCase(Locale.ROOT), USER_RATE);
+            this.bucket = new Bucket(limit > 0 ? limit : GLOBAL_RATE);
+            this.lastActive = System.nanoTime() - ACTIVE_NANOS;
+        }
+
+        /**
+         * Charges {@code bytes} that were just sent and returns how long (nanos) the sender should pause
+         * before sending more; 0 means carry on.
+         */
+        long charge(long bytes) {
+            long now = System.nanoTime();
+            lastActive = now;
+            refresh(now);
+            long wait = bucket.charge(bytes, now);
+            if (global != null) wait = Math.max(wait, global.charge(bytes, now));
+            return wait;
+        }
+
+        /**
+         * Wraps a blocking output so that writes are paced by this share.
+         */
+        OutputStream output(OutputStream out) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    pause(charge(1));
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int n = Math.min(len, CHUNK);
+                        out.write(b, off, n);
+                        off += n;
+                        len -= n;
+                        pause(charge(n));
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        private void pause(long nanos) throws IOException {
+            if (nanos <= 0) return;
+            long deadline = System.nanoTime() + nanos;
+            while ((nanos = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, nanos);
+                if (Thread.interrupted()) throw new InterruptedIOException("Interrupted while shaping " + user);
+            }
+        }
+
+        void release() {
+            // Atomic with open(): the share leaves the map only while no connection holds it.
+            shares.computeIfPresent(user, (name, share) -> share.connections.decrementAndGet() == 0 ? null : share);
+        }
+    }
+
+    /**
+     * Lock-free GCRA token bucket. {@code tat} is the time at which the bucket would be full again; a
+     * charge that moves it further than the burst allowance into the future has to wait the excess.
+     */
+    private static final class Bucket {
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+        private volatile double nanosPerByte;
+        private volatile long burstNanos;
+
+        Bucket(long bytesPerSecond) {
+            setRate(bytesPerSecond);
+        }
+
+        void setRate(long bytesPerSecond) {
+            nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+            // At least one chunk of burst, so even slow users can send a whole frame without stalling.
+            burstNanos = Math.max(BURST_NANOS, (long) (CHUNK * nanosPerByte));
+        }
+
+        long charge(long bytes, long now) {
+            double perByte = nanosPerByte;
+            if (perByte == 0) return 0;
+            long cost = (long) (bytes * perByte);
+            long prev;
+            long next;
+            do {
+                prev = tat.get();
+                next = Math.max(prev, now) + cost;
+            } while (!tat.compareAndSet(prev, next));
+            return Math.max(0, next - now - burstNanos);
+        }
+    }
+
+    static long parseRate(String value) {
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        if (v.isEmpty()) return 0;
+        long unit = switch (v.charAt(v.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        if (unit > 1) v = v.substring(0, v.length() - 1);
+        return (long) (Double.parseDouble(v) * unit);
+    }
+
+    private static Map<String, Long> parseUserRates(String spec) {
+        Map<String, Long> rates = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int eq = entry.lastIndexOf('=');
+            if (eq <= 0) continue;
+            rates.put(entry.substring(0, eq).trim().toLowerCase(Locale.ROOT), parseRate(entry.substring(eq + 1)));
+        }
+        return rates;
+    }
+
+    private static String rate(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) return "unlimited";
+        if (bytesPerSecond < 1024 * 1024) return String.format("%.1f KB/s", bytesPerSecond / 1024.0);
+        return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,454 @@
+package server;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Live traffic metrics of the server: one entry per tunnel connection, aggregated per user (client
+ * address, so several connections from one address share a row) and per origin host. Counters are
+ * striped ({@link LongAdder}) so request threads and event loops never contend on them; readers such as
+ * the GUI dashboard and JMX clients sum them on demand. Every entry is published as an MXBean under the
+ * "vpn" domain: vpn:type=Connection,id=N, vpn:type=User,name=..., vpn:type=Origin,name=....
+ *
+ * Latency is the time from forwarding a request to the first response byte (for CONNECT, the time to
+ * connect to the origin). Every latency sample is also passed to the listener given at construction.
+ *
+ * Tunables (system properties): vpn.metrics.jmx (true), vpn.metrics.maxOrigins (1000; further hosts
+ * are counted under "(other)"), vpn.metrics.userIdleSeconds (600; a user without connections for that
+ * long is dropped, with its bean, when a later connection opens).
+ */
+public final class ConnectionRegistry {
+    private static final boolean JMX = Boolean.parseBoolean(System.getProperty("vpn.metrics.jmx", "true"));
+    private static final int MAX_ORIGINS = Integer.getInteger("vpn.metrics.maxOrigins", 1000);
+    private static final String OTHER_ORIGINS = "(other)";
+    private static final long USER_IDLE_NANOS =
+            TimeUnit.SECONDS.toNanos(Long.getLong("vpn.metrics.userIdleSeconds", 600));
+
+    public interface ConnectionMXBean {
+        long getId();
+
+        String getUser();
+
+        String getEngine();
+
+        long getConnectedSince();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getRequests();
+
+        long getActiveStreams();
+
+        long getLatencyP50Millis();
+
+        long getLatencyP99Millis();
+
+        double getLatencyMeanMillis();
+    }
+
+    public interface UserMXBean {
+        String getUser();
+
+        long getConnections();
+
+        long getTotalConnections();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getRequests();
+
+        long getActiveStreams();
+
+        long getLatencyP50Millis();
+
+        long getLatencyP99Millis();
+
+        double getLatencyMeanMillis();
+    }
+
+    public interface OriginMXBean {
+        String getHost();
+
+        long getRequests();
+
+        long getErrors();
+
+        long getLatencyP50Millis();
+
+        long getLatencyP99Millis();
+
+        double getLatencyMeanMillis();
+    }
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<String, Origin> origins = new ConcurrentHashMap<>();
+    private final LongConsumer latencyListener;
+    private final AtomicLong lastUserSweep = new AtomicLong(System.nanoTime());
+
+    ConnectionRegistry(LongConsumer latencyListener) {
+        this.latencyListener = latencyListener;
+        // Starting the platform MBean server takes a good part of startup; do it off the path to listening.
+        if (JMX) Thread.ofPlatform().daemon().name("vpn-jmx-init").start(Jmx::server);
+    }
+
+    /**
+     * Registers a new tunnel connection; its byte counts are read from the given suppliers.
+     */
+    Connection open(String userAddress, String engine, LongSupplier bytesIn, LongSupplier bytesOut) {
+        evictIdleUsers();
+        // Held inside compute, so a concurrent sweep cannot drop the user meanwhile.
+        User user = users.compute(userAddress, (address, existing) -> {
+            User held = existing != null ? existing
+                    : register(new User(address), "type=User,name=" + ObjectName.quote(address));
+            held.holders.incrementAndGet();
+            return held;
+        });
+        Connection connection = new Connection(nextId.getAndIncrement(), user, engine, bytesIn, bytesOut);
+        user.live.add(connection);
+        user.totalConnections.increment();
+        connections.put(connection.id, connection);
+        register(connection, "type=Connection,id=" + connection.id);
+        return connection;
+    }
+
+    /**
+     * Drops the users that have had no connection for the idle time, at most once per that time.
+     */
+    private void evictIdleUsers() {
+        long now = System.nanoTime();
+        long last = lastUserSweep.get();
+        if (now - last < USER_IDLE_NANOS || !lastUserSweep.compareAndSet(last, now)) return;
+        for (String address : users.keySet()) {
+            users.computeIfPresent(address, (key, user) -> {
+                if (user.holders.get() > 0 || now - user.idleSince < USER_IDLE_NANOS) return user;
+                unregister(user.objectName);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Metrics of an origin host, e.g. "example.com" or "example.com:8443".
+     */
+    Origin origin(String host) {
+        String key = host == null ? OTHER_ORIGINS : host.toLowerCase(Locale.ROOT);
+        Origin origin = origins.get(key);
+        if (origin != null) return origin;
+        if (origins.size() >= MAX_ORIGINS) key = OTHER_ORIGINS;
+        return origins.computeIfAbsent(key,
+                name -> register(new Origin(name), "type=Origin,name=" + ObjectName.quote(name)));
+    }
+
+    public List<ConnectionMXBean> connections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    public List<UserMXBean> users() {
+        return new ArrayList<>(users.values());
+    }
+
+    public List<OriginMXBean> origins() {
+        return new ArrayList<>(origins.values());
+    }
+
+    /**
+     * Forgets everything and unregisters the MBeans; called when the server starts.
+     */
+    void clear() {
+        connections.values().forEach(connection -> unregister(connection.objectName));
+        users.values().forEach(user -> unregister(user.objectName));
+        origins.values().forEach(origin -> unregister(origin.objectName));
+        connections.clear();
+        users.clear();
+        origins.clear();
+    }
+
+    private <T extends Entry> T register(T entry, String properties) {
+        if (!JMX) return entry;
+        try {
+            entry.objectName = new ObjectName("vpn:" + properties);
+            Jmx.server().registerMBean(entry, entry.objectName);
+        } catch (JMException e) {
+            // Metrics stay available to the GUI even if JMX refuses the bean.
+            entry.objectName = null;
+        }
+        return entry;
+    }
+
+    private void unregister(ObjectName name) {
+        if (!JMX || name == null) return;
+        try {
+            Jmx.server().unregisterMBean(name);
+        } catch (JMException ignored) {
+        }
+    }
+
+    /**
+     * Holds the platform MBean server, which is only started when JMX is on.
+     */
+    private static final class Jmx {
+        private static final MBeanServer SERVER = ManagementFactory.getPlatformMBeanServer();
+
+        static MBeanServer server() {
+            return SERVER;
+        }
+    }
+
+    private abstract static class Entry {
+        ObjectName objectName;
+        final LongAdder requests = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getLatencyP50Millis() {
+            return latency.percentileMillis(50);
+        }
+
+        public long getLatencyP99Millis() {
+            return latency.percentileMillis(99);
+        }
+
+        public double getLatencyMeanMillis() {
+            return latency.meanMillis();
+        }
+    }
+
+    /**
+     * One tunnel connection. The handler reports streams and latencies; bytes come from the transport.
+     */
+    final class Connection extends Entry implements ConnectionMXBean {
+        private final long id;
+        private final User user;
+        private final String engine;
+        private final long since = System.currentTimeMillis();
+        private final LongSupplier bytesIn;
+        private final LongSupplier bytesOut;
+        private final LongAdder activeStreams = new LongAdder();
+        private boolean closed = false;
+
+        private Connection(long id, User user, String engine, LongSupplier bytesIn, LongSupplier bytesOut) {
+            this.id = id;
+            this.user = user;
+            this.engine = engine;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        /**
+         * A stream carrying one request (or CONNECT tunnel) has started.
+         */
+        void streamOpened() {
+            requests.increment();
+            user.requests.increment();
+            activeStreams.increment();
+        }
+
+        void streamClosed() {
+            activeStreams.decrement();
+        }
+
+        void upstreamLatency(Origin origin, long nanos) {
+            latency.record(nanos);
+            user.latency.record(nanos);
+            origin.requests.increment();
+            origin.latency.record(nanos);
+            latencyListener.accept(nanos);
+        }
+
+        void upstreamFailed(Origin origin) {
+            origin.requests.increment();
+            origin.errors.increment();
+        }
+
+        /**
+         * Wraps the response output so that the first byte written records the latency of {@code origin}.
+         */
+        OutputStream timeFirstByte(OutputStream out, Origin origin) {
+            long start = System.nanoTime();
+            return new OutputStream() {
+                private boolean timed = false;
+
+                private void time() {
+                    if (timed) return;
+                    timed = true;
+                    upstreamLatency(origin, System.nanoTime() - start);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    time();
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (len > 0) time();
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        /**
+         * Removes the connection, keeping its byte totals in its user's figures.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+            }
+            user.closedBytesIn.add(bytesIn.getAsLong());
+            user.closedBytesOut.add(bytesOut.getAsLong());
+            user.live.remove(this);
+            user.idleSince = System.nanoTime();
+            user.holders.decrementAndGet();
+            connections.remove(id);
+            unregister(objectName);
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getUser() {
+            return user.address;
+        }
+
+        @Override
+        public String getEngine() {
+            return engine;
+        }
+
+        @Override
+        public long getConnectedSince() {
+            return since;
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.getAsLong();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.getAsLong();
+        }
+
+        @Override
+        public long getActiveStreams() {
+            return activeStreams.sum();
+        }
+    }
+
+    /**
+     * All connections from one client address, live and closed.
+     */
+    static final class User extends Entry implements UserMXBean {
+        private final String address;
+        private final Set<Connection> live = ConcurrentHashMap.newKeySet();
+        private final LongAdder totalConnections = new LongAdder();
+        private final LongAdder closedBytesIn = new LongAdder();
+        private final LongAdder closedBytesOut = new LongAdder();
+        // Connections opened and not yet closed; unlike live, counted before the connection exists.
+        private final AtomicInteger holders = new AtomicInteger();
+        private volatile long idleSince = System.nanoTime();
+
+        private User(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getUser() {
+            return address;
+        }
+
+        @Override
+        public long getConnections() {
+            return live.size();
+        }
+
+        @Override
+        public long getTotalConnections() {
+            return totalConnections.sum();
+        }
+
+        @Override
+        public long getBytesIn() {
+            long total = closedBytesIn.sum();
+            for (Connection connection : live) total += connection.getBytesIn();
+            return total;
+        }
+
+        @Override
+        public long getBytesOut() {
+            long total = closedBytesOut.sum();
+            for (Connection connection : live) total += connection.getBytesOut();
+            return total;
+        }
+
+        @Override
+        public long getActiveStreams() {
+            long total = 0;
+            for (Connection connection : live) total += connection.getActiveStreams();
+            return total;
+        }
+    }
+
+    /**
+     * Requests forwarded to one origin host, from all users.
+     */
+    static final class Origin extends Entry implements OriginMXBean {
+        private final String host;
+        private final LongAdder errors = new LongAdder();
+
+        private Origin(String host) {
+            this.host = host;
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+}
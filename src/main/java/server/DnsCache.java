@@ -0,0 +1,287 @@
+package server;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-side name resolution cache. Lookups run on a small daemon pool and their results (including
+ * failures) are kept for a configurable TTL; an entry that is still in use near the end of its TTL is
+ * refreshed in the background, so hot hosts never wait on DNS. {@link #connect} races connections to
+ * the resolved addresses happy-eyeballs style (RFC 8305): families are interleaved and each further
+ * attempt starts after a short stagger or as soon as the previous one fails.
+ *
+ * Expired entries are swept out as lookups come in, and at most vpn.dns.maxEntries names are kept;
+ * beyond that, names are resolved without being cached until a sweep makes room.
+ *
+ * Tunables (system properties): vpn.dns.ttlSeconds (60), vpn.dns.negativeTtlSeconds (10),
+ * vpn.dns.staggerMs (250), vpn.dns.maxEntries (10000).
+ */
+class DnsCache {
+    private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("vpn.dns.ttlSeconds", 60));
+    private static final long NEGATIVE_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("vpn.dns.negativeTtlSeconds", 10));
+    static final long STAGGER_MS = Long.getLong("vpn.dns.staggerMs", 250);
+    private static final int MAX_ENTRIES = Integer.getInteger("vpn.dns.maxEntries", 10_000);
+    // Entries used within this last part of their TTL are refreshed ahead of expiry.
+    private static final long PREFETCH_WINDOW_NANOS = TTL_NANOS / 5;
+
+    private static final DnsCache SHARED = new DnsCache();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService lookups = Executors.newFixedThreadPool(4, daemon("vpn-dns"));
+    private final ExecutorService connectors = Executors.newCachedThreadPool(daemon("vpn-connect"));
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    static DnsCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Resolves {@code host} without blocking the caller. Completes exceptionally with
+     * {@link UnknownHostException} for names that do not resolve.
+     */
+    CompletableFuture<InetAddress[]> resolve(String host) {
+        String key = host.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        evictExpired(now, false);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.result.isDone() && now - entry.expiresAt < 0) {
+            if (entry.result.isCompletedExceptionally()) {
+                negativeHits.increment();
+            } else {
+                hits.increment();
+                if (entry.expiresAt - now < PREFETCH_WINDOW_NANOS) prefetch(key, entry);
+            }
+            return entry.result;
+        }
+        if (entry != null && !entry.result.isDone()) {
+            // A lookup for this name is already running; share it. The caller still waits on DNS.
+            misses.increment();
+            coalesced.increment();
+            return entry.result;
+        }
+        misses.increment();
+        Entry fresh = new Entry();
+        if (entry == null && entries.size() >= MAX_ENTRIES) {
+            evictExpired(now, true);
+            if (entries.size() >= MAX_ENTRIES) {
+                // Still full of live names: answer this one without keeping it.
+                lookups.execute(() -> complete(key, fresh));
+                return fresh.result;
+            }
+        }
+        Entry raced = entry == null ? entries.putIfAbsent(key, fresh)
+                : (entries.replace(key, entry, fresh) ? null : entries.get(key));
+        if (raced != null) return raced.result;
+        lookups.execute(() -> complete(key, fresh));
+        return fresh.result;
+    }
+
+    /**
+     * Drops the entries whose TTL has run out, at most once per negative TTL unless {@code force}d.
+     */
+    private void evictExpired(long now, boolean force) {
+        long last = lastSweep.get();
+        if (!force && now - last < NEGATIVE_TTL_NANOS || !lastSweep.compareAndSet(last, now)) return;
+        entries.forEach((key, entry) -> {
+            if (entry.result.isDone() && now - entry.expiresAt >= 0 && entries.remove(key, entry)) evictions.increment();
+        });
+    }
+
+    /**
+     * Cache statistics, e.g. "812 names, 9120 hits / 640 misses (31 joined a running lookup), 12 negative hits,
+     * 75 prefetches, 301 evicted".
+     */
+    String report() {
+        return entries.size() + " names, " + hits.sum() + " hits / " + misses.sum() + " misses (" + coalesced.sum()
+                + " joined a running lookup), " + negativeHits.sum() + " negative hits, " + prefetches.sum()
+                + " prefetches, " + evictions.sum() + " evicted";
+    }
+
+    /**
+     * Blocking form of {@link #resolve(String)}.
+     */
+    InetAddress[] lookup(String host) throws UnknownHostException {
+        try {
+            return resolve(host).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UnknownHostException unknown) throw unknown;
+            throw new UnknownHostException(host + ": " + e.getCause());
+        }
+    }
+
+    private void prefetch(String key, Entry current) {
+        if (!current.refreshing.compareAndSet(false, true)) return;
+        Entry next = new Entry();
+        prefetches.increment();
+        lookups.execute(() -> {
+            complete(key, next);
+            // Keep serving the old addresses if the refresh failed.
+            if (!next.result.isCompletedExceptionally()) entries.replace(key, current, next);
+        });
+    }
+
+    private void complete(String key, Entry entry) {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(key);
+            entry.expiresAt = System.nanoTime() + TTL_NANOS;
+            entry.result.complete(addresses);
+        } catch (UnknownHostException e) {
+            entry.expiresAt = System.nanoTime() + NEGATIVE_TTL_NANOS;
+            entry.result.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(new UnknownHostException(key + ": " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Opens a TCP connection to {@code host}, racing the resolved addresses and returning the first
+     * socket that connects. The losing attempts are closed.
+     */
+    Socket connect(String host, int port, int timeoutMs) throws IOException {
+        List<InetAddress> order = TargetPolicy.allowed(interleave(lookup(host)));
+        if (order.isEmpty()) throw new IOException("Refusing to connect to local address of " + host);
+        if (order.size() == 1) return open(order.get(0), port, timeoutMs, null);
+
+        Race race = new Race();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        int started = 0;
+        int failed = 0;
+        try {
+            race.start(order.get(started++), port, timeoutMs);
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) throw new SocketTimeoutException("Connect to " + host + ":" + port + " timed out");
+                long wait = started < order.size() ? Math.min(STAGGER_MS, remaining) : remaining;
+                Object result = race.results.poll(wait, TimeUnit.MILLISECONDS);
+                if (result instanceof Socket socket) {
+                    race.win(socket);
+                    return socket;
+                }
+                if (result instanceof IOException e && ++failed == order.size()) throw e;
+                // Stagger elapsed or an attempt failed: bring in the next address.
+                if (started < order.size()) race.start(order.get(started++), port, timeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + host);
+        } finally {
+            race.settle();
+        }
+    }
+
+    private static Socket open(InetAddress address, int port, int timeoutMs, Race race) throws IOException {
+        Socket socket = new Socket();
+        if (race != null) race.track(socket);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Parallel connection attempts for one {@link #connect} call. Once settled, every socket except the
+     * winner is closed, including attempts that only get going afterwards.
+     */
+    private final class Race {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        private final List<Socket> sockets = new ArrayList<>();
+        private Socket winner;
+        private boolean settled = false;
+
+        void start(InetAddress address, int port, int timeoutMs) {
+            connectors.execute(() -> {
+                try {
+                    results.add(open(address, port, timeoutMs, this));
+                } catch (IOException e) {
+                    results.add(e);
+                }
+            });
+        }
+
+        synchronized void track(Socket socket) throws IOException {
+            if (settled) throw new IOException("Connection race already settled");
+            sockets.add(socket);
+        }
+
+        synchronized void win(Socket socket) {
+            winner = socket;
+        }
+
+        synchronized void settle() {
+            settled = true;
+            for (Socket socket : sockets) {
+                if (socket == winner) continue;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Alternates address families, starting with the one the resolver listed first.
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        List<InetAddress> order = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) order.add(first.get(i));
+            if (i < second.size()) order.add(second.get(i));
+        }
+        return order;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static final class Entry {
+        final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long expiresAt;
+    }
+}
@@ -0,0 +1,320 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only index of blocked domains: a trie over the labels of the names read right to left, so
+ * "ads.example.com" is the path com → example → ads and every name under a blocked domain runs through
+ * its node. A lookup takes one step per label from the end of the host name and usually stops at the
+ * second one, where an unlisted site leaves the trie. The nodes are packed into one byte buffer, either
+ * on the heap or memory-mapped from an index file written by {@link #save}, so millions of entries
+ * create no objects, and {@link #match} allocates nothing.
+ *
+ * The children of all nodes share one open-addressing table keyed by (parent, label), probed linearly.
+ * Layout: slot count (i32) padded to one slot, the slots, then the labels. A slot is
+ * the parent's node number (i32, 0 for the root), the label's hash (i32), the label's offset (i32, 0
+ * for a free slot) and the list mask (i32, non-zero where an entry ends); a node's number is its slot
+ * index plus one. A label is its length (u8) and its lower-case bytes.
+ */
+final class DomainTrie {
+    // Each entry carries one bit per list it appears in.
+    static final int MAX_LISTS = 32;
+    private static final byte[] MAGIC = "VPNBLK02".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int SLOT = 16;
+    // Slots are at most this full, so a probe for a missing label ends within a few slots.
+    private static final double LOAD = 0.75;
+    private static final int FNV_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final ByteBuffer nodes;
+    private final int slots;
+    private final String[] lists;
+    private final int entries;
+    private final long stamp;
+
+    private DomainTrie(ByteBuffer nodes, String[] lists, int entries, long stamp) {
+        this.nodes = nodes;
+        this.slots = nodes.getInt(0);
+        this.lists = lists;
+        this.entries = entries;
+        this.stamp = stamp;
+    }
+
+    /**
+     * Names of the lists, in mask bit order.
+     */
+    String[] lists() {
+        return lists.clone();
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    /**
+     * The version of the list files this trie was compiled from, as given to {@link #save}; 0 for a
+     * trie that was not mapped.
+     */
+    long stamp() {
+        return stamp;
+    }
+
+    /**
+     * Bytes taken by the nodes.
+     */
+    int size() {
+        return nodes.capacity();
+    }
+
+    /**
+     * The lists blocking {@code host}, as a mask of list bits, or 0. An entry blocks its own name and
+     * every name under it, so the mask combines every listed suffix of the name, from any list. A port
+     * and a trailing dot are ignored; case is ignored for ASCII letters, and a label with other non-ASCII
+     * characters (not in punycode) matches no entry.
+     */
+    int match(CharSequence host) {
+        int end = host.length();
+        if (end == 0 || host.charAt(0) == '[') return 0;
+        for (int i = end - 1; i >= 0; i--) {
+            char c = host.charAt(i);
+            if (c == ':') {
+                end = i;
+                break;
+            }
+            if (c == '.' || c > '9') break;
+        }
+        if (end > 0 && host.charAt(end - 1) == '.') end--;
+
+        int parent = 0;
+        int mask = 0;
+        for (int i = end; i > 0; ) {
+            // The label before position i, hashed right to left as it is read.
+            int hash = FNV_BASIS;
+            int start = i - 1;
+            for (; start >= 0; start--) {
+                char c = host.charAt(start);
+                if (c == '.') break;
+                int b = lower(c);
+                if (b < 0) return mask;
+                hash = (hash ^ b) * FNV_PRIME;
+            }
+            int slot = find(parent, hash, host, start + 1, i - start - 1);
+            if (slot < 0) return mask;
+            // A listed domain blocks everything under it, but a deeper entry may add other lists.
+            mask |= nodes.getInt(slot + 12);
+            parent = slot / SLOT;
+            i = start;
+        }
+        return mask;
+    }
+
+    /**
+     * Offset of the slot holding the child of {@code parent} labelled {@code host[from, from + length)},
+     * or -1.
+     */
+    private int find(int parent, int hash, CharSequence host, int from, int length) {
+        for (int index = home(parent, hash, slots); ; index = index + 1 == slots ? 0 : index + 1) {
+            int slot = SLOT + index * SLOT;
+            int label = nodes.getInt(slot + 8);
+            if (label == 0) return -1;
+            if (nodes.getInt(slot) == parent && nodes.getInt(slot + 4) == hash && sameLabel(label, host, from, length)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean sameLabel(int label, CharSequence host, int from, int length) {
+        if ((nodes.get(label) & 0xFF) != length) return false;
+        for (int k = 0; k < length; k++) {
+            if ((nodes.get(label + 1 + k) & 0xFF) != lower(host.charAt(from + k))) return false;
+        }
+        return true;
+    }
+
+    private static int lower(char c) {
+        if (c >= 'A' && c <= 'Z') return c + ('a' - 'A');
+        return c < 0x80 ? c : -1;
+    }
+
+    /**
+     * The first slot to probe for a child, scaled onto any slot count without a division.
+     */
+    private static int home(int parent, int hash, int slots) {
+        int x = parent * 0x9E3779B9 ^ hash;
+        x ^= x >>> 16;
+        x *= 0x85EBCA6B;
+        x ^= x >>> 13;
+        x *= 0xC2B2AE35;
+        x ^= x >>> 16;
+        return (int) (((x & 0xFFFFFFFFL) * slots) >>> 32);
+    }
+
+    /**
+     * Writes the index to {@code file} (through a temporary file and a rename, so a server mapping the
+     * old one is not disturbed), recording {@code stamp} to identify the list files it was built from.
+     */
+    void save(Path file, long stamp) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1 + lists.length * 256 + 16);
+            header.put(MAGIC).put((byte) lists.length);
+            for (String list : lists) {
+                byte[] name = list.getBytes(StandardCharsets.UTF_8);
+                if (name.length > 255) throw new IOException("Blocklist name too long: " + list);
+                header.put((byte) name.length).put(name);
+            }
+            header.putLong(stamp).putInt(entries).putInt(nodes.capacity());
+            out.write(header.array(), 0, header.position());
+            ByteBuffer body = nodes.duplicate().clear();
+            byte[] chunk = new byte[64 * 1024];
+            while (body.hasRemaining()) {
+                int n = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps an index written by {@link #save}. The mapping stays valid after the file is replaced.
+     */
+    static DomainTrie map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 16 * 1024));
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                header.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a blocklist index: " + file);
+                String[] lists = new String[header.get() & 0xFF];
+                for (int i = 0; i < lists.length; i++) {
+                    byte[] name = new byte[header.get() & 0xFF];
+                    header.get(name);
+                    lists[i] = new String(name, StandardCharsets.UTF_8);
+                }
+                long stamp = header.getLong();
+                int entries = header.getInt();
+                int length = header.getInt();
+                if (header.position() + (long) length != channel.size()) throw new IOException("Truncated blocklist index: " + file);
+                return new DomainTrie(channel.map(FileChannel.MapMode.READ_ONLY, header.position(), length), lists, entries, stamp);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt blocklist index: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Collects entries in any order, then packs them. Nodes are numbered in creation order here, which
+     * puts every parent before its children, and renumbered by slot when packed.
+     */
+    static final class Builder {
+        private final String[] lists;
+        private int count = 0;
+        private int[] parents = new int[1024];
+        private int[] hashes = new int[1024];
+        private int[] labels = new int[1024];
+        private int[] masks = new int[1024];
+        // Node number per slot, 0 = free; kept at most half full.
+        private int[] table = new int[2048];
+        private byte[] pool = new byte[8192];
+        private int poolLength = 0;
+
+        Builder(String[] lists) {
+            if (lists.length > MAX_LISTS) throw new IllegalArgumentException("At most " + MAX_LISTS + " blocklists");
+            this.lists = lists.clone();
+        }
+
+        /**
+         * Adds a normalized (lower-case ASCII, no empty labels, no trailing dot) domain to list number
+         * {@code list}.
+         */
+        void add(String domain, int list) {
+            int parent = 0;
+            for (int i = domain.length(); i > 0; ) {
+                int hash = FNV_BASIS;
+                int start = i - 1;
+                for (; start >= 0 && domain.charAt(start) != '.'; start--) hash = (hash ^ domain.charAt(start)) * FNV_PRIME;
+                int length = i - start - 1;
+                if (length == 0 || length > 255) return;
+                parent = child(parent, hash, domain, start + 1, length);
+                i = start;
+            }
+            if (parent != 0) masks[parent - 1] |= 1 << list;
+        }
+
+        private int child(int parent, int hash, String domain, int from, int length) {
+            int index = home(parent, hash, table.length);
+            for (; table[index] != 0; index = index + 1 == table.length ? 0 : index + 1) {
+                int node = table[index] - 1;
+                if (parents[node] == parent && hashes[node] == hash && sameLabel(labels[node], domain, from, length)) {
+                    return node + 1;
+                }
+            }
+            if (count == parents.length) {
+                parents = Arrays.copyOf(parents, count * 2);
+                hashes = Arrays.copyOf(hashes, count * 2);
+                labels = Arrays.copyOf(labels, count * 2);
+                masks = Arrays.copyOf(masks, count * 2);
+            }
+            if (poolLength + 1 + length > pool.length) pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolLength + 1 + length));
+            labels[count] = poolLength;
+            pool[poolLength++] = (byte) length;
+            for (int k = 0; k < length; k++) pool[poolLength++] = (byte) domain.charAt(from + k);
+            parents[count] = parent;
+            hashes[count] = hash;
+            table[index] = ++count;
+            if (count * 2 > table.length) rehash();
+            return count;
+        }
+
+        private boolean sameLabel(int label, String domain, int from, int length) {
+            if ((pool[label] & 0xFF) != length) return false;
+            for (int k = 0; k < length; k++) {
+                if (pool[label + 1 + k] != (byte) domain.charAt(from + k)) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            for (int node = 0; node < count; node++) {
+                int index = home(parents[node], hashes[node], table.length);
+                while (table[index] != 0) index = index + 1 == table.length ? 0 : index + 1;
+                table[index] = node + 1;
+            }
+        }
+
+        DomainTrie build() {
+            int capacity = (int) Math.ceil((count + 1) / LOAD);
+            long labelsStart = SLOT + (long) capacity * SLOT;
+            if (labelsStart + poolLength > Integer.MAX_VALUE) throw new IllegalStateException("Blocklists too large");
+            ByteBuffer out = ByteBuffer.allocate((int) labelsStart + poolLength);
+            out.putInt(0, capacity);
+            out.put((int) labelsStart, pool, 0, poolLength);
+            int[] numbers = new int[count];
+            int entries = 0;
+            for (int node = 0; node < count; node++) {
+                int parent = parents[node] == 0 ? 0 : numbers[parents[node] - 1];
+                int index = home(parent, hashes[node], capacity);
+                while (out.getInt(SLOT + index * SLOT + 8) != 0) index = index + 1 == capacity ? 0 : index + 1;
+                int slot = SLOT + index * SLOT;
+                out.putInt(slot, parent);
+                out.putInt(slot + 4, hashes[node]);
+                out.putInt(slot + 8, (int) labelsStart + labels[node]);
+                out.putInt(slot + 12, masks[node]);
+                numbers[node] = index + 1;
+                if (masks[node] != 0) entries++;
+            }
+            return new DomainTrie(out, lists, entries, 0);
+        }
+    }
+}
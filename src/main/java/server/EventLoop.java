@@ -0,0 +1,157 @@
+package server;
+
+import ui.LogLevel;
+import ui.VPNListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded selector loop. All state of the channels registered with a loop is only ever
+ * touched from the loop thread; other threads hand work over through {@link #execute(Handler, Runnable)}.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * Callback attached to every SelectionKey registered with the loop.
+     */
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    private final Selector selector;
+    private final VPNListener ui;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    // Delayed tasks, only touched on the loop thread.
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+    private final Thread thread;
+    // Shared scratch buffer for reads on this loop; handlers copy out what they keep.
+    final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+
+    EventLoop(String name, VPNListener ui) throws IOException {
+        this.ui = ui;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread, waking the selector if necessary. Should the task fail, the
+     * {@code owner} whose state it was working on is closed; null for tasks of the loop itself.
+     */
+    void execute(Handler owner, Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(new Task(owner, task));
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop thread after the given delay; see {@link #execute(Handler, Runnable)}.
+     */
+    void schedule(Handler owner, Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(null, () -> timers.add(new Timer(deadline, new Task(owner, task))));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = next.deadline() - System.nanoTime();
+                    // select(0) would block forever; anything under a millisecond is due now.
+                    if (wait < TimeUnit.MILLISECONDS.toNanos(1)) selector.selectNow();
+                    else selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                }
+                Task task;
+                while ((task = tasks.poll()) != null) {
+                    runGuarded(task);
+                }
+                long now = System.nanoTime();
+                while ((next = timers.peek()) != null && next.deadline() - now <= 0) {
+                    runGuarded(timers.poll().task());
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) handler.handle(key);
+                    } catch (IOException | RuntimeException e) {
+                        handler.close();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                // Selector failure: keep looping unless we were shut down.
+            }
+        }
+    }
+
+    /**
+     * Runs a posted task or due timer. A failure is handled like one in a selected key's handler: the
+     * owner is closed rather than left half-updated, and the loop carries on with its other connections.
+     */
+    private void runGuarded(Task task) {
+        try {
+            task.run().run();
+        } catch (RuntimeException e) {
+            ui.log(LogLevel.ERROR, "❌ Event loop task failed: {}", e.toString());
+            if (task.owner() != null) task.owner().close();
+        }
+    }
+
+    /**
+     * Stops the loop and closes every channel registered with it.
+     */
+    void shutdown() {
+        execute(null, () -> {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    private record Task(Handler owner, Runnable run) {
+    }
+
+    private record Timer(long deadline, Task task) {
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two millisecond buckets (&lt;1 ms, &lt;2 ms, &lt;4 ms, ... up
+ * to about 9 hours). Recording is one striped increment; percentiles are reported as the upper bound of
+ * the bucket they fall in, which is plenty to tell a 20 ms origin from a 2 s one.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS = 25;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        long millis = Math.max(nanos, 0) / 1_000_000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+        buckets[bucket].increment();
+        count.increment();
+        totalMicros.add(Math.max(nanos, 0) / 1_000);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double meanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalMicros.sum() / 1000.0 / n;
+    }
+
+    /**
+     * Upper bound in milliseconds of the bucket holding the given percentile (0-100), or 0 when empty.
+     */
+    long percentileMillis(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
@@ -0,0 +1,843 @@
+package server;
+
+import Security.SSLUtils;
+import http.HttpHead;
+import http.Relay;
+import tunnel.Deadline;
+import tunnel.Frame;
+import tunnel.TimerWheel;
+import tunnel.TunnelStream;
+import ui.LogLevel;
+import ui.VPNListener;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking counterpart of VPNHandler: one TLS tunnel connection driven entirely by an {@link EventLoop}.
+ * Decrypted bytes are split into tunnel frames, each stream's request head is parsed as it arrives and the
+ * origin is reached over its own non-blocking SocketChannel. Origin bytes are relayed back as DATA frames
+ * within the stream's flow-control window; when the client falls behind, origin reads are paused instead
+ * of buffering without bound. Reads are likewise paused, and resumed by a loop timer, while the user is
+ * over its {@link BandwidthShaper} rate. {@link Deadline}s fire on the shared timer wheel and are carried
+ * out on the loop: the handshake and tunnel idle time close the connection, while the header, request
+ * and origin idle deadlines reset the stream concerned.
+ */
+class NioTunnelHandler implements EventLoop.Handler {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_REQUEST_HEAD = 64 * 1024;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Plaintext queued for encryption above which origin reads are paused.
+    private static final int HIGH_WATER = 256 * 1024;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final VPNListener ui;
+    private final String userAddress;
+    private final DnsCache dns;
+    private final ConnectionRegistry registry;
+    private final ConnectionRegistry.Connection metrics;
+    private final BandwidthShaper shaper;
+    private final DomainFilter filter;
+    private final AdmissionControl admission;
+    private final AdmissionControl.Permit permit;
+    // Set once the handshake has identified the user, if shaping is enabled.
+    private BandwidthShaper.Share share;
+    private final TimerWheel.Timeout idle;
+    private TimerWheel.Timeout handshakeDeadline = TimerWheel.Timeout.NONE;
+    // Frame bytes in each direction; written only by the loop thread.
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    private SelectionKey key;
+    private long handshakeStart;
+    private boolean handshakeDone = false;
+
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    private final ByteBuffer appIn;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private boolean closed = false;
+
+    NioTunnelHandler(EventLoop loop, SocketChannel channel, SSLEngine engine, VPNListener ui,
+                     String userAddress, DnsCache dns, ConnectionRegistry registry, BandwidthShaper shaper,
+                     DomainFilter filter, AdmissionControl admission, AdmissionControl.Permit permit) {
+        this.loop = loop;
+        this.channel = channel;
+        this.engine = engine;
+        this.ui = ui;
+        this.userAddress = userAddress;
+        this.dns = dns;
+        this.registry = registry;
+        this.metrics = registry.open(userAddress, "NIO", () -> bytesIn, () -> bytesOut);
+        this.shaper = shaper;
+        this.filter = filter;
+        // Read off the loop thread; a stream opened since would have touched the deadline anyway.
+        this.idle = Deadline.IDLE.arm(streams::isEmpty, () -> loop.execute(this, this::close));
+        this.admission = admission;
+        this.permit = permit;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int appSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        // Room for one partially received frame plus a full decrypted record.
+        this.appIn = ByteBuffer.allocate(appSize + Frame.HEADER_SIZE + Frame.MAX_PAYLOAD);
+    }
+
+    /**
+     * Registers the connection with its loop and starts the TLS handshake. Must run on the loop thread.
+     */
+    void register() throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        handshakeStart = System.currentTimeMillis();
+        handshakeDeadline = Deadline.HANDSHAKE.arm(() -> loop.execute(this, this::close));
+        engine.beginHandshake();
+        flush();
+        updateInterest();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            int n = channel.read(netIn);
+            if (n < 0) {
+                close();
+                return;
+            }
+        }
+        unwrap();
+        if (!closed) {
+            flush();
+            updateInterest();
+        }
+    }
+
+    // ---- TLS ----
+
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            decrypt:
+            while (!closed) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                runDelegatedTasks();
+                checkHandshake(result);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        break decrypt;
+                    case BUFFER_OVERFLOW:
+                        // Drain complete frames to make room; a full buffer after that is a protocol error.
+                        int before = appIn.position();
+                        parseFrames();
+                        if (appIn.position() == before) throw new SSLException("Tunnel frame exceeds buffer");
+                        continue;
+                    case CLOSED:
+                        close();
+                        return;
+                    default:
+                        break;
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                }
+                if (!netIn.hasRemaining()) break;
+                // Handshake output is stuck behind a full socket; OP_WRITE brings us back here.
+                if (result.bytesConsumed() == 0 && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) break;
+            }
+        } finally {
+            netIn.compact();
+        }
+        if (!closed) parseFrames();
+    }
+
+    /**
+     * Encrypts queued plaintext (and any handshake messages) and writes as much as the socket accepts.
+     */
+    private void flush() throws IOException {
+        while (!closed) {
+            if (netOut.position() > 0) {
+                netOut.flip();
+                channel.write(netOut);
+                boolean blocked = netOut.hasRemaining();
+                netOut.compact();
+                if (blocked) return;
+            }
+            ByteBuffer src = pending.isEmpty() ? EMPTY : pending.peekFirst();
+            if (src == EMPTY && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) break;
+            SSLEngineResult result = engine.wrap(src, netOut);
+            runDelegatedTasks();
+            checkHandshake(result);
+            pendingBytes -= result.bytesConsumed();
+            if (src != EMPTY && !src.hasRemaining()) pending.pollFirst();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                close();
+                return;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) continue;
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+        }
+        if (pendingBytes < HIGH_WATER / 2) {
+            for (Stream stream : streams.values()) stream.resumeIfPossible();
+        }
+    }
+
+    private void checkHandshake(SSLEngineResult result) {
+        if (handshakeDone || result.getHandshakeStatus() != HandshakeStatus.FINISHED) return;
+        handshakeDone = true;
+        handshakeDeadline.cancel();
+        boolean resumed = SSLUtils.recordHandshake(engine.getSession(), handshakeStart);
+        if (shaper.enabled()) share = shaper.open(BandwidthShaper.identity(engine.getSession(), userAddress));
+        queueFrame(Frame.SETTINGS, 0, ByteBuffer.allocate(4).putInt(0, Frame.FEATURE_PING));
+        ui.log("🔗 Tunnel established with " + userAddress + (resumed ? " (resumed TLS session)" : ""));
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) return;
+        int ops = SelectionKey.OP_READ;
+        if (netOut.position() > 0) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    // ---- Tunnel frames ----
+
+    private void parseFrames() throws IOException {
+        appIn.flip();
+        try {
+            while (appIn.remaining() >= Frame.HEADER_SIZE) {
+                int start = appIn.position();
+                int length = appIn.getInt(start + 6);
+                if (length < 0 || length > Frame.MAX_PAYLOAD) throw new IOException("Invalid frame length " + length);
+                if (appIn.remaining() < Frame.HEADER_SIZE + length) break;
+                byte type = appIn.get();
+                byte flags = appIn.get();
+                int streamId = appIn.getInt();
+                appIn.getInt();
+                bytesIn += Frame.HEADER_SIZE + length;
+                idle.touch();
+                ByteBuffer payload = appIn.slice(appIn.position(), length);
+                appIn.position(appIn.position() + length);
+                onFrame(type, flags, streamId, payload);
+            }
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    private void onFrame(byte type, byte flags, int streamId, ByteBuffer payload) throws IOException {
+        Stream stream = streams.get(streamId);
+        switch (type) {
+            case Frame.OPEN -> {
+                if (stream != null) throw new IOException("Stream " + streamId + " already open");
+                Stream opened = new Stream(streamId);
+                streams.put(streamId, opened);
+                // Over the concurrency limit: answer 503 at once, before reading the request.
+                if (!opened.admitted) opened.respondOverloaded();
+            }
+            case Frame.DATA -> {
+                if (stream != null) stream.onRequestData(payload);
+            }
+            case Frame.WINDOW_UPDATE -> {
+                if (stream != null) {
+                    stream.sendWindow += payload.getInt(payload.position());
+                    stream.resumeIfPossible();
+                }
+            }
+            case Frame.FIN -> {
+                if (stream != null) stream.onRequestFin();
+            }
+            case Frame.RESET -> {
+                if (stream != null) stream.abort();
+            }
+            // This engine does not compress and never offers to, so the client sends it no compressed frames.
+            case Frame.SETTINGS -> {
+            }
+            case Frame.PING -> {
+                if (payload.remaining() != 8) throw new IOException("Bad PING frame");
+                // Only the client pings; echo it (the payload is its send time).
+                if ((flags & Frame.FLAG_ACK) == 0) queueFrame(Frame.PING, Frame.FLAG_ACK, 0, payload);
+            }
+            default -> throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    private void queueFrame(byte type, int streamId, ByteBuffer data) {
+        queueFrame(type, (byte) 0, streamId, data);
+    }
+
+    private void queueFrame(byte type, byte flags, int streamId, ByteBuffer data) {
+        int len = data == null ? 0 : data.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + len);
+        frame.put(type).put(flags).putInt(streamId).putInt(len);
+        if (data != null) frame.put(data);
+        frame.flip();
+        pending.addLast(frame);
+        pendingBytes += frame.remaining();
+        bytesOut += frame.remaining();
+        idle.touch();
+    }
+
+    private void queueWindowUpdate(int streamId, int increment) {
+        ByteBuffer payload = ByteBuffer.allocate(4).putInt(0, increment);
+        queueFrame(Frame.WINDOW_UPDATE, streamId, payload);
+    }
+
+    /**
+     * Flushes frames queued from an upstream callback and refreshes the tunnel's interest set.
+     */
+    private void flushFromUpstream() {
+        try {
+            flush();
+            updateInterest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        idle.cancel();
+        handshakeDeadline.cancel();
+        for (Stream stream : streams.values()) stream.discard();
+        streams.clear();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        metrics.close();
+        if (share != null) share.release();
+        permit.release();
+        ui.log("Client " + userAddress + " disconnected.");
+    }
+
+    /**
+     * One proxied request: accumulates the request head, streams any body to the origin and relays
+     * the origin's response.
+     * For CONNECT the stream becomes a raw two-way splice between the tunnel and the origin.
+     */
+    private class Stream implements EventLoop.Handler {
+        private final int id;
+        private ByteBuffer head = ByteBuffer.allocate(1024);
+        private final HttpHead request = new HttpHead();
+        private boolean headComplete = false;
+        private int consumed = 0;
+        // Bytes the client may still send: the initial window plus the credit returned, less what arrived.
+        private int receiveWindow = TunnelStream.INITIAL_WINDOW;
+        int sendWindow = TunnelStream.INITIAL_WINDOW;
+
+        private SocketChannel upstream;
+        private SelectionKey upstreamKey;
+        // Origin addresses in happy-eyeballs order, the next one to try, and the attempts still racing.
+        private List<InetAddress> candidates = List.of();
+        private int nextCandidate = 0;
+        private int targetPort;
+        private final List<SocketChannel> attempts = new ArrayList<>(2);
+        private IOException lastFailure;
+        private ByteBuffer upstreamRequest;
+        // Client bytes waiting to be written to the origin (request body or CONNECT payload).
+        private final ArrayDeque<ByteBuffer> toUpstream = new ArrayDeque<>();
+        private boolean connectTunnel = false;
+        private boolean connected = false;
+        private boolean requestFin = false;
+        private boolean upstreamEof = false;
+        private boolean responseStarted = false;
+        private boolean paused = false;
+        // Paused by the bandwidth shaper until a loop timer fires.
+        private boolean throttled = false;
+        private boolean finished = false;
+        private ConnectionRegistry.Origin origin;
+        private long forwardStart;
+        private boolean timed = false;
+        private final boolean admitted = admission.tryStartRequest();
+        // HEADER until the request head is in, then REQUEST (none for CONNECT).
+        private TimerWheel.Timeout deadline = arm(Deadline.HEADER);
+        // Origin connection without traffic in either direction; armed once the origin is being reached.
+        private TimerWheel.Timeout upstreamIdle = TimerWheel.Timeout.NONE;
+
+        Stream(int id) {
+            this.id = id;
+            request.reset(head.array(), 0);
+            metrics.streamOpened();
+        }
+
+        void onRequestData(ByteBuffer data) throws IOException {
+            int n = data.remaining();
+            if (n > receiveWindow) {
+                // Sent past its credit: reset rather than queue without bound.
+                if (!finished) {
+                    queueFrame(Frame.RESET, id, null);
+                    finish();
+                }
+                return;
+            }
+            receiveWindow -= n;
+            if (headComplete) {
+                if (!finished) {
+                    // Request body or CONNECT payload; credit is returned once the bytes reach the origin.
+                    toUpstream.addLast(ByteBuffer.allocate(n).put(data).flip());
+                    updateUpstreamInterest();
+                } else {
+                    credit(n);
+                }
+                return;
+            }
+            credit(n);
+            if (head.remaining() < n) {
+                if (head.capacity() + n > MAX_REQUEST_HEAD) {
+                    respondError(431, "Request Header Fields Too Large");
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(head.capacity() * 2, head.position() + n));
+                head.flip();
+                head = bigger.put(head);
+            }
+            head.put(data);
+            try {
+                if (request.parse(head.array(), head.position())) {
+                    headComplete = true;
+                    onRequestHead();
+                }
+            } catch (IOException e) {
+                headComplete = true;
+                respondError(400, "Bad Request");
+            }
+        }
+
+        private void credit(int n) {
+            consumed += n;
+            if (consumed >= TunnelStream.INITIAL_WINDOW / 2) {
+                queueWindowUpdate(id, consumed);
+                receiveWindow += consumed;
+                consumed = 0;
+            }
+        }
+
+        void onRequestFin() throws IOException {
+            requestFin = true;
+            if (!headComplete) {
+                headComplete = true;
+                respondError(400, "Bad Request");
+                return;
+            }
+            updateUpstreamInterest();
+        }
+
+        private void onRequestHead() {
+            deadline.cancel();
+            String requestLine = request.startLine();
+            ui.log(LogLevel.INFO, "📥 Incoming Request from {}: {}", userAddress, requestLine);
+            if (request.methodIs("CONNECT")) {
+                onConnectHead(request.token(1));
+                return;
+            }
+            String host = request.header("host");
+            if (host == null || host.isEmpty()) {
+                ui.log(LogLevel.WARN, "❌ No Host Header Found for {}!", userAddress);
+                respondError(400, "Bad Request: Missing Host Header");
+                return;
+            }
+            if (refuseBlocked(host)) return;
+            try {
+                request.checkRequestFraming();
+            } catch (IOException e) {
+                ui.log(LogLevel.WARN, "❌ Rejecting request from {}: {}", userAddress, e.getMessage());
+                respondError(400, "Bad Request: " + e.getMessage());
+                return;
+            }
+            // Validate and correct the request line if necessary.
+            if (request.tokenCount() < 3) {
+                requestLine = "GET / HTTP/1.1";
+            }
+            ByteArrayOutputStream originHead = new ByteArrayOutputStream(head.position() + 32);
+            try {
+                Relay.writeOriginHead(request, requestLine, "close", originHead);
+            } catch (IOException e) {
+                respondError(400, "Bad Request");
+                return;
+            }
+            upstreamRequest = ByteBuffer.wrap(originHead.toByteArray());
+            if (Relay.requestHasBody(request) && Relay.expectsContinue(request)) {
+                // Expect is not forwarded; let the body start flowing right away.
+                queueFrame(Frame.DATA, id, ByteBuffer.wrap(CONTINUE));
+            }
+            queueBodyPrefix();
+            ui.log(LogLevel.INFO, "🌍 Forwarding request from {} to {}", userAddress, host);
+            deadline = arm(Deadline.REQUEST);
+            startTiming(host);
+            resolveAndConnect(host, 80);
+        }
+
+        /**
+         * Queues whatever the client sent right after the head; it is the start of the body or tunnel payload.
+         */
+        private void queueBodyPrefix() {
+            int extra = head.position() - request.headEnd();
+            if (extra > 0) {
+                toUpstream.addLast(ByteBuffer.wrap(head.array(), request.headEnd(), extra).slice());
+                consumed -= extra; // already credited on receipt, credited again once written
+            }
+        }
+
+        private void onConnectHead(String authority) {
+            if (authority == null || authority.isEmpty()) {
+                respondError(400, "Bad Request: Missing CONNECT target");
+                return;
+            }
+            if (refuseBlocked(authority)) return;
+            connectTunnel = true;
+            queueBodyPrefix();
+            ui.log(LogLevel.INFO, "🔒 Tunnelling CONNECT from {} to {}", userAddress, authority);
+            startTiming(authority);
+            resolveAndConnect(authority, 443);
+        }
+
+        /**
+         * Answers with a 403 if {@code host} is on a blocklist.
+         */
+        private boolean refuseBlocked(String host) {
+            String list = filter.blocked(host);
+            if (list == null) return false;
+            ui.log(LogLevel.INFO, "⛔ Blocked request from {} to {} (list {})", userAddress, host, list);
+            respondError(403, "Forbidden: Blocked Domain");
+            return true;
+        }
+
+        /**
+         * Latency runs to the first response byte, or for CONNECT until the origin connection is up.
+         */
+        private void startTiming(String host) {
+            origin = registry.origin(host);
+            forwardStart = System.nanoTime();
+        }
+
+        private void stopTiming() {
+            if (timed || origin == null) return;
+            timed = true;
+            metrics.upstreamLatency(origin, System.nanoTime() - forwardStart);
+        }
+
+        private void resolveAndConnect(String authority, int defaultPort) {
+            upstreamIdle = arm(Deadline.IDLE);
+            String hostName = authority;
+            int port = defaultPort;
+            int colon = authority.lastIndexOf(':');
+            if (colon > 0 && authority.indexOf(']') < colon) {
+                hostName = authority.substring(0, colon);
+                try {
+                    port = Integer.parseInt(authority.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    respondError(400, "Bad Request: Invalid Host Header");
+                    return;
+                }
+            }
+            if (!TargetPolicy.allowsPort(port, connectTunnel)) {
+                ui.log(LogLevel.WARN, "⛔ Refused {} from {} to port {}", connectTunnel ? "CONNECT" : "request", userAddress, port);
+                respondError(403, "Forbidden: Port Not Allowed");
+                return;
+            }
+            // Resolution completes off the loop (or immediately when cached) and hands the addresses back.
+            String name = hostName;
+            int targetPort = port;
+            dns.resolve(name).whenComplete((addresses, failure) -> loop.execute(this, () -> {
+                if (failure != null) {
+                    if (!finished && !closed) failUpstream(new IOException("Unknown host " + name));
+                } else {
+                    candidates = TargetPolicy.allowed(DnsCache.interleave(addresses));
+                    this.targetPort = targetPort;
+                    if (candidates.isEmpty()) lastFailure = new IOException("Refusing to connect to local address of " + name);
+                    nextAttempt();
+                }
+                flushFromUpstream();
+            }));
+        }
+
+        /**
+         * Starts connecting to the next candidate address. As in {@link DnsCache#connect}, the one after it
+         * joins the race once the stagger elapses or as soon as every pending attempt has failed.
+         */
+        private void nextAttempt() {
+            if (finished || closed || connected) return;
+            while (nextCandidate < candidates.size()) {
+                InetSocketAddress address = new InetSocketAddress(candidates.get(nextCandidate++), targetPort);
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(loop.selector(), 0, this);
+                    attempts.add(channel);
+                    if (channel.connect(address)) {
+                        onConnected(key);
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                    if (nextCandidate < candidates.size()) {
+                        loop.schedule(this, () -> {
+                            nextAttempt();
+                            flushFromUpstream();
+                        }, TimeUnit.MILLISECONDS.toNanos(DnsCache.STAGGER_MS));
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (connected) {
+                        failUpstream(e);
+                        return;
+                    }
+                    lastFailure = e;
+                    if (channel != null) {
+                        attempts.remove(channel);
+                        closeQuietly(channel);
+                    }
+                }
+            }
+            if (attempts.isEmpty()) {
+                failUpstream(lastFailure != null ? lastFailure : new IOException("No address to connect to"));
+            }
+        }
+
+        /**
+         * An attempt won the race: it becomes the origin connection and the others are dropped.
+         */
+        private void onConnected(SelectionKey key) throws IOException {
+            upstreamKey = key;
+            upstream = (SocketChannel) key.channel();
+            attempts.remove(upstream);
+            attempts.forEach(NioTunnelHandler::closeQuietly);
+            attempts.clear();
+            connected = true;
+            if (connectTunnel) {
+                stopTiming();
+                responseStarted = true;
+                queueFrame(Frame.DATA, id, ByteBuffer.wrap(
+                        "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            updateUpstreamInterest();
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            try {
+                if (key.isConnectable()) {
+                    SocketChannel attempt = (SocketChannel) key.channel();
+                    try {
+                        attempt.finishConnect();
+                    } catch (IOException e) {
+                        lastFailure = e;
+                        attempts.remove(attempt);
+                        closeQuietly(attempt);
+                        if (attempts.isEmpty()) nextAttempt();
+                        flushFromUpstream();
+                        return;
+                    }
+                    onConnected(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    writeUpstream();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    readUpstream();
+                }
+                if (!finished) updateUpstreamInterest();
+            } catch (IOException e) {
+                failUpstream(e);
+            }
+            flushFromUpstream();
+        }
+
+        private void writeUpstream() throws IOException {
+            if (upstreamRequest != null) {
+                upstream.write(upstreamRequest);
+                if (upstreamRequest.hasRemaining()) return;
+                upstreamRequest = null;
+            }
+            while (!toUpstream.isEmpty()) {
+                ByteBuffer data = toUpstream.peekFirst();
+                int n = upstream.write(data);
+                credit(n);
+                upstreamIdle.touch();
+                if (data.hasRemaining()) return;
+                toUpstream.pollFirst();
+            }
+            if (requestFin && connectTunnel && !upstream.socket().isOutputShutdown()) {
+                // Client finished sending: half-close towards the origin.
+                upstream.shutdownOutput();
+                if (upstreamEof) finish();
+            }
+        }
+
+        private void readUpstream() throws IOException {
+            ByteBuffer buf = loop.scratch;
+            while (!finished && sendWindow > 0 && pendingBytes < HIGH_WATER) {
+                buf.clear().limit(Math.min(Math.min(sendWindow, Frame.MAX_PAYLOAD), buf.capacity()));
+                int n = upstream.read(buf);
+                if (n < 0) {
+                    queueFrame(Frame.FIN, id, null);
+                    upstreamEof = true;
+                    // A CONNECT tunnel stays open until the client has finished sending too.
+                    if (!connectTunnel || upstream.socket().isOutputShutdown()) finish();
+                    return;
+                }
+                if (n == 0) return;
+                upstreamIdle.touch();
+                stopTiming();
+                responseStarted = true;
+                buf.flip();
+                sendWindow -= n;
+                queueFrame(Frame.DATA, id, buf);
+                long wait = share == null ? 0 : share.charge(n);
+                if (wait > 0) {
+                    paused = true;
+                    throttled = true;
+                    loop.schedule(this, () -> {
+                        throttled = false;
+                        resumeIfPossible();
+                    }, wait);
+                    return;
+                }
+            }
+            // Window or tunnel buffer exhausted: stop reading until the client catches up.
+            if (!finished) paused = true;
+        }
+
+        private void updateUpstreamInterest() {
+            if (upstreamKey == null || !upstreamKey.isValid() || !connected) return;
+            int ops = 0;
+            boolean writing = upstreamRequest != null || !toUpstream.isEmpty()
+                    || (requestFin && connectTunnel && !upstream.socket().isOutputShutdown());
+            if (writing) ops |= SelectionKey.OP_WRITE;
+            if (!paused && !upstreamEof && upstreamRequest == null) ops |= SelectionKey.OP_READ;
+            upstreamKey.interestOps(ops);
+        }
+
+        void resumeIfPossible() {
+            if (paused && !throttled && !finished && sendWindow > 0 && pendingBytes < HIGH_WATER) {
+                paused = false;
+                updateUpstreamInterest();
+            }
+        }
+
+        private void failUpstream(IOException e) {
+            ui.log(LogLevel.ERROR, "❌ Error forwarding request for user {}: {}", userAddress, e.getMessage());
+            if (!timed && origin != null) {
+                timed = true;
+                metrics.upstreamFailed(origin);
+            }
+            if (finished) return;
+            if (responseStarted) {
+                queueFrame(Frame.RESET, id, null);
+                finish();
+            } else {
+                respondError(502, "Bad Gateway: Unable to reach target host");
+            }
+        }
+
+        private void respondError(int statusCode, String message) {
+            String response = "HTTP/1.1 " + statusCode + " " + message + "\r\n"
+                    + "Content-Type: text/plain\r\n"
+                    + "Connection: close\r\n\r\n"
+                    + message + "\r\n";
+            queueFrame(Frame.DATA, id, ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            queueFrame(Frame.FIN, id, null);
+            finish();
+        }
+
+        /**
+         * Starts a deadline that ends this stream, on the loop, if it expires.
+         */
+        private TimerWheel.Timeout arm(Deadline kind) {
+            return kind.arm(() -> loop.execute(this, () -> expire(kind)));
+        }
+
+        private void expire(Deadline kind) {
+            if (finished) return;
+            if (kind == Deadline.IDLE) {
+                // A silent origin is an upstream failure like any other: 502 if nothing was relayed yet.
+                failUpstream(new IOException("Origin idle for " + kind.millis() + " ms"));
+            } else {
+                queueFrame(Frame.RESET, id, null);
+                finish();
+            }
+            flushFromUpstream();
+        }
+
+        private void respondOverloaded() {
+            ui.log(LogLevel.WARN, "🚫 Overloaded, refusing request on stream {} for {}", id, userAddress);
+            queueFrame(Frame.DATA, id, ByteBuffer.wrap(AdmissionControl.OVERLOADED));
+            queueFrame(Frame.FIN, id, null);
+            finish();
+        }
+
+        void abort() {
+            finish();
+        }
+
+        private void finish() {
+            streams.remove(id);
+            discard();
+        }
+
+        /**
+         * Ends the stream without touching the stream map, releasing its metrics and admission slot once.
+         */
+        void discard() {
+            if (!finished) {
+                metrics.streamClosed();
+                if (admitted) admission.requestDone();
+            }
+            finished = true;
+            deadline.cancel();
+            upstreamIdle.cancel();
+            closeUpstream();
+        }
+
+        void closeUpstream() {
+            attempts.forEach(NioTunnelHandler::closeQuietly);
+            attempts.clear();
+            if (upstream != null) closeQuietly(upstream);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                closeUpstream();
+                return;
+            }
+            failUpstream(new IOException("Upstream connection closed"));
+            flushFromUpstream();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import Security.CipherProfiler;
+import Security.SSLUtils;
+import ui.LogLevel;
+import ui.VPNListener;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine: a single acceptor hands connections round-robin to one selector
+ * {@link EventLoop} per core, which drives the TLS handshake, tunnel framing and origin relay
+ * without blocking. Thread count stays fixed regardless of the number of connected users.
+ */
+public class NioVPNServer {
+    private final VPNListener ui;
+    private final ConnectionRegistry registry;
+    private final BandwidthShaper shaper;
+    private final DomainFilter filter;
+    private final AdmissionControl admission;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private volatile boolean running = false;
+
+    NioVPNServer(VPNListener ui, ConnectionRegistry registry, BandwidthShaper shaper, DomainFilter filter,
+                 AdmissionControl admission) {
+        this.ui = ui;
+        this.registry = registry;
+        this.shaper = shaper;
+        this.filter = filter;
+        this.admission = admission;
+    }
+
+    /**
+     * Binds the port and runs the accept loop on the calling thread until {@link #stop()} is called.
+     */
+    public void start(int port) throws Exception {
+        // Load the context and profile the ciphers before accepting, not on the first connection.
+        SSLUtils.configure(SSLUtils.getServerSSLContext().createSSLEngine());
+        ui.log("🔐 Cipher throughput: " + CipherProfiler.report());
+        int loopCount = Runtime.getRuntime().availableProcessors();
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("vpn-loop-" + i, ui);
+            loops[i].start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        int bound = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        ui.log("✅ Non-blocking SSL VPN Server started on port " + bound + " with " + loopCount + " event loops");
+        ui.listening(bound);
+
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                String userAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+                AdmissionControl.Permit permit = admission.admit(userAddress);
+                if (permit == null) {
+                    ui.log(LogLevel.WARN, "🚫 Connection limit reached, refusing {}", userAddress);
+                    admission.reject(channel.socket());
+                    continue;
+                }
+                SSLEngine engine;
+                try {
+                    // Per connection, so a replaced keystore applies from the next accept on.
+                    engine = SSLUtils.serverEngine();
+                } catch (IOException e) {
+                    permit.release();
+                    channel.close();
+                    throw e;
+                }
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                NioTunnelHandler handler = new NioTunnelHandler(loop, channel, engine, ui, userAddress,
+                        DnsCache.shared(), registry, shaper, filter, admission, permit);
+                loop.execute(handler, () -> {
+                    try {
+                        handler.register();
+                    } catch (IOException e) {
+                        handler.close();
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                ui.log("❌ Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package server;
+
+import http.BufferPool;
+import http.HttpHead;
+import http.HttpInput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared response cache in front of {@link UpstreamEngine} for the blocking server. Complete 200
+ * responses to plain GETs are stored as received (head and framed body) and replayed byte for byte, apart
+ * from an Age field giving the time since the origin produced them.
+ * Freshness follows Cache-Control (max-age, s-maxage, no-cache, no-store, private) and Expires, with the
+ * usual 10% Last-Modified heuristic; stale entries are revalidated with If-None-Match/If-Modified-Since.
+ * Entries are evicted in LRU order once the byte budget is exceeded, and bodies above the spill threshold
+ * are kept in memory-mapped temp files instead of the heap. Concurrent misses for the same key wait for
+ * a single upstream fetch.
+ *
+ * Tunables (system properties): vpn.cache.enabled (true), vpn.cache.maxBytes (67108864),
+ * vpn.cache.maxEntryBytes (16777216), vpn.cache.spillBytes (1048576).
+ */
+class ResponseCache {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("vpn.cache.enabled", "true"));
+    private static final long MAX_BYTES = Long.getLong("vpn.cache.maxBytes", 64L * 1024 * 1024);
+    private static final long MAX_ENTRY_BYTES = Long.getLong("vpn.cache.maxEntryBytes", 16L * 1024 * 1024);
+    private static final long SPILL_BYTES = Long.getLong("vpn.cache.spillBytes", 1024 * 1024);
+    private static final long MAX_HEURISTIC_SECONDS = 3600;
+    private static final long NOT_STORABLE = -2;
+
+    private final UpstreamEngine upstream;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private long totalBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    ResponseCache(UpstreamEngine upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Whether a request may be answered from the cache: a GET without body, credentials or range, and
+     * without the client asking to bypass caches.
+     */
+    boolean accepts(HttpHead request) {
+        return request.methodIs("GET")
+                && request.tokenCount() == 3
+                && request.header("host") != null
+                && request.indexOf("authorization") < 0
+                && request.indexOf("range") < 0
+                && request.indexOf("content-length") < 0
+                && !request.isChunked()
+                && !request.hasToken("cache-control", "no-store")
+                && !request.hasToken("cache-control", "no-cache")
+                && !request.hasToken("pragma", "no-cache");
+    }
+
+    /**
+     * Serves the request from the cache, revalidating or fetching through the upstream engine as needed.
+     */
+    void forward(HttpHead request, String requestLine, HttpInput body, OutputStream clientOut) throws IOException {
+        String key = key(request);
+        Entry cached = lookup(key);
+        if (cached != null && cached.isFresh(System.nanoTime())) {
+            hits.increment();
+            cached.writeTo(clientOut);
+            return;
+        }
+
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            // Someone is already fetching this key: wait for their copy instead of hitting the origin.
+            coalesced.increment();
+            Entry shared = await(running);
+            if (shared != null) {
+                shared.writeTo(clientOut);
+            } else {
+                upstream.forward(request, requestLine, body, clientOut);
+            }
+            return;
+        }
+
+        // Waiters are let go as soon as the response head shows there will be nothing to share.
+        Runnable release = () -> {
+            inFlight.remove(key, mine);
+            mine.complete(null);
+        };
+        Entry result = null;
+        try {
+            result = fetch(key, cached, request, requestLine, body, clientOut, release);
+        } finally {
+            inFlight.remove(key, mine);
+            mine.complete(result);
+        }
+    }
+
+    /**
+     * Fetches (or revalidates {@code stale}) while passing the response through to the client;
+     * {@code release} runs as soon as the response turns out not to be storable.
+     *
+     * @return the entry now cached for the key, or null if the response could not be stored
+     */
+    private Entry fetch(String key, Entry stale, HttpHead request, String requestLine, HttpInput body,
+                        OutputStream clientOut, Runnable release) throws IOException {
+        Capture capture = new Capture(clientOut, stale != null, release);
+        try {
+            upstream.forward(request, requestLine, stale != null ? stale.validators : "", body, capture);
+            capture.flush();
+            if (capture.notModified) {
+                revalidated.increment();
+                long lifetime = freshnessLifetime(capture.head, stale.lifetimeNanos);
+                stale.refresh(Math.max(lifetime, 0), age(capture.head));
+                stale.writeTo(clientOut);
+                return stale;
+            }
+            misses.increment();
+            Entry entry = capture.toEntry();
+            if (entry != null) {
+                store(key, entry);
+            } else if (stale != null) {
+                remove(key);
+            }
+            return entry;
+        } finally {
+            capture.discard();
+        }
+    }
+
+    /**
+     * The Age a response arrived with, in seconds; 0 if it has none or it is invalid.
+     */
+    private static long age(HttpHead response) {
+        int i = response.indexOf("age");
+        return i < 0 ? 0 : Math.max(response.longValue(i), 0);
+    }
+
+    private static Entry await(CompletableFuture<Entry> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shared fetch");
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Key: origin, origin-form target and the accepted encodings (the one Vary field we honour).
+     */
+    private static String key(HttpHead request) {
+        String host = request.header("host").toLowerCase(Locale.ROOT);
+        String target = request.token(1);
+        if (target.startsWith("http://")) {
+            int slash = target.indexOf('/', 7);
+            target = slash < 0 ? "/" : target.substring(slash);
+        }
+        String encoding = request.header("accept-encoding");
+        return host + target + (encoding == null ? "" : "|" + encoding);
+    }
+
+    private Entry lookup(String key) {
+        lock.lock();
+        try {
+            return entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        lock.lock();
+        try {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) totalBytes -= previous.size;
+            totalBytes += entry.size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (totalBytes > MAX_BYTES && eldest.hasNext()) {
+                totalBytes -= eldest.next().size;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String key) {
+        lock.lock();
+        try {
+            Entry previous = entries.remove(key);
+            if (previous != null) totalBytes -= previous.size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cache statistics, e.g. "412 entries (18.3 MB), 5120 hits / 980 misses, 64 revalidated, 37 coalesced".
+     */
+    String report() {
+        int count;
+        long bytes;
+        lock.lock();
+        try {
+            count = entries.size();
+            bytes = totalBytes;
+        } finally {
+            lock.unlock();
+        }
+        return count + " entries (" + String.format("%.1f MB", bytes / (1024.0 * 1024.0)) + "), " + hits.sum() + " hits / "
+                + misses.sum() + " misses, " + revalidated.sum() + " revalidated, " + coalesced.sum() + " coalesced";
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            totalBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Freshness lifetime in nanoseconds from the response's caching fields, {@code fallback} if it
+     * declares none, or {@link #NOT_STORABLE}.
+     */
+    private static long freshnessLifetime(HttpHead response, long fallback) {
+        long maxAge = -1;
+        for (int i = 0; i < response.headerCount(); i++) {
+            if (!response.nameEquals(i, "cache-control")) continue;
+            for (String directive : response.value(i).toLowerCase(Locale.ROOT).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store") || directive.equals("private")) return NOT_STORABLE;
+                if (directive.equals("no-cache")) return 0;
+                if (directive.startsWith("s-maxage=")) {
+                    maxAge = parseSeconds(directive.substring(9));
+                    break;
+                }
+                if (directive.startsWith("max-age=")) maxAge = parseSeconds(directive.substring(8));
+            }
+        }
+        if (maxAge >= 0) return TimeUnit.SECONDS.toNanos(maxAge);
+
+        ZonedDateTime date = parseDate(response.header("date"));
+        ZonedDateTime now = date != null ? date : ZonedDateTime.now();
+        String expires = response.header("expires");
+        if (expires != null) {
+            ZonedDateTime at = parseDate(expires);
+            // An invalid Expires value means "already expired".
+            return at == null ? 0 : Math.max(0, TimeUnit.SECONDS.toNanos(at.toEpochSecond() - now.toEpochSecond()));
+        }
+        ZonedDateTime lastModified = parseDate(response.header("last-modified"));
+        if (lastModified != null) {
+            long age = Math.max(0, now.toEpochSecond() - lastModified.toEpochSecond());
+            return TimeUnit.SECONDS.toNanos(Math.min(age / 10, MAX_HEURISTIC_SECONDS));
+        }
+        return fallback;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim().replace("\"", "")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static ZonedDateTime parseDate(String value) {
+        if (value == null) return null;
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A stored response: the raw bytes on the heap, or memory-mapped when large. It is replayed with its
+     * head rewritten to carry the current Age (RFC 9111 section 5.1), which is what the origin said it was
+     * when received plus the time it has been held here since.
+     */
+    private static final class Entry {
+        private final byte[] bytes;
+        private final ByteBuffer mapped;
+        final long size;
+        // The stored head without its Age fields and the blank line that ends it; the body starts at bodyOffset.
+        private final byte[] head;
+        private final int bodyOffset;
+        final String validators;
+        final long lifetimeNanos;
+        private volatile long expiresAt;
+        private volatile long receivedAt;
+        private volatile long ageAtReceipt;
+
+        Entry(byte[] bytes, ByteBuffer mapped, long size, byte[] head, int bodyOffset, long ageSeconds,
+              String validators, long lifetimeNanos) {
+            this.bytes = bytes;
+            this.mapped = mapped;
+            this.size = size;
+            this.head = head;
+            this.bodyOffset = bodyOffset;
+            this.validators = validators;
+            this.lifetimeNanos = lifetimeNanos;
+            this.receivedAt = System.nanoTime();
+            this.ageAtReceipt = ageSeconds;
+            this.expiresAt = receivedAt + lifetimeNanos;
+        }
+
+        boolean isFresh(long now) {
+            return now - expiresAt < 0;
+        }
+
+        /**
+         * Marks the entry as just validated by a response of the given age.
+         */
+        void refresh(long lifetime, long ageSeconds) {
+            receivedAt = System.nanoTime();
+            ageAtReceipt = ageSeconds;
+            expiresAt = receivedAt + lifetime;
+        }
+
+        long ageSeconds() {
+            return ageAtReceipt + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - receivedAt);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(head);
+            out.write(("Age: " + ageSeconds() + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            if (bytes != null) {
+                out.write(bytes, bodyOffset, bytes.length - bodyOffset);
+            } else {
+                BufferPool pool = BufferPool.shared();
+                byte[] buffer = pool.acquire();
+                try {
+                    ByteBuffer view = mapped.duplicate().position(bodyOffset);
+                    while (view.hasRemaining()) {
+                        int n = Math.min(buffer.length, view.remaining());
+                        view.get(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    pool.release(buffer);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Tees the upstream response to the client while keeping a copy. The copy starts on the heap and
+     * moves to a temp file past the spill threshold; it is abandoned (the relay goes on) once the
+     * response turns out to be uncacheable or too large. When revalidating, the head is held back until
+     * its status is known so a 304 can be swallowed and the stored copy served instead. Abandoning runs
+     * the release callback, so requests waiting for the copy need not wait for the rest of the body.
+     */
+    private final class Capture extends OutputStream {
+        private final OutputStream client;
+        private final boolean revalidating;
+        private final Runnable release;
+        final HttpHead head = new HttpHead();
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(8192);
+        private Path file;
+        private FileChannel channel;
+        private long size = 0;
+        private boolean capturing = true;
+        private boolean headSeen = false;
+        boolean notModified = false;
+
+        Capture(OutputStream client, boolean revalidating, Runnable release) {
+            this.client = client;
+            this.revalidating = revalidating;
+            this.release = release;
+            head.reset(null, 0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (notModified) return;
+            if (headSeen) {
+                client.write(b, off, len);
+                keep(b, off, len);
+                return;
+            }
+            // Until the head is complete everything stays in memory so it can be parsed.
+            memory.write(b, off, len);
+            size += len;
+            byte[] buffered = memory.toByteArray();
+            if (!head.parse(buffered, buffered.length)) {
+                if (size > HttpInput.MAX_HEAD_SIZE) throw new IOException("Cached response head too large");
+                if (!revalidating) client.write(b, off, len);
+                return;
+            }
+            headSeen = true;
+            int status = head.statusCode();
+            if (revalidating && status == 304) {
+                notModified = true;
+                return;
+            }
+            if (revalidating) {
+                client.write(buffered, 0, buffered.length);
+            } else {
+                client.write(b, off, len);
+            }
+            long lifetime = freshnessLifetime(head, -1);
+            if (status != 200 || lifetime == NOT_STORABLE || hasUnsupportedVary() || head.indexOf("set-cookie") >= 0
+                    || head.contentLength() > MAX_ENTRY_BYTES
+                    || lifetime < 0 && head.header("etag") == null && head.header("last-modified") == null) {
+                abandon();
+            }
+        }
+
+        private boolean hasUnsupportedVary() {
+            for (int i = 0; i < head.headerCount(); i++) {
+                if (!head.nameEquals(i, "vary")) continue;
+                for (String field : head.value(i).toLowerCase(Locale.ROOT).split(",")) {
+                    String name = field.trim();
+                    if (!name.isEmpty() && !name.equals("accept-encoding")) return true;
+                }
+            }
+            return false;
+        }
+
+        private void keep(byte[] b, int off, int len) throws IOException {
+            if (!capturing) return;
+            size += len;
+            if (size > MAX_ENTRY_BYTES) {
+                abandon();
+                return;
+            }
+            if (channel == null && size > SPILL_BYTES) {
+                file = Files.createTempFile("vpn-cache", ".bin");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                writeFully(ByteBuffer.wrap(memory.toByteArray()));
+                memory = null;
+            }
+            if (channel != null) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) channel.write(data);
+        }
+
+        private void abandon() {
+            capturing = false;
+            memory = null;
+            discard();
+            release.run();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!notModified) client.flush();
+        }
+
+        /**
+         * The complete captured response as a cache entry, or null if it is not storable.
+         */
+        Entry toEntry() throws IOException {
+            if (!capturing || !headSeen) return null;
+            long lifetime = freshnessLifetime(head, -1);
+            String etag = head.header("etag");
+            String lastModified = head.header("last-modified");
+            String validators = (etag != null ? "If-None-Match: " + etag + "\r\n" : "")
+                    + (lastModified != null ? "If-Modified-Since: " + lastModified + "\r\n" : "");
+            if (lifetime < 0) {
+                // No explicit freshness: only worth keeping if it can be revalidated.
+                if (validators.isEmpty()) return null;
+                lifetime = 0;
+            }
+            byte[] storedHead = headWithoutAge();
+            if (channel != null) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return new Entry(null, mapped, size, storedHead, head.headEnd(), age(head), validators, lifetime);
+            }
+            return new Entry(memory.toByteArray(), null, size, storedHead, head.headEnd(), age(head), validators, lifetime);
+        }
+
+        /**
+         * The captured head up to its blank line, minus any Age fields, which are rewritten on every replay.
+         */
+        private byte[] headWithoutAge() {
+            byte[] data = head.array();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(head.headLength());
+            int from = 0;
+            for (int i = 0; i < head.headerCount(); i++) {
+                if (!head.nameEquals(i, "age")) continue;
+                int next = head.valueEnd(i);
+                while (data[next] != '\n') next++;
+                out.write(data, from, head.nameStart(i) - from);
+                from = next + 1;
+            }
+            int end = head.headEnd();
+            int blank = end >= 2 && data[end - 2] == '\r' ? end - 2 : end - 1;
+            out.write(data, from, blank - from);
+            return out.toByteArray();
+        }
+
+        /**
+         * Releases the temp file; an existing mapping stays valid until the entry is collected.
+         */
+        void discard() {
+            if (channel == null) return;
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Windows refuses to delete a mapped file.
+                file.toFile().deleteOnExit();
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import tunnel.TunnelStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sits between a handler and its tunnel stream and decides, from the response head passing through,
+ * whether the body is compressed on its way to the client. Heads (and interim 1xx heads) always go as
+ * they are; the body is compressed only for textual types without a Content-Encoding of their own.
+ */
+final class ResponseCompression extends OutputStream {
+    private final TunnelStream stream;
+    private final OutputStream out;
+    private final HttpHead head = new HttpHead();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1024);
+    private boolean decided = false;
+
+    private ResponseCompression(TunnelStream stream) {
+        this.stream = stream;
+        this.out = stream.getOutputStream();
+        head.reset(null, 0);
+    }
+
+    /**
+     * The stream's output, wrapped only if the client accepts compressed frames.
+     */
+    static OutputStream wrap(TunnelStream stream) {
+        return stream.canCompressOutput() ? new ResponseCompression(stream) : stream.getOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (!decided && len > 0) {
+            int before = pending.size();
+            pending.write(b, off, len);
+            byte[] buffered = pending.toByteArray();
+            boolean complete;
+            try {
+                complete = head.parse(buffered, buffered.length);
+            } catch (IOException e) {
+                // Not an HTTP head (the handler writes nothing else, but never fail a response over it).
+                decided = true;
+                break;
+            }
+            if (!complete) {
+                if (buffered.length > HttpInput.MAX_HEAD_SIZE) decided = true;
+                break;
+            }
+            // Send the rest of the head as it is, then switch before the body.
+            int headBytes = head.headEnd() - before;
+            out.write(b, off, headBytes);
+            off += headBytes;
+            len -= headBytes;
+            if (Relay.isInterim(head.statusCode())) {
+                pending.reset();
+                head.reset(null, 0);
+            } else {
+                decided = true;
+                stream.setCompressOutput(Relay.isCompressible(head));
+            }
+        }
+        if (len > 0) out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Which origins the server will reach for its users. The server does not authenticate clients, so anyone
+ * who completes a TLS handshake could otherwise use it to reach services that only listen on the server
+ * itself or its local links. CONNECT tunnels go to the allowed CONNECT ports only (443 by default), plain
+ * HTTP to the allowed HTTP ports (80), and loopback, link-local and wildcard addresses are never dialled.
+ *
+ * Tunables (system properties): vpn.target.connectPorts (443), vpn.target.httpPorts (80), both
+ * comma-separated or "*" for any port; vpn.target.allowLocal (false) lifts the address restriction.
+ */
+final class TargetPolicy {
+    private static final Set<Integer> CONNECT_PORTS = ports(System.getProperty("vpn.target.connectPorts", "443"));
+    private static final Set<Integer> HTTP_PORTS = ports(System.getProperty("vpn.target.httpPorts", "80"));
+    private static final boolean ALLOW_LOCAL = Boolean.getBoolean("vpn.target.allowLocal");
+
+    private TargetPolicy() {
+    }
+
+    /**
+     * Whether a CONNECT tunnel ({@code connect}) or a plain HTTP request may go to {@code port}.
+     */
+    static boolean allowsPort(int port, boolean connect) {
+        Set<Integer> allowed = connect ? CONNECT_PORTS : HTTP_PORTS;
+        return allowed == null || allowed.contains(port);
+    }
+
+    /**
+     * The port of an authority such as "example.com:8080" or "[::1]", {@code defaultPort} if it names
+     * none, or -1 if the port is not a number.
+     */
+    static int port(String authority, int defaultPort) {
+        int colon = authority.lastIndexOf(':');
+        if (colon <= 0 || authority.indexOf(']') > colon) return defaultPort;
+        try {
+            return Integer.parseInt(authority.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static boolean allowsAddress(InetAddress address) {
+        return ALLOW_LOCAL || !(address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isAnyLocalAddress());
+    }
+
+    /**
+     * The addresses that may be dialled, in their original order; empty if none may.
+     */
+    static List<InetAddress> allowed(List<InetAddress> addresses) {
+        if (ALLOW_LOCAL) return addresses;
+        List<InetAddress> allowed = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses) {
+            if (allowsAddress(address)) allowed.add(address);
+        }
+        return allowed;
+    }
+
+    /**
+     * Parses a port list; null stands for any port.
+     */
+    private static Set<Integer> ports(String list) {
+        if (list.trim().equals("*")) return null;
+        return Arrays.stream(list.split(",")).map(String::trim).filter(port -> !port.isEmpty())
+                .map(Integer::valueOf).collect(Collectors.toUnmodifiableSet());
+    }
+}
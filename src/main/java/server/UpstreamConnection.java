@@ -0,0 +1,140 @@
+package server;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import tunnel.Deadline;
+import tunnel.TimerWheel;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A keep-alive HTTP/1.1 connection to an origin, owned by one {@link UpstreamEngine} host pool.
+ * It relays responses byte for byte while tracking their framing so the connection can be handed
+ * back to the pool once the response has been fully read. While an exchange is in progress, an origin
+ * that neither sends nor accepts a byte for the {@link Deadline#IDLE} time has its socket closed.
+ */
+class UpstreamConnection {
+    private final Socket socket;
+    private final HttpInput in;
+    private final HttpHead head = new HttpHead();
+    private final OutputStream out;
+    private volatile TimerWheel.Timeout idle = TimerWheel.Timeout.NONE;
+    final String hostKey;
+    long lastUsed;
+    boolean reused = false;
+    boolean responseStarted = false;
+
+    UpstreamConnection(Socket socket, String hostKey) throws IOException {
+        this.socket = socket;
+        this.hostKey = hostKey;
+        this.in = new HttpInput(new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                idle.touch();
+                return n;
+            }
+        });
+        this.out = new BufferedOutputStream(new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                idle.touch();
+            }
+        }, 8192);
+        this.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Sends the request head with the client's own fields, then streams its body (if any) from
+     * {@code body} in bounded slices; the tunnel window applies backpressure all the way to the client.
+     * Non-null {@code conditionalFields} replace the client's validators (see {@link Relay#writeOriginHead}).
+     */
+    void send(HttpHead request, String requestLine, String conditionalFields, HttpInput body) throws IOException {
+        responseStarted = false;
+        // Only the socket is closed on expiry; the buffers stay with the thread blocked on them.
+        idle = Deadline.IDLE.arm(this::abort);
+        Relay.writeOriginHead(request, requestLine, "keep-alive", conditionalFields, out);
+        Relay.body(body, request, Relay.requestHasBody(request), out);
+        out.flush();
+    }
+
+    /**
+     * Relays one complete response to the client.
+     *
+     * @return true if the connection can carry another request
+     */
+    boolean relayResponse(OutputStream clientOut, boolean headRequest) throws IOException {
+        if (!in.readHead(head)) throw new IOException("Origin closed connection before response headers");
+        responseStarted = true;
+        head.writeTo(clientOut);
+        while (Relay.isInterim(head.statusCode())) {
+            // Interim responses (e.g. 103 Early Hints) precede the final one on the same request.
+            if (!in.readHead(head)) throw new IOException("Origin closed connection after an interim response");
+            head.writeTo(clientOut);
+        }
+
+        boolean keepAlive = head.isKeepAlive(true);
+        // A body delimited by connection close leaves nothing to reuse.
+        boolean delimited = Relay.body(in, head, Relay.responseHasBody(headRequest, head.statusCode()), clientOut);
+        return keepAlive && delimited;
+    }
+
+    /**
+     * Sends an OPTIONS request offering an h2c upgrade (with push disabled in its settings) and reads
+     * the answer. A refusal is read to its end and leaves the connection as any other response would.
+     *
+     * @return true if the origin switched to HTTP/2; the connection can then only be closed
+     */
+    boolean upgradesToHttp2(String host) throws IOException {
+        responseStarted = false;
+        idle = Deadline.IDLE.arm(this::abort);
+        out.write(("OPTIONS * HTTP/1.1\r\nHost: " + host + "\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                + "Upgrade: h2c\r\nHTTP2-Settings: AAIAAAAA\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        if (!in.readHead(head)) throw new IOException("Origin closed connection before response headers");
+        while (Relay.isInterim(head.statusCode())) {
+            if (!in.readHead(head)) throw new IOException("Origin closed connection after an interim response");
+        }
+        if (head.statusCode() == 101) return true;
+        boolean keepAlive = head.isKeepAlive(true);
+        if (!Relay.body(in, head, Relay.responseHasBody(false, head.statusCode()), OutputStream.nullOutputStream())
+                || !keepAlive) {
+            abort();
+        }
+        return false;
+    }
+
+    /**
+     * Ends the current exchange, stopping its idle deadline.
+     */
+    void finish() {
+        idle.cancel();
+    }
+
+    private void abort() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        in.release();
+    }
+}
@@ -0,0 +1,341 @@
+package server;
+
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import tunnel.Deadline;
+import tunnel.TimerWheel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared origin-side engine for the blocking server. HTTP/1.1 origins are served from per-host
+ * keep-alive pools bounded by a max-per-host limit, with idle connections evicted in the background.
+ * When enabled, the first request to an origin also starts a probe for HTTP/2 (an h2c upgrade on a
+ * pooled connection); origins that accept get their body-less requests through {@link HttpClient}'s
+ * multiplexed connection, the rest stay on the keep-alive pools.
+ *
+ * Tunables (system properties): vpn.upstream.maxPerHost (8), vpn.upstream.idleTimeoutMs (30000),
+ * vpn.upstream.http2 (true).
+ */
+class UpstreamEngine {
+    private static final int MAX_PER_HOST = Integer.getInteger("vpn.upstream.maxPerHost", 8);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("vpn.upstream.idleTimeoutMs", 30_000);
+    private static final boolean HTTP2_ENABLED = Boolean.parseBoolean(System.getProperty("vpn.upstream.http2", "true"));
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final List<String> HOP_BY_HOP = List.of(
+            "connection", "keep-alive", "transfer-encoding", "upgrade", "proxy-connection", "te", "trailer");
+    // Fields HttpClient sets itself or refuses, plus those meant only for the proxy.
+    private static final List<String> CLIENT_RESTRICTED = List.of(
+            "connection", "content-length", "expect", "host", "upgrade", "keep-alive", "transfer-encoding",
+            "proxy-connection", "proxy-authorization", "te", "trailer", "http2-settings");
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private enum Protocol { UNKNOWN, PROBING, HTTP_1_1, HTTP_2 }
+
+    private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+    private final Map<String, Protocol> protocols = new ConcurrentHashMap<>();
+    private final HttpClient http2Client;
+    private final ScheduledExecutorService evictor;
+
+    final LongAdder reusedConnections = new LongAdder();
+    final LongAdder newConnections = new LongAdder();
+    final LongAdder http2Requests = new LongAdder();
+
+    UpstreamEngine() {
+        http2Client = HTTP2_ENABLED
+                ? HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT_MS))
+                .build()
+                : null;
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vpn-upstream-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(IDLE_TIMEOUT_MS / 2, 1000);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the request to the origin named by the Host header, streaming its body from {@code body},
+     * and relays the full response to the client.
+     */
+    void forward(HttpHead request, String requestLine, HttpInput body, OutputStream clientOut) throws IOException {
+        forward(request, requestLine, null, body, clientOut);
+    }
+
+    /**
+     * Forwards with the client's validators replaced by {@code conditionalFields} when it is non-null.
+     */
+    void forward(HttpHead request, String requestLine, String conditionalFields, HttpInput body,
+                 OutputStream clientOut) throws IOException {
+        String host = request.header("host");
+        String hostName = host;
+        int port = 80;
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(']') < colon) {
+            hostName = host.substring(0, colon);
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid port in Host header: " + host);
+            }
+        }
+        String key = hostName.toLowerCase(Locale.ROOT) + ":" + port;
+
+        // Uploads always take the HTTP/1.1 path, where the body is streamed through unchanged.
+        boolean hasBody = Relay.requestHasBody(request);
+        Protocol protocol = protocols.getOrDefault(key, Protocol.UNKNOWN);
+        if (!hasBody && protocol == Protocol.HTTP_2) {
+            forwardWithHttpClient(key, host, request, requestLine, conditionalFields, clientOut);
+            return;
+        }
+        HostPool pool = pool(key, hostName, port);
+        if (http2Client != null && protocol == Protocol.UNKNOWN && protocols.putIfAbsent(key, Protocol.PROBING) == null) {
+            // Meanwhile this request, and any until the answer is in, take the keep-alive pool.
+            Thread.ofVirtual().name("vpn-h2c-probe").start(() -> probe(key, host, pool));
+        }
+        if (hasBody && Relay.expectsContinue(request)) {
+            // Answer the client's Expect here so its body starts flowing while the origin connection is set up.
+            clientOut.write(CONTINUE);
+            clientOut.flush();
+        }
+        forwardPooled(pool, request, requestLine, conditionalFields, body, clientOut);
+    }
+
+    private HostPool pool(String key, String hostName, int port) {
+        return pools.computeIfAbsent(key, k -> new HostPool(k, hostName, port));
+    }
+
+    /**
+     * Asks the origin for HTTP/2 over a connection from its pool, so the probe resolves and connects the
+     * way every other request does; a refusal leaves that connection in the pool, warm. A probe that
+     * fails outright is repeated with a later request.
+     */
+    private void probe(String key, String host, HostPool pool) {
+        UpstreamConnection connection = null;
+        boolean upgraded = false;
+        try {
+            connection = pool.acquire();
+            upgraded = connection.upgradesToHttp2(host);
+            protocols.put(key, upgraded ? Protocol.HTTP_2 : Protocol.HTTP_1_1);
+        } catch (IOException e) {
+            protocols.remove(key, Protocol.PROBING);
+        } finally {
+            // The upgraded connection speaks HTTP/2 now, which only HttpClient does; release closes it.
+            if (connection != null) pool.release(connection, !upgraded);
+        }
+    }
+
+    private void forwardPooled(HostPool pool, HttpHead request, String requestLine, String conditionalFields,
+                               HttpInput body, OutputStream clientOut) throws IOException {
+        boolean headRequest = requestLine.startsWith("HEAD ");
+        boolean hasBody = Relay.requestHasBody(request);
+
+        for (int attempt = 0; ; attempt++) {
+            UpstreamConnection connection = pool.acquire();
+            boolean reusable = false;
+            try {
+                connection.send(request, requestLine, conditionalFields, body);
+                reusable = connection.relayResponse(clientOut, headRequest);
+                return;
+            } catch (IOException e) {
+                // An idle connection the origin already closed: retry once on a fresh one,
+                // unless a streamed body has already been consumed and cannot be replayed.
+                if (connection.reused && !connection.responseStarted && attempt == 0 && !hasBody) continue;
+                throw e;
+            } finally {
+                pool.release(connection, reusable);
+            }
+        }
+    }
+
+    private void forwardWithHttpClient(String key, String host, HttpHead clientRequest, String requestLine,
+                                       String conditionalFields, OutputStream clientOut) throws IOException {
+        String[] parts = requestLine.split(" ");
+        String method = parts[0];
+        String target = parts.length > 1 ? parts[1] : "/";
+        HttpRequest request;
+        try {
+            URI uri = URI.create(target.startsWith("http://") ? target : "http://" + host + target);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                    .method(method, HttpRequest.BodyPublishers.noBody());
+            // HttpClient enforces its own timeout up to the response head; the body is watched below.
+            if (Deadline.IDLE.millis() > 0) builder.timeout(Duration.ofMillis(Deadline.IDLE.millis()));
+            for (int i = 0; i < clientRequest.headerCount(); i++) {
+                if (isRestricted(clientRequest, i)) continue;
+                if (conditionalFields != null && Relay.isConditional(clientRequest, i)) continue;
+                String name = new String(clientRequest.array(), clientRequest.nameStart(i),
+                        clientRequest.nameEnd(i) - clientRequest.nameStart(i), StandardCharsets.ISO_8859_1);
+                builder.header(name, clientRequest.value(i));
+            }
+            if (conditionalFields != null) {
+                for (String field : conditionalFields.split("\r\n")) {
+                    int colon = field.indexOf(':');
+                    if (colon > 0) builder.header(field.substring(0, colon), field.substring(colon + 1).trim());
+                }
+            }
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid request for HTTP/2: " + e.getMessage());
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = http2Client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + host);
+        }
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            protocols.put(key, Protocol.HTTP_2);
+            http2Requests.increment();
+        } else {
+            // Origin declined the upgrade; use the keep-alive pools from now on.
+            protocols.put(key, Protocol.HTTP_1_1);
+        }
+
+        // Re-serialize as HTTP/1.1 with a framed body, so the client connection stays reusable and a
+        // truncated body shows: the origin's Content-Length where it sent one, chunked encoding otherwise.
+        boolean hasBody = Relay.responseHasBody(method.equals("HEAD"), response.statusCode());
+        boolean chunked = hasBody && response.headers().firstValue("content-length").isEmpty();
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(response.statusCode()).append(" \r\n");
+        response.headers().map().forEach((name, values) -> {
+            if (name.startsWith(":") || HOP_BY_HOP.contains(name.toLowerCase(Locale.ROOT))) return;
+            for (String value : values) head.append(name).append(": ").append(value).append("\r\n");
+        });
+        if (chunked) head.append("Transfer-Encoding: chunked\r\n");
+        head.append("\r\n");
+        clientOut.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        InputStream body = response.body();
+        TimerWheel.Timeout idle = Deadline.IDLE.arm(() -> {
+            try {
+                body.close();
+            } catch (IOException ignored) {
+            }
+        });
+        try (InputStream in = idle.touching(body)) {
+            if (chunked) {
+                Relay.streamChunked(in, clientOut);
+            } else {
+                Relay.stream(in, clientOut);
+            }
+        } finally {
+            idle.cancel();
+        }
+    }
+
+    private static boolean isRestricted(HttpHead request, int index) {
+        for (String name : CLIENT_RESTRICTED) {
+            if (request.nameEquals(index, name)) return true;
+        }
+        return false;
+    }
+
+    private void evictIdle() {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        for (HostPool pool : pools.values()) {
+            pool.evictOlderThan(cutoff);
+        }
+    }
+
+    /**
+     * Closes every pooled connection and stops the evictor.
+     */
+    void close() {
+        evictor.shutdownNow();
+        for (HostPool pool : pools.values()) {
+            pool.evictOlderThan(Long.MAX_VALUE);
+        }
+        pools.clear();
+    }
+
+    /**
+     * Idle connections for one origin plus a permit per connection that may exist at a time.
+     */
+    private class HostPool {
+        private final String key;
+        private final String hostName;
+        private final int port;
+        private final Semaphore permits = new Semaphore(MAX_PER_HOST);
+        private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+
+        HostPool(String key, String hostName, int port) {
+            this.key = key;
+            this.hostName = hostName;
+            this.port = port;
+        }
+
+        UpstreamConnection acquire() throws IOException {
+            try {
+                if (!permits.tryAcquire(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Too many concurrent connections to " + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + key);
+            }
+            long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+            while (true) {
+                UpstreamConnection connection = idle.pollLast();
+                if (connection == null) break;
+                if (connection.isOpen() && connection.lastUsed > cutoff) {
+                    connection.reused = true;
+                    reusedConnections.increment();
+                    return connection;
+                }
+                connection.close();
+            }
+            try {
+                Socket socket = DnsCache.shared().connect(hostName, port, CONNECT_TIMEOUT_MS);
+                newConnections.increment();
+                return new UpstreamConnection(socket, key);
+            } catch (IOException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        void release(UpstreamConnection connection, boolean reusable) {
+            connection.finish();
+            if (reusable && connection.isOpen()) {
+                connection.lastUsed = System.nanoTime();
+                idle.addLast(connection);
+            } else {
+                connection.close();
+            }
+            permits.release();
+        }
+
+        void evictOlderThan(long cutoff) {
+            idle.removeIf(connection -> {
+                if (connection.lastUsed < cutoff) {
+                    connection.close();
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+}
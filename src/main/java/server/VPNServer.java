@@ -1,36 +1,155 @@
 package server;
 
+import Security.CipherProfiler;
 import Security.SSLUtils;
-import ui.VPNServerGUI;
+import http.FlushingOutput;
+import http.HttpHead;
+import http.HttpInput;
+import http.Relay;
+import http.Splice;
+import tunnel.Compression;
+import tunnel.DatagramEndpoint;
+import tunnel.Deadline;
+import tunnel.ThreadMode;
+import tunnel.TimerWheel;
+import tunnel.TunnelConnection;
+import tunnel.TunnelStream;
+import ui.LogLevel;
+import ui.VPNListener;
 
-import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 public class VPNServer {
-    private static final int PORT = 443; // Client-server communication via SSL
-    private SSLServerSocket serverSocket;
-    private boolean running = false;
-    private VPNServerGUI ui;
+    private static final int PORT = Integer.getInteger("vpn.server.port", 443); // Client-server communication via SSL
+    // Datagram transport for clients that ask for it (blocking engine only), on this UDP port.
+    private static final boolean DATAGRAMS = Boolean.getBoolean("vpn.datagram.enabled");
+    private static final int DATAGRAM_PORT = Integer.getInteger("vpn.datagram.port", PORT);
+    // The UDP port clients are told to use, if something in front of the server forwards another one.
+    private static final int DATAGRAM_PUBLIC_PORT = Integer.getInteger("vpn.datagram.publicPort", 0);
 
-    public VPNServer(VPNServerGUI ui) {
+    /**
+     * Server engines: BLOCKING uses a thread per connection, NIO a fixed pool of selector loops.
+     */
+    public enum Engine { BLOCKING, NIO }
+
+    private ServerSocket serverSocket;
+    private NioVPNServer nioServer;
+    private DatagramEndpoint datagrams;
+    private UpstreamEngine upstream;
+    private ResponseCache cache;
+    private DomainFilter filter;
+    private final AdmissionControl admission = new AdmissionControl();
+    private final ConnectionRegistry registry = new ConnectionRegistry(admission::onLatency);
+    private final BandwidthShaper shaper = new BandwidthShaper();
+    private volatile Engine engine = Engine.valueOf(System.getProperty("vpn.server.engine", "BLOCKING").toUpperCase());
+    private volatile ThreadMode threadMode = ThreadMode.configured();
+    // Accepted connections waiting for a handshake worker (blocking engine).
+    private BlockingQueue<VPNHandler> handshakes;
+    private final List<Thread> handshakeWorkers = new ArrayList<>();
+    private volatile boolean running = false;
+    private VPNListener ui;
+
+    public VPNServer(VPNListener ui) {
         this.ui = ui;
     }
 
+    /**
+     * Live per-connection, per-user and per-origin metrics, shown by the GUI and published over JMX.
+     */
+    public ConnectionRegistry getRegistry() {
+        return registry;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Selects the engine used by the next {@link #startServer()} call.
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * Selects platform or virtual threads for the blocking engine's connection handlers.
+     */
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
     public void startServer() {
+        registry.clear();
+        if (shaper.enabled()) ui.log("🚦 Bandwidth shaping: " + shaper.describe());
+        filter = new DomainFilter(ui);
+        filter.start();
+        if (engine == Engine.NIO) {
+            startNioServer();
+            return;
+        }
         try {
-            // Use SSL for client-server communication
-            serverSocket = (SSLServerSocket) SSLUtils.getSSLServerSocketFactory().createServerSocket(PORT);
-            ui.log("✅ SSL VPN Server started on port " + PORT);
+            // Use SSL for client-server communication, layered per connection (see SSLUtils.serverSocket).
+            // Load the context and profile the ciphers before accepting, not on the first connection.
+            SSLUtils.configure(SSLUtils.getServerSSLContext().createSSLEngine());
+            serverSocket = new ServerSocket(PORT);
+            ui.log("🔐 Cipher throughput: " + CipherProfiler.report());
+            if (DATAGRAMS) {
+                try {
+                    datagrams = DatagramEndpoint.bind(DATAGRAM_PORT, DATAGRAM_PUBLIC_PORT);
+                    ui.log("📡 Datagram transport on UDP port " + datagrams.port());
+                } catch (IOException e) {
+                    ui.log(LogLevel.WARN, "⚠️ Datagram transport unavailable, UDP port {}: {}", DATAGRAM_PORT, e.getMessage());
+                }
+            }
+            upstream = new UpstreamEngine();
+            cache = ResponseCache.ENABLED ? new ResponseCache(upstream) : null;
+            ui.log("✅ SSL VPN Server started on port " + serverSocket.getLocalPort() + " (" + threadMode + " threads)");
             running = true;
+            handshakes = new ArrayBlockingQueue<>(AdmissionControl.QUEUE);
+            for (int i = 0; i < AdmissionControl.HANDSHAKE_WORKERS; i++) {
+                handshakeWorkers.add(threadMode.start("vpn-handshake-" + i, this::runHandshakes));
+            }
+            ui.listening(serverSocket.getLocalPort());
 
             while (running) {
                 try {
-                    SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
+                    Socket accepted = serverSocket.accept();
+                    SSLSocket clientSocket;
+                    try {
+                        accepted.setTcpNoDelay(true);
+                        clientSocket = SSLUtils.serverSocket(accepted);
+                    } catch (IOException e) {
+                        accepted.close();
+                        throw e;
+                    }
                     String userAddress = clientSocket.getInetAddress().getHostAddress();
-                    ui.addUser(userAddress);
-                    new Thread(new VPNHandler(clientSocket, ui, userAddress)).start();
+                    // The acceptor only counts and enqueues; TLS and everything after run on other threads.
+                    AdmissionControl.Permit permit = admission.admit(userAddress);
+                    if (permit == null) {
+                        ui.log(LogLevel.WARN, "🚫 Connection limit reached, refusing {}", userAddress);
+                        admission.reject(clientSocket);
+                        continue;
+                    }
+                    VPNHandler handler = new VPNHandler(clientSocket, ui, userAddress, threadMode, upstream, cache,
+                            registry, shaper, filter, admission, permit, datagrams);
+                    if (!handshakes.offer(handler)) {
+                        ui.log(LogLevel.WARN, "🚫 Handshake queue full, refusing {}", userAddress);
+                        permit.release();
+                        admission.reject(clientSocket);
+                    }
                 } catch (IOException e) {
                     ui.log("❌ Error accepting connection: " + e.getMessage());
                 }
@@ -43,12 +162,77 @@ public class VPNServer {
         }
     }
 
+    /**
+     * Handshake worker: completes the TLS handshake of queued connections, then gives each its own
+     * handler thread. A fixed number of these bounds the CPU a connection storm can claim.
+     */
+    private void runHandshakes() {
+        while (running) {
+            VPNHandler handler;
+            try {
+                handler = handshakes.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (handler.handshake()) {
+                threadMode.start("vpn-handler-" + handler.userAddress(), handler);
+            }
+        }
+    }
+
+    private void startNioServer() {
+        if (DATAGRAMS) ui.log(LogLevel.WARN, "⚠️ Datagram transport needs the BLOCKING engine; clients stay on TCP");
+        try {
+            nioServer = new NioVPNServer(ui, registry, shaper, filter, admission);
+            running = true;
+            nioServer.start(PORT);
+        } catch (IOException e) {
+            ui.log("❌ Server Error: " + e.getMessage());
+        } catch (Exception e) {
+            ui.log("❌ SSL Error: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
     public void stopServer() {
         running = false;
         try {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            handshakeWorkers.forEach(Thread::interrupt);
+            handshakeWorkers.clear();
+            if (handshakes != null) {
+                VPNHandler pending;
+                while ((pending = handshakes.poll()) != null) pending.refuse();
+            }
+            if (nioServer != null) {
+                nioServer.stop();
+                nioServer = null;
+            }
+            if (datagrams != null) {
+                datagrams.close();
+                datagrams = null;
+            }
+            if (upstream != null) {
+                upstream.close();
+                upstream = null;
+            }
+            if (cache != null) {
+                ui.log("🗃️ Response cache: " + cache.report());
+                cache.clear();
+                cache = null;
+            }
+            if (filter != null) {
+                if (filter.enabled()) ui.log("🛡️ Blocklists: " + filter.report());
+                filter.close();
+                filter = null;
+            }
+            ui.log("🔐 TLS: " + SSLUtils.handshakeReport());
+            ui.log("🚦 Admission: " + admission.report());
+            ui.log("📇 DNS: " + DnsCache.shared().report());
+            ui.log("⏱️ Timeouts: " + Deadline.report());
+            if (Compression.ENABLED) ui.log("🗜️ Compression: " + Compression.totalReport());
             ui.log("🛑 VPN Server stopped.");
         } catch (IOException e) {
             ui.log("❌ Error stopping server: " + e.getMessage());
@@ -57,98 +241,347 @@ public class VPNServer {
 }
 
 class VPNHandler implements Runnable {
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+
     private final SSLSocket clientSocket;
-    private final VPNServerGUI ui;
+    private final VPNListener ui;
     private final String userAddress;
+    private final ThreadMode threadMode;
+    private final UpstreamEngine upstream;
+    private final ResponseCache cache;
+    private final ConnectionRegistry registry;
+    private final BandwidthShaper shaper;
+    private final DomainFilter filter;
+    private final AdmissionControl admission;
+    private final AdmissionControl.Permit permit;
+    // Null when the server offers no datagram transport.
+    private final DatagramEndpoint datagrams;
+    private final List<TunnelConnection> datagramTunnels = new CopyOnWriteArrayList<>();
+    // Traffic of this client's datagram connections that have ended.
+    private final LongAdder datagramBytesReceived = new LongAdder();
+    private final LongAdder datagramBytesSent = new LongAdder();
+    private boolean resumed;
+    private ConnectionRegistry.Connection metrics;
+    // Paces the data sent to this user; null when shaping is disabled.
+    private BandwidthShaper.Share share;
 
-    public VPNHandler(SSLSocket socket, VPNServerGUI ui, String userAddress) {
+    public VPNHandler(SSLSocket socket, VPNListener ui, String userAddress, ThreadMode threadMode,
+                      UpstreamEngine upstream, ResponseCache cache, ConnectionRegistry registry,
+                      BandwidthShaper shaper, DomainFilter filter, AdmissionControl admission,
+                      AdmissionControl.Permit permit,
+                      DatagramEndpoint datagrams) {
         this.clientSocket = socket;
         this.ui = ui;
         this.userAddress = userAddress;
+        this.threadMode = threadMode;
+        this.upstream = upstream;
+        this.cache = cache;
+        this.registry = registry;
+        this.shaper = shaper;
+        this.filter = filter;
+        this.admission = admission;
+        this.permit = permit;
+        this.datagrams = datagrams;
     }
 
+    String userAddress() {
+        return userAddress;
+    }
+
+    /**
+     * Completes the TLS handshake within the {@link Deadline#HANDSHAKE} time, so a stalled or dribbling
+     * client cannot hold a handshake worker. On failure the connection is closed and false returned.
+     */
+    boolean handshake() {
+        TimerWheel.Timeout deadline = Deadline.HANDSHAKE.arm(this::refuse);
+        try {
+            long handshakeStart = System.currentTimeMillis();
+            clientSocket.startHandshake();
+            resumed = SSLUtils.recordHandshake(clientSocket.getSession(), handshakeStart);
+            return true;
+        } catch (IOException e) {
+            ui.log(LogLevel.ERROR, "❌ Handshake with {} failed: {}", userAddress, e.getMessage());
+            refuse();
+            return false;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * Drops a connection that will not be served, releasing its admission.
+     */
+    void refuse() {
+        permit.release();
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Runs the tunnel frame loop for this client once {@link #handshake()} succeeded. Every stream the
+     * client opens carries one HTTP request and is served on its own thread, so slow origins only delay
+     * their own responses.
+     */
     @Override
     public void run() {
+        try {
+            if (shaper.enabled()) share = shaper.open(BandwidthShaper.identity(clientSocket.getSession(), userAddress));
+            TunnelConnection tunnel = new TunnelConnection(clientSocket, false, this::acceptStream,
+                    datagrams, this::acceptDatagramTunnel);
+            metrics = registry.open(userAddress, "BLOCKING",
+                    () -> tunnel.bytesReceived() + datagramBytes(true), () -> tunnel.bytesSent() + datagramBytes(false));
+            ui.log("🔗 Tunnel established with " + userAddress + (resumed ? " (resumed TLS session)" : ""));
+            tunnel.run();
+            if (tunnel.canCompress()) ui.log("🗜️ Compression for " + userAddress + ": " + tunnel.compressionReport());
+            ui.log("Client " + userAddress + " disconnected.");
+        } catch (IOException e) {
+            ui.log("❌ Error handling user " + userAddress + ": " + e.getMessage());
+        } finally {
+            datagramTunnels.forEach(TunnelConnection::close);
+            if (metrics != null) metrics.close();
+            if (share != null) share.release();
+            permit.release();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                ui.log("❌ Error closing client socket for " + userAddress + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Called on the tunnel reader thread when the client sets up a datagram connection: it runs next to
+     * the TLS one, for as long as that lives, and its streams are served the same way. A new setup
+     * replaces the previous one.
+     */
+    private void acceptDatagramTunnel(TunnelConnection udp) {
+        datagramTunnels.forEach(TunnelConnection::close);
+        datagramTunnels.add(udp);
+        threadMode.start("vpn-udp-" + userAddress, () -> {
+            ui.log("📡 Datagram transport established with " + userAddress);
+            udp.run();
+            datagramBytesReceived.add(udp.bytesReceived());
+            datagramBytesSent.add(udp.bytesSent());
+            datagramTunnels.remove(udp);
+            ui.log(LogLevel.INFO, "📡 Datagram transport with {} closed: {}", userAddress, udp.transportReport());
+        });
+    }
+
+    private long datagramBytes(boolean received) {
+        long total = received ? datagramBytesReceived.sum() : datagramBytesSent.sum();
+        for (TunnelConnection udp : datagramTunnels) total += received ? udp.bytesReceived() : udp.bytesSent();
+        return total;
+    }
+
+    /**
+     * Called on the tunnel reader thread for each new stream. Over the concurrency limit the stream is
+     * answered with a 503 right here, so overload costs no thread.
+     */
+    private void acceptStream(TunnelStream stream) {
+        if (!admission.tryStartRequest()) {
+            ui.log(LogLevel.WARN, "🚫 Overloaded, refusing request on stream {} for {}", stream.getId(), userAddress);
+            try {
+                OutputStream out = stream.getOutputStream();
+                out.write(AdmissionControl.OVERLOADED);
+                out.close();
+            } catch (IOException e) {
+                stream.reset();
+            }
+            return;
+        }
+        threadMode.start("vpn-stream-" + stream.getId(), () -> {
+            try {
+                handleStream(stream);
+            } finally {
+                admission.requestDone();
+            }
+        });
+    }
+
+    /**
+     * Paces writes to the client by this user's bandwidth share, if shaping is enabled.
+     */
+    private OutputStream shaped(OutputStream out) {
+        return share == null ? out : share.output(out);
+    }
+
+    /**
+     * Handles a single proxied request carried on one tunnel stream.
+     */
+    private void handleStream(TunnelStream stream) {
+        HttpInput input = null;
+        metrics.streamOpened();
+        // Resetting the stream wakes this thread from whatever tunnel read or write it is blocked in.
+        TimerWheel.Timeout deadline = Deadline.HEADER.arm(stream::reset);
         try (
-                InputStream clientIn = clientSocket.getInputStream();
-                OutputStream clientOut = clientSocket.getOutputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(clientIn));
-                PrintWriter writer = new PrintWriter(clientOut, true)
+                InputStream clientIn = stream.getInputStream();
+                FlushingOutput clientOut = Relay.output(shaped(ResponseCompression.wrap(stream)))
         ) {
-            // Read HTTP request from client.
-            String requestLine = reader.readLine();
-            if (requestLine == null) {
-                ui.log("Client " + userAddress + " disconnected.");
+            // Read and parse the HTTP request head in place.
+            input = new HttpInput(clientIn);
+            HttpHead request = new HttpHead();
+            if (!input.readHead(request)) {
                 return;
             }
+            deadline.cancel();
+            String requestLine = request.startLine();
 
-            ui.log("📥 Incoming Request from " + userAddress + ": " + requestLine);
+            ui.log(LogLevel.INFO, "📥 Incoming Request from {}: {}", userAddress, requestLine);
 
-            // Read additional headers; look for the Host header.
-            String line, host = null;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                if (line.toLowerCase().startsWith("host: ")) {
-                    host = line.substring(6).trim();
-                }
+            if (request.methodIs("CONNECT")) {
+                tunnelToTarget(stream, request.token(1), input, clientOut);
+                return;
             }
+            deadline = Deadline.REQUEST.arm(stream::reset);
 
             // Validate host header.
-            if (host == null) {
-                ui.log("❌ No Host Header Found for " + userAddress + "!");
-                sendErrorResponse(writer, 400, "Bad Request: Missing Host Header");
+            String host = request.header("host");
+            if (host == null || host.isEmpty()) {
+                ui.log(LogLevel.WARN, "❌ No Host Header Found for {}!", userAddress);
+                sendErrorResponse(new PrintWriter(clientOut, true), 400, "Bad Request: Missing Host Header");
+                return;
+            }
+            if (refuseBlocked(host, clientOut)) return;
+            int port = TargetPolicy.port(host, 80);
+            if (port >= 0 && refusePort(port, false, clientOut)) return;
+            try {
+                request.checkRequestFraming();
+            } catch (IOException e) {
+                ui.log(LogLevel.WARN, "❌ Rejecting request from {}: {}", userAddress, e.getMessage());
+                sendErrorResponse(new PrintWriter(clientOut, true), 400, "Bad Request: " + e.getMessage());
                 return;
             }
 
-            // Forward the request to the target website using a raw byte transfer.
-            forwardHttpRequest(host, requestLine, clientOut);
+            // Forward the request (and stream its body) to the target website.
+            forwardHttpRequest(stream, request, input, clientOut);
         } catch (IOException e) {
-            ui.log("❌ Error handling user " + userAddress + ": " + e.getMessage());
+            ui.log(LogLevel.ERROR, "❌ Error handling request on stream {} for {}: {}", stream.getId(), userAddress, e.getMessage());
+            stream.reset();
         } finally {
-            ui.removeUser(userAddress);
+            deadline.cancel();
+            if (input != null) input.release();
+            metrics.streamClosed();
+        }
+    }
+
+    /**
+     * Opens a raw TCP connection to the CONNECT target and splices it with the tunnel stream. After the
+     * 200 reply no HTTP parsing takes place; bytes already buffered behind the CONNECT head go first.
+     */
+    private void tunnelToTarget(TunnelStream stream, String authority, HttpInput clientIn, FlushingOutput clientOut) throws IOException {
+        String hostName = authority;
+        int port = 443;
+        int colon = authority == null ? -1 : authority.lastIndexOf(':');
+        if (colon > 0 && authority.indexOf(']') < colon) {
+            hostName = authority.substring(0, colon);
             try {
-                clientSocket.close();
-            } catch (IOException e) {
-                ui.log("❌ Error closing client socket for " + userAddress + ": " + e.getMessage());
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                hostName = null;
+            }
+        }
+        if (hostName == null || hostName.isEmpty()) {
+            sendErrorResponse(new PrintWriter(clientOut, true), 400, "Bad Request: Invalid CONNECT target");
+            return;
+        }
+        if (refuseBlocked(hostName, clientOut)) return;
+        if (refusePort(port, true, clientOut)) return;
+
+        Socket target;
+        ConnectionRegistry.Origin origin = registry.origin(authority);
+        long connectStart = System.nanoTime();
+        try {
+            target = DnsCache.shared().connect(hostName, port, CONNECT_TIMEOUT_MS);
+            metrics.upstreamLatency(origin, System.nanoTime() - connectStart);
+        } catch (IOException e) {
+            metrics.upstreamFailed(origin);
+            ui.log(LogLevel.ERROR, "❌ Error connecting to {} for user {}: {}", authority, userAddress, e.getMessage());
+            sendErrorResponse(new PrintWriter(clientOut, true), 502, "Bad Gateway: Unable to reach target host");
+            return;
+        }
+        ui.log(LogLevel.INFO, "🔒 Tunnelling CONNECT from {} to {}", userAddress, authority);
+        clientOut.write("HTTP/1.1 200 Connection Established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        clientOut.flush();
+
+        // A splice with no bytes in either direction for the idle time is torn down.
+        TimerWheel.Timeout idle = Deadline.IDLE.arm(() -> {
+            stream.reset();
+            try {
+                target.close();
+            } catch (IOException ignored) {
             }
+        });
+        OutputStream streamOut = shaped(stream.getOutputStream());
+        Splice.Endpoint client = new Splice.Endpoint(idle.touching(clientIn), streamOut, streamOut::close,
+                () -> stream.getInputStream().close());
+        Splice.Endpoint remote = new Splice.Endpoint(idle.touching(target.getInputStream()), target.getOutputStream(),
+                target::shutdownOutput, target::close);
+        try {
+            Splice.duplex(client, remote, task -> threadMode.start("vpn-splice-" + stream.getId(), task));
+        } finally {
+            idle.cancel();
         }
     }
 
     /**
-     * Forwards the HTTP request to the target website using a regular socket,
-     * then relays the full response (headers and body) back to the client using raw byte transfer.
+     * Answers with a 403 if {@link TargetPolicy} does not allow {@code port} for this kind of request.
      */
-    private void forwardHttpRequest(String host, String requestLine, OutputStream clientOut) {
-        try (Socket serverSocket = new Socket(host, 80);
-             // We still use a PrintWriter to send the HTTP request.
-             PrintWriter serverWriter = new PrintWriter(serverSocket.getOutputStream(), true)
-        ) {
-            ui.log("🌍 Forwarding request from " + userAddress + " to " + host);
-
-            // Validate and correct the request line if necessary.
-            if (!requestLine.startsWith("GET") && !requestLine.startsWith("POST")) {
-                requestLine = "GET / HTTP/1.1";
-            }
-
-            // Send a well-formed HTTP request to the target server.
-            serverWriter.println(requestLine);
-            serverWriter.println("Host: " + host);
-            serverWriter.println("User-Agent: Mozilla/5.0 (Java VPN Client)");
-            serverWriter.println("Accept: */*");
-            serverWriter.println("Connection: close");
-            serverWriter.println();
-            serverWriter.flush();
-
-            // Use raw byte streams to forward the response.
-            InputStream serverIn = serverSocket.getInputStream();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = serverIn.read(buffer)) != -1) {
-                clientOut.write(buffer, 0, bytesRead);
-            }
-            clientOut.flush();
+    private boolean refusePort(int port, boolean connect, OutputStream clientOut) {
+        if (TargetPolicy.allowsPort(port, connect)) return false;
+        ui.log(LogLevel.WARN, "⛔ Refused {} from {} to port {}", connect ? "CONNECT" : "request", userAddress, port);
+        sendErrorResponse(new PrintWriter(clientOut, true), 403, "Forbidden: Port Not Allowed");
+        return true;
+    }
+
+    /**
+     * Answers with a 403 if {@code host} is on a blocklist.
+     */
+    private boolean refuseBlocked(String host, OutputStream clientOut) {
+        String list = filter.blocked(host);
+        if (list == null) return false;
+        ui.log(LogLevel.INFO, "⛔ Blocked request from {} to {} (list {})", userAddress, host, list);
+        sendErrorResponse(new PrintWriter(clientOut, true), 403, "Forbidden: Blocked Domain");
+        return true;
+    }
+
+    /**
+     * Forwards the HTTP request to the target website through the shared upstream engine, which reuses
+     * keep-alive (or HTTP/2) connections to the origin, and relays the full response back to the client.
+     * Cacheable GETs go through the shared response cache first.
+     * The client's header fields are kept and a request body is streamed from {@code body} as it arrives.
+     * A failure before any of the response was written is answered with a 502; after that the stream is
+     * reset, so the client sees the response cut off rather than a second head inside its body.
+     */
+    private void forwardHttpRequest(TunnelStream stream, HttpHead request, HttpInput body, FlushingOutput clientOut) {
+        String host = request.header("host");
+        ui.log(LogLevel.INFO, "🌍 Forwarding request from {} to {}", userAddress, host);
+
+        // Validate and correct the request line if necessary.
+        String requestLine = request.startLine();
+        if (request.tokenCount() < 3) {
+            requestLine = "GET / HTTP/1.1";
+        }
+
+        ConnectionRegistry.Origin origin = registry.origin(host);
+        // Timed to the first response byte; with Expect: 100-continue that would only be our own interim reply.
+        OutputStream out = Relay.expectsContinue(request) ? clientOut : metrics.timeFirstByte(clientOut, origin);
+        long written = clientOut.written();
+        try {
+            if (cache != null && cache.accepts(request)) {
+                cache.forward(request, requestLine, body, out);
+            } else {
+                upstream.forward(request, requestLine, body, out);
+            }
         } catch (IOException e) {
-            ui.log("❌ Error forwarding request for user " + userAddress + ": " + e.getMessage());
-            sendErrorResponse(new PrintWriter(clientOut, true), 502, "Bad Gateway: Unable to reach target host");
+            metrics.upstreamFailed(origin);
+            ui.log(LogLevel.ERROR, "❌ Error forwarding request for user {}: {}", userAddress, e.getMessage());
+            if (clientOut.written() == written) {
+                sendErrorResponse(new PrintWriter(clientOut, true), 502, "Bad Gateway: Unable to reach target host");
+            } else {
+                stream.reset();
+            }
         }
     }
 
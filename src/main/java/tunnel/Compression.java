@@ -0,0 +1,191 @@
+package tunnel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection DATA frame compression. Every compressed frame is a self-contained zlib block, so
+ * frames of different streams can interleave freely and the reader needs no per-stream state. Deflaters
+ * are pooled and reused by writer threads; the single Inflater belongs to the connection's reader thread.
+ * A frame that does not shrink is sent as it is.
+ *
+ * Tunables (system properties): vpn.compression (true; false neither offers nor accepts compression),
+ * vpn.compression.level (1), vpn.compression.minBytes (512).
+ */
+public final class Compression {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("vpn.compression", "true"));
+    private static final int LEVEL = Integer.getInteger("vpn.compression.level", Deflater.BEST_SPEED);
+    private static final int MIN_BYTES = Integer.getInteger("vpn.compression.minBytes", 512);
+
+    private static final Stats TOTALS = new Stats();
+
+    private final Stats stats = new Stats();
+    private final ReentrantLock poolLock = new ReentrantLock();
+    private final ArrayDeque<Deflating> deflaters = new ArrayDeque<>();
+    private final Inflater inflater = new Inflater();
+    private final byte[] inflated = new byte[Frame.MAX_PAYLOAD];
+    private boolean closed = false;
+
+    /**
+     * Receives a DATA payload together with its flags.
+     */
+    interface FrameWriter {
+        void write(byte flags, byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * Hands {@code b[off, off+len)} to {@code writer}, compressed if that makes it smaller.
+     */
+    void write(byte[] b, int off, int len, FrameWriter writer) throws IOException {
+        if (len < MIN_BYTES) {
+            writer.write((byte) 0, b, off, len);
+            return;
+        }
+        long start = System.nanoTime();
+        Deflating deflating = borrow();
+        try {
+            Deflater deflater = deflating.deflater;
+            deflater.setInput(b, off, len);
+            deflater.finish();
+            int n = deflater.deflate(deflating.out, 0, len - 1);
+            boolean shrunk = deflater.finished();
+            deflater.reset();
+            record(len, shrunk ? n : len, System.nanoTime() - start, true);
+            if (shrunk) {
+                writer.write(Frame.FLAG_COMPRESSED, deflating.out, 0, n);
+            } else {
+                stats.framesSentRaw.increment();
+                TOTALS.framesSentRaw.increment();
+                writer.write((byte) 0, b, off, len);
+            }
+        } finally {
+            giveBack(deflating);
+        }
+    }
+
+    /**
+     * Expands one compressed frame. Reader thread only.
+     */
+    byte[] inflate(byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        try {
+            inflater.reset();
+            inflater.setInput(payload);
+            int n = inflater.inflate(inflated);
+            // A frame never expands beyond one full payload; anything else is corrupt or hostile.
+            if (!inflater.finished()) throw new IOException("Malformed compressed frame");
+            record(n, payload.length, System.nanoTime() - start, false);
+            return Arrays.copyOf(inflated, n);
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame: " + e.getMessage());
+        }
+    }
+
+    private Deflating borrow() {
+        poolLock.lock();
+        try {
+            Deflating deflating = deflaters.pollFirst();
+            return deflating != null ? deflating : new Deflating();
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private void giveBack(Deflating deflating) {
+        poolLock.lock();
+        try {
+            if (!closed) {
+                deflaters.addFirst(deflating);
+                return;
+            }
+        } finally {
+            poolLock.unlock();
+        }
+        deflating.deflater.end();
+    }
+
+    private void record(long raw, long wire, long nanos, boolean sent) {
+        stats.add(raw, wire, nanos, sent);
+        TOTALS.add(raw, wire, nanos, sent);
+    }
+
+    /**
+     * Frees the native zlib state. Deflaters still borrowed are freed as they come back; the Inflater
+     * must no longer be in use, so call this from the reader thread.
+     */
+    void close() {
+        poolLock.lock();
+        try {
+            closed = true;
+            deflaters.forEach(deflating -> deflating.deflater.end());
+            deflaters.clear();
+        } finally {
+            poolLock.unlock();
+        }
+        inflater.end();
+    }
+
+    /**
+     * This connection's figures.
+     */
+    public String report() {
+        return stats.report();
+    }
+
+    /**
+     * Figures over all connections since startup.
+     */
+    public static String totalReport() {
+        return TOTALS.report();
+    }
+
+    /**
+     * A pooled Deflater with its output buffer.
+     */
+    private static final class Deflating {
+        final Deflater deflater = new Deflater(LEVEL);
+        final byte[] out = new byte[Frame.MAX_PAYLOAD];
+    }
+
+    private static final class Stats {
+        final LongAdder rawSent = new LongAdder();
+        final LongAdder wireSent = new LongAdder();
+        final LongAdder deflateNanos = new LongAdder();
+        final LongAdder rawReceived = new LongAdder();
+        final LongAdder wireReceived = new LongAdder();
+        final LongAdder inflateNanos = new LongAdder();
+        final LongAdder framesSentRaw = new LongAdder();
+
+        void add(long raw, long wire, long nanos, boolean sent) {
+            (sent ? rawSent : rawReceived).add(raw);
+            (sent ? wireSent : wireReceived).add(wire);
+            (sent ? deflateNanos : inflateNanos).add(nanos);
+        }
+
+        /**
+         * E.g. "sent 4.1 MB as 1.2 MB (29%) in 38 ms, received 0 B as 0 B in 0 ms, 3 frames left raw".
+         */
+        String report() {
+            return "sent " + direction(rawSent.sum(), wireSent.sum(), deflateNanos.sum())
+                    + ", received " + direction(rawReceived.sum(), wireReceived.sum(), inflateNanos.sum())
+                    + ", " + framesSentRaw.sum() + " frames left raw";
+        }
+
+        private static String direction(long raw, long wire, long nanos) {
+            return size(raw) + " as " + size(wire) + (raw == 0 ? "" : " (" + wire * 100 / raw + "%)")
+                    + " in " + nanos / 1_000_000 + " ms";
+        }
+
+        private static String size(long bytes) {
+            if (bytes < 1024) return bytes + " B";
+            if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+    }
+}
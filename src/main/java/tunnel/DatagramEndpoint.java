@@ -0,0 +1,153 @@
+package tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A UDP socket carrying {@link DatagramTransport} packets. The server binds one for all of its clients and
+ * tells their packets apart by the connection ID at the head of each; a client connects one per server.
+ * A single thread receives and opens every packet of the endpoint, so the receive side of each transport
+ * is never touched by two threads at once.
+ *
+ * Tunables (system properties): vpn.datagram.socketBuffer (4194304 bytes, send and receive).
+ */
+public final class DatagramEndpoint implements Closeable {
+    private static final int SOCKET_BUFFER = Integer.getInteger("vpn.datagram.socketBuffer", 4 * 1024 * 1024);
+    private static final int MAX_PACKET = 64 * 1024;
+
+    private final DatagramChannel channel;
+    private final boolean server;
+    private final int port;
+    private final int advertisedPort;
+    private final Map<Long, DatagramTransport> transports = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private DatagramEndpoint(DatagramChannel channel, boolean server, int advertisedPort) throws IOException {
+        this.channel = channel;
+        this.server = server;
+        this.port = server ? ((InetSocketAddress) channel.getLocalAddress()).getPort()
+                : ((InetSocketAddress) channel.getRemoteAddress()).getPort();
+        this.advertisedPort = advertisedPort > 0 ? advertisedPort : port;
+        Thread receiver = new Thread(this::receive, "vpn-udp-" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Server side: listens on {@code port} (0 for any) for the transports set up by its tunnels.
+     *
+     * @param advertisedPort the port clients are told to send to, when a NAT or relay in front of the
+     *                       server forwards a different one; 0 for the bound port
+     */
+    public static DatagramEndpoint bind(int port, int advertisedPort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            configure(channel);
+            channel.bind(new InetSocketAddress(port));
+            return new DatagramEndpoint(channel, true, advertisedPort);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Client side: a socket connected to the server's endpoint, so ICMP errors from it surface as
+     * exceptions instead of silent loss.
+     */
+    static DatagramEndpoint connect(String host, int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            configure(channel);
+            channel.connect(new InetSocketAddress(host, port));
+            return new DatagramEndpoint(channel, false, 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void configure(DatagramChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+    }
+
+    /**
+     * The local port of a server endpoint, the server's port of a client one.
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * The port a client should send to.
+     */
+    public int advertisedPort() {
+        return advertisedPort;
+    }
+
+    /**
+     * Adds a transport keyed from both sides' random values. A server transport learns its peer's
+     * address from the first packet that authenticates.
+     */
+    DatagramTransport open(long connectionId, byte[] clientRandom, byte[] serverRandom, String cipherSuite,
+                           boolean client) throws GeneralSecurityException, IOException {
+        if (closed) throw new IOException("Datagram endpoint is closed");
+        SocketAddress peer = server ? null : channel.getRemoteAddress();
+        DatagramTransport transport = new DatagramTransport(this, connectionId, clientRandom, serverRandom, cipherSuite, client, peer);
+        if (transports.putIfAbsent(connectionId, transport) != null) throw new IOException("Duplicate datagram connection ID");
+        return transport;
+    }
+
+    void send(ByteBuffer packet, SocketAddress peer) throws IOException {
+        if (server) {
+            channel.send(packet, peer);
+        } else {
+            channel.write(packet);
+        }
+    }
+
+    /**
+     * Forgets a closed transport; a client endpoint only ever has one, and closes with it.
+     */
+    void remove(DatagramTransport transport) {
+        transports.remove(transport.connectionId(), transport);
+        if (!server) close();
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET);
+        try {
+            while (!closed) {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                if (buffer.position() < DatagramTransport.HEADER_SIZE) continue;
+                DatagramTransport transport = transports.get(buffer.getLong(0));
+                if (transport != null) transport.receive(buffer.array(), buffer.position(), from);
+            }
+        } catch (IOException e) {
+            // Closed, or (client) the server's port is unreachable: either way the transports are done.
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (DatagramTransport transport : transports.values()) transport.close();
+    }
+}
@@ -0,0 +1,675 @@
+package tunnel;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tunnel frames over UDP, so that a lost packet only delays the stream it belonged to.
+ *
+ * A packet is [connectionId:8][packetNumber:8][sealed records], sealed on its own with an AEAD whose
+ * associated data is that 16-byte header and whose nonce is the packet number XORed into a per-direction
+ * IV. The keys come from HKDF-SHA256 over random values both sides exchanged inside the TLS tunnel; the
+ * AEAD is ChaCha20-Poly1305 when the TLS suite is, AES-256-GCM otherwise. Packets whose number is below
+ * the replay window, or already seen in it, are dropped before they are opened.
+ *
+ * Each stream (and stream 0, for connection frames) is its own reliable, ordered channel of frames.
+ * A SEGMENT record carries one frame with its sequence number in the channel, an ACK record the next
+ * sequence number a channel expects plus a bitmap of the 64 after it that arrived early. A segment is
+ * sent again once three later ones are acknowledged, or when the retransmission timeout (RFC 6298,
+ * from the connection's RTT) expires. DATA frames are cut to fit a packet and sent within their channel's
+ * congestion window: slow start, halved once per round with losses, back to 2 segments on a timeout.
+ * Other frames are never held back by the window.
+ *
+ * Tunables (system properties): vpn.datagram.segmentSize (1200 payload bytes per packet),
+ * vpn.datagram.initialWindow (10 segments), vpn.datagram.maxWindow (1024 segments),
+ * vpn.datagram.minRtoMillis (50), vpn.datagram.maxRetransmits (10; a segment sent that many times
+ * more without an answer drops the connection).
+ */
+public final class DatagramTransport implements FrameTransport {
+    static final int HEADER_SIZE = 16;
+    private static final int TAG_SIZE = 16;
+    // Records: [SEGMENT][streamId:4][seq:4][type:1][flags:1][length:2][payload], [ACK][streamId:4][next:4][early:8]
+    private static final byte SEGMENT = 1;
+    private static final byte ACK = 2;
+    private static final int SEGMENT_HEADER = 13;
+    private static final int ACK_SIZE = 17;
+
+    private static final int SEGMENT_SIZE = Math.clamp(Integer.getInteger("vpn.datagram.segmentSize", 1200), 256, 8192);
+    private static final int INITIAL_WINDOW = Math.max(Integer.getInteger("vpn.datagram.initialWindow", 10), 2);
+    private static final int MAX_WINDOW = Math.max(Integer.getInteger("vpn.datagram.maxWindow", 1024), INITIAL_WINDOW);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(Long.getLong("vpn.datagram.minRtoMillis", 50), 1));
+    private static final long MAX_RTO_NANOS = Math.max(TimeUnit.SECONDS.toNanos(2), MIN_RTO_NANOS);
+    private static final long INITIAL_RTO_NANOS = Math.max(TimeUnit.MILLISECONDS.toNanos(500), MIN_RTO_NANOS);
+    private static final int MAX_RETRANSMITS = Math.max(Integer.getInteger("vpn.datagram.maxRetransmits", 10), 1);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // How long a lone segment may wait for a second one before it is acknowledged anyway.
+    private static final long ACK_DELAY_NANOS = TICK_NANOS;
+    // A finished channel stays around this long to acknowledge late retransmits of its last segments.
+    private static final long TIME_WAIT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int REPLAY_WINDOW = 1024;
+    private static final byte[] EMPTY = new byte[0];
+    // Handed to the reader once the transport closes.
+    private static final Frame END = new Frame((byte) 0, (byte) 0, 0, EMPTY);
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vpn-udp-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final DatagramEndpoint endpoint;
+    private final long connectionId;
+    private volatile SocketAddress peer;
+    private final boolean chacha;
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final byte[] sendIv;
+    private final byte[] receiveIv;
+
+    // Guards the sending cipher, the packet numbers and the send buffers.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Cipher sealer;
+    private final byte[] plain = new byte[SEGMENT_SIZE + SEGMENT_HEADER + ACK_SIZE];
+    private final byte[] sealed = new byte[HEADER_SIZE + SEGMENT_SIZE + SEGMENT_HEADER + ACK_SIZE + TAG_SIZE];
+    private long nextPacket = 0;
+
+    // Receive side, used by the endpoint's receiver thread only.
+    private final Cipher opener;
+    // Room for the largest segment size either side may be configured with.
+    private final byte[] opened = new byte[8192 + SEGMENT_HEADER + ACK_SIZE];
+    private final long[] seen = new long[REPLAY_WINDOW / 64];
+    private long highestPacket = -1;
+
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Frame> inbound = new LinkedBlockingQueue<>();
+    // RTT estimate in nanos (RFC 6298); written by the receiver thread only.
+    private volatile long srtt = 0;
+    private volatile long rttvar = 0;
+    private volatile long rto = INITIAL_RTO_NANOS;
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final ScheduledFuture<?> ticker;
+    private volatile boolean closed = false;
+
+    DatagramTransport(DatagramEndpoint endpoint, long connectionId, byte[] clientRandom, byte[] serverRandom,
+                      String cipherSuite, boolean client, SocketAddress peer) throws GeneralSecurityException {
+        this.endpoint = endpoint;
+        this.connectionId = connectionId;
+        this.peer = peer;
+        this.chacha = cipherSuite.contains("CHACHA20");
+        byte[] keys = expandKeys(clientRandom, serverRandom);
+        String keyAlgorithm = chacha ? "ChaCha20" : "AES";
+        SecretKeySpec clientKey = new SecretKeySpec(keys, 0, 32, keyAlgorithm);
+        SecretKeySpec serverKey = new SecretKeySpec(keys, 44, 32, keyAlgorithm);
+        byte[] clientIv = Arrays.copyOfRange(keys, 32, 44);
+        byte[] serverIv = Arrays.copyOfRange(keys, 76, 88);
+        this.sendKey = client ? clientKey : serverKey;
+        this.sendIv = client ? clientIv : serverIv;
+        this.receiveKey = client ? serverKey : clientKey;
+        this.receiveIv = client ? serverIv : clientIv;
+        String transformation = chacha ? "ChaCha20-Poly1305" : "AES/GCM/NoPadding";
+        this.sealer = Cipher.getInstance(transformation);
+        this.opener = Cipher.getInstance(transformation);
+        channels.put(0, new Channel(0));
+        this.ticker = TICKER.scheduleWithFixedDelay(this::tick, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) of both random values into client key and IV, then server key and IV.
+     */
+    private static byte[] expandKeys(byte[] clientRandom, byte[] serverRandom) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec("vpn datagram salt".getBytes(StandardCharsets.US_ASCII), "HmacSHA256"));
+        mac.update(clientRandom);
+        byte[] prk = mac.doFinal(serverRandom);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] info = "vpn datagram keys".getBytes(StandardCharsets.US_ASCII);
+        byte[] keys = new byte[2 * (32 + 12)];
+        byte[] block = EMPTY;
+        for (int i = 1, off = 0; off < keys.length; i++, off += block.length) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, keys, off, Math.min(block.length, keys.length - off));
+        }
+        return keys;
+    }
+
+    private AlgorithmParameterSpec nonce(byte[] iv, long packetNumber) {
+        byte[] nonce = iv.clone();
+        for (int i = 0; i < 8; i++) nonce[4 + i] ^= (byte) (packetNumber >>> (56 - 8 * i));
+        return chacha ? new IvParameterSpec(nonce) : new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    long connectionId() {
+        return connectionId;
+    }
+
+    // ---- FrameTransport ----
+
+    @Override
+    public Frame read() throws IOException {
+        try {
+            Frame frame = inbound.take();
+            return frame == END ? null : frame;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    @Override
+    public void write(byte type, byte flags, int streamId, byte[] buf, int off, int len) throws IOException {
+        if (type != Frame.DATA && len > SEGMENT_SIZE) throw new IOException("Frame too large for a datagram");
+        Channel channel = channels.computeIfAbsent(streamId, Channel::new);
+        do {
+            int n = Math.min(len, SEGMENT_SIZE);
+            channel.send(type, flags, n == 0 ? EMPTY : Arrays.copyOfRange(buf, off, off + n));
+            off += n;
+            len -= n;
+        } while (len > 0);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        ticker.cancel(false);
+        endpoint.remove(this);
+        for (Channel channel : channels.values()) channel.wake();
+        inbound.add(END);
+    }
+
+    /**
+     * Packet and loss figures, e.g. "12034 packets out (1.3% resent), 11020 in, 0 rejected, RTT 21.4 ms".
+     */
+    public String report() {
+        long sent = packetsSent.sum();
+        return String.format("%d packets out (%.1f%% resent), %d in, %d rejected, RTT %.1f ms",
+                sent, sent == 0 ? 0.0 : 100.0 * retransmits.sum() / sent, packetsReceived.sum(), rejected.sum(), srtt / 1e6);
+    }
+
+    // ---- Sending ----
+
+    private void transmit(int streamId, Segment segment) throws IOException {
+        sendLock.lock();
+        try {
+            plain[0] = SEGMENT;
+            Frame.putInt(plain, 1, streamId);
+            Frame.putInt(plain, 5, segment.seq);
+            plain[9] = segment.type;
+            plain[10] = segment.flags;
+            plain[11] = (byte) (segment.payload.length >>> 8);
+            plain[12] = (byte) segment.payload.length;
+            System.arraycopy(segment.payload, 0, plain, SEGMENT_HEADER, segment.payload.length);
+            seal(SEGMENT_HEADER + segment.payload.length);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    private void sendAcks(List<Channel> due) throws IOException {
+        sendLock.lock();
+        try {
+            int length = 0;
+            for (Channel channel : due) {
+                if (length + ACK_SIZE > SEGMENT_SIZE) {
+                    seal(length);
+                    length = 0;
+                }
+                channel.writeAck(plain, length);
+                length += ACK_SIZE;
+            }
+            if (length > 0) seal(length);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Called with sendLock held; sends plain[0, length) as one packet.
+    private void seal(int length) throws IOException {
+        SocketAddress to = peer;
+        // A server transport cannot send before the client's first packet arrives; its segments go out then.
+        if (to == null || closed) return;
+        long packetNumber = nextPacket++;
+        Frame.putLong(sealed, 0, connectionId);
+        Frame.putLong(sealed, 8, packetNumber);
+        int n;
+        try {
+            sealer.init(Cipher.ENCRYPT_MODE, sendKey, nonce(sendIv, packetNumber));
+            sealer.updateAAD(sealed, 0, HEADER_SIZE);
+            n = sealer.doFinal(plain, 0, length, sealed, HEADER_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal datagram", e);
+        }
+        endpoint.send(ByteBuffer.wrap(sealed, 0, HEADER_SIZE + n), to);
+        packetsSent.increment();
+    }
+
+    // ---- Receiving (endpoint receiver thread) ----
+
+    /**
+     * Opens one packet and applies its records; anything that does not authenticate is dropped.
+     */
+    void receive(byte[] packet, int length, SocketAddress from) {
+        if (closed) return;
+        long packetNumber = Frame.getLong(packet, 8);
+        if (length < HEADER_SIZE + TAG_SIZE || !fresh(packetNumber)) {
+            rejected.increment();
+            return;
+        }
+        int n;
+        try {
+            opener.init(Cipher.DECRYPT_MODE, receiveKey, nonce(receiveIv, packetNumber));
+            opener.updateAAD(packet, 0, HEADER_SIZE);
+            n = opener.doFinal(packet, HEADER_SIZE, length - HEADER_SIZE, opened, 0);
+        } catch (GeneralSecurityException e) {
+            // Forged, corrupted or oversized
+            rejected.increment();
+            return;
+        }
+        boolean newest = packetNumber > highestPacket;
+        markSeen(packetNumber);
+        packetsReceived.increment();
+        // Follow the client to a new address (NAT rebinding), but only on its newest authentic packets.
+        if (newest && !from.equals(peer)) {
+            boolean first = peer == null;
+            peer = from;
+            if (first) resendAll();
+        }
+        List<Channel> ackNow = new ArrayList<>(2);
+        long now = System.nanoTime();
+        try {
+            for (int i = 0; i < n; ) {
+                byte record = opened[i];
+                if (record == SEGMENT && i + SEGMENT_HEADER <= n) {
+                    int streamId = Frame.getInt(opened, i + 1);
+                    int seq = Frame.getInt(opened, i + 5);
+                    int payloadLength = ((opened[i + 11] & 0xFF) << 8) | (opened[i + 12] & 0xFF);
+                    int start = i + SEGMENT_HEADER;
+                    if (start + payloadLength > n) break;
+                    Frame frame = new Frame(opened[i + 9], opened[i + 10], streamId,
+                            payloadLength == 0 ? EMPTY : Arrays.copyOfRange(opened, start, start + payloadLength));
+                    Channel channel = channels.computeIfAbsent(streamId, Channel::new);
+                    if (channel.receive(seq, frame, now) && !ackNow.contains(channel)) ackNow.add(channel);
+                    i = start + payloadLength;
+                } else if (record == ACK && i + ACK_SIZE <= n) {
+                    Channel channel = channels.get(Frame.getInt(opened, i + 1));
+                    if (channel != null) channel.acknowledge(Frame.getInt(opened, i + 5), Frame.getLong(opened, i + 9), now);
+                    i += ACK_SIZE;
+                } else {
+                    break;
+                }
+            }
+            if (!ackNow.isEmpty()) sendAcks(ackNow);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private boolean fresh(long packetNumber) {
+        if (packetNumber > highestPacket) return true;
+        if (packetNumber < 0 || highestPacket - packetNumber >= REPLAY_WINDOW) return false;
+        return (seen[(int) (packetNumber % REPLAY_WINDOW) >>> 6] & (1L << packetNumber)) == 0;
+    }
+
+    private void markSeen(long packetNumber) {
+        if (packetNumber > highestPacket) {
+            if (packetNumber - highestPacket >= REPLAY_WINDOW) {
+                Arrays.fill(seen, 0);
+            } else {
+                for (long p = highestPacket + 1; p < packetNumber; p++) {
+                    seen[(int) (p % REPLAY_WINDOW) >>> 6] &= ~(1L << p);
+                }
+            }
+            highestPacket = packetNumber;
+        }
+        seen[(int) (packetNumber % REPLAY_WINDOW) >>> 6] |= 1L << packetNumber;
+    }
+
+    private void sampleRtt(long sample) {
+        if (srtt == 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        // The peer may hold its ACK back for up to ACK_DELAY_NANOS, on top of the variance.
+        rto = Math.clamp(srtt + Math.max(TICK_NANOS, 4 * rttvar) + ACK_DELAY_NANOS, MIN_RTO_NANOS, MAX_RTO_NANOS);
+    }
+
+    private void resendAll() {
+        try {
+            for (Channel channel : channels.values()) channel.resend(0, System.nanoTime());
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // ---- Timer ----
+
+    /**
+     * Every tick: sends delayed ACKs, resends segments whose timeout expired and forgets channels whose
+     * time-wait is over.
+     */
+    private void tick() {
+        if (closed) return;
+        long now = System.nanoTime();
+        List<Channel> due = new ArrayList<>();
+        try {
+            for (Iterator<Channel> it = channels.values().iterator(); it.hasNext(); ) {
+                Channel channel = it.next();
+                if (channel.ackDue(now)) due.add(channel);
+                if (!channel.checkTimeout(now)) {
+                    close();
+                    return;
+                }
+                if (channel.expired(now)) it.remove();
+            }
+            if (!due.isEmpty()) sendAcks(due);
+        } catch (IOException e) {
+            close();
+        } catch (RuntimeException e) {
+            // Keep the shared timer thread alive for the other transports.
+            close();
+        }
+    }
+
+    /**
+     * A frame in flight.
+     */
+    private static final class Segment {
+        final int seq;
+        final byte type;
+        final byte flags;
+        final byte[] payload;
+        long sentAt;
+        int transmissions;
+
+        Segment(int seq, byte type, byte flags, byte[] payload) {
+            this.seq = seq;
+            this.type = type;
+            this.flags = flags;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Both directions of one stream: the segments we sent that are not acknowledged yet, with the
+     * congestion window over them, and the sequence numbers we received.
+     */
+    private final class Channel {
+        private final int id;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition window = lock.newCondition();
+        // Sending
+        private final TreeMap<Integer, Segment> unacked = new TreeMap<>();
+        private int nextSeq = 0;
+        private double cwnd = INITIAL_WINDOW;
+        private double ssthresh = MAX_WINDOW;
+        private int highestAcked = -1;
+        // Losses below this sequence number belong to the round the window was already cut for.
+        private int recoveryEnd = 0;
+        private int backoff = 0;
+        private boolean endSent;
+        // Receiving
+        private final TreeMap<Integer, Frame> early = new TreeMap<>();
+        private int expected = 0;
+        private int unackedReceived = 0;
+        private long ackDueAt = 0;
+        private boolean endReceived;
+        private long finishedAt = 0;
+
+        Channel(int id) {
+            this.id = id;
+        }
+
+        /**
+         * Queues one frame; DATA waits for room in the congestion window.
+         */
+        void send(byte type, byte flags, byte[] payload) throws IOException {
+            Segment segment;
+            lock.lock();
+            try {
+                if (type == Frame.DATA) {
+                    while (unacked.size() >= (int) cwnd && !closed) {
+                        window.awaitNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                }
+                if (closed) throw new IOException("Datagram transport is closed");
+                segment = new Segment(nextSeq++, type, flags, payload);
+                segment.sentAt = System.nanoTime();
+                segment.transmissions = 1;
+                unacked.put(segment.seq, segment);
+                if (type == Frame.FIN || type == Frame.RESET) endSent = true;
+                // A reset ends the stream both ways; the peer sends nothing more on it.
+                if (type == Frame.RESET) endReceived = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } finally {
+                lock.unlock();
+            }
+            transmit(id, segment);
+        }
+
+        /**
+         * Takes a received segment in and delivers what is now in order. Returns true if it should be
+         * acknowledged right away: every second segment, and anything out of order or duplicate.
+         */
+        boolean receive(int seq, Frame frame, long now) {
+            lock.lock();
+            try {
+                boolean immediate;
+                if (seq < expected || early.containsKey(seq)) {
+                    immediate = true;
+                } else if (seq == expected) {
+                    deliver(frame);
+                    expected++;
+                    for (Frame next; (next = early.remove(expected)) != null; expected++) deliver(next);
+                    immediate = !early.isEmpty();
+                } else {
+                    if (seq - expected > 2 * MAX_WINDOW) return false;
+                    early.put(seq, frame);
+                    immediate = true;
+                }
+                if (immediate || ++unackedReceived >= 2) {
+                    ackDueAt = 0;
+                    return true;
+                }
+                if (ackDueAt == 0) ackDueAt = now + ACK_DELAY_NANOS;
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void deliver(Frame frame) {
+            if (frame.type == Frame.FIN || frame.type == Frame.RESET) endReceived = true;
+            if (frame.type == Frame.RESET) endSent = true;
+            inbound.add(frame);
+            finishIfDone();
+        }
+
+        /**
+         * Writes an ACK record of the receive state; called with the transport's sendLock held.
+         */
+        void writeAck(byte[] b, int off) {
+            lock.lock();
+            try {
+                long bits = 0;
+                for (int seq : early.subMap(expected + 1, expected + 65).keySet()) bits |= 1L << (seq - expected - 1);
+                b[off] = ACK;
+                Frame.putInt(b, off + 1, id);
+                Frame.putInt(b, off + 5, expected);
+                Frame.putLong(b, off + 9, bits);
+                unackedReceived = 0;
+                ackDueAt = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean ackDue(long now) {
+            long due = ackDueAt;
+            return due != 0 && now - due >= 0;
+        }
+
+        /**
+         * Applies the peer's ACK: frees acknowledged segments, grows the window, and resends segments
+         * that three later ones overtook.
+         */
+        void acknowledge(int next, long earlyBits, long now) throws IOException {
+            List<Segment> lost = new ArrayList<>();
+            long rttSample = -1;
+            lock.lock();
+            try {
+                int acked = 0;
+                for (Iterator<Segment> it = unacked.headMap(next).values().iterator(); it.hasNext(); ) {
+                    Segment segment = it.next();
+                    if (segment.transmissions == 1) rttSample = now - segment.sentAt;
+                    it.remove();
+                    acked++;
+                }
+                highestAcked = Math.max(highestAcked, next - 1);
+                for (int i = 0; i < 64 && earlyBits != 0; i++, earlyBits >>>= 1) {
+                    if ((earlyBits & 1) == 0) continue;
+                    Segment segment = unacked.remove(next + 1 + i);
+                    if (segment != null) {
+                        if (segment.transmissions == 1) rttSample = now - segment.sentAt;
+                        acked++;
+                    }
+                    highestAcked = Math.max(highestAcked, next + 1 + i);
+                }
+                if (acked > 0) {
+                    backoff = 0;
+                    for (int i = 0; i < acked; i++) cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+                    cwnd = Math.min(cwnd, MAX_WINDOW);
+                }
+                // Overtaken, and older than an RTT and a quarter: lost rather than just reordered.
+                long threshold = Math.max(srtt + srtt / 4, TICK_NANOS);
+                for (Segment segment : unacked.headMap(highestAcked - 2).values()) {
+                    if (now - segment.sentAt < threshold) continue;
+                    segment.sentAt = now;
+                    segment.transmissions++;
+                    lost.add(segment);
+                }
+                if (!lost.isEmpty() && lost.get(0).seq >= recoveryEnd) {
+                    ssthresh = Math.max(cwnd / 2, 2);
+                    cwnd = ssthresh;
+                    recoveryEnd = nextSeq;
+                }
+                if (acked > 0) window.signalAll();
+                finishIfDone();
+            } finally {
+                lock.unlock();
+            }
+            if (rttSample > 0) sampleRtt(rttSample);
+            for (Segment segment : lost) {
+                retransmits.increment();
+                transmit(id, segment);
+            }
+        }
+
+        /**
+         * Resends every segment older than the timeout (with exponential backoff); returns false once one
+         * went unanswered too often and the connection should be given up.
+         */
+        boolean checkTimeout(long now) throws IOException {
+            long timeout;
+            lock.lock();
+            try {
+                Map.Entry<Integer, Segment> oldest = unacked.firstEntry();
+                timeout = Math.min(rto << backoff, MAX_RTO_NANOS);
+                if (oldest == null || now - oldest.getValue().sentAt < timeout) return true;
+                if (oldest.getValue().transmissions > MAX_RETRANSMITS) return false;
+                ssthresh = Math.max(cwnd / 2, 2);
+                cwnd = 2;
+                recoveryEnd = nextSeq;
+                backoff = Math.min(backoff + 1, 6);
+            } finally {
+                lock.unlock();
+            }
+            resend(timeout, now);
+            return true;
+        }
+
+        /**
+         * Resends the oldest segments (up to the initial window) sent at least {@code olderThan} nanos ago.
+         */
+        void resend(long olderThan, long now) throws IOException {
+            List<Segment> stale = new ArrayList<>();
+            lock.lock();
+            try {
+                for (Segment segment : unacked.values()) {
+                    if (stale.size() >= INITIAL_WINDOW) break;
+                    if (now - segment.sentAt < olderThan) continue;
+                    segment.sentAt = now;
+                    segment.transmissions++;
+                    stale.add(segment);
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : stale) {
+                retransmits.increment();
+                transmit(id, segment);
+            }
+        }
+
+        // Called with lock held.
+        private void finishIfDone() {
+            if (id != 0 && finishedAt == 0 && endSent && endReceived && unacked.isEmpty()) finishedAt = System.nanoTime();
+        }
+
+        boolean expired(long now) {
+            lock.lock();
+            try {
+                return finishedAt != 0 && now - finishedAt > TIME_WAIT_NANOS && unacked.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void wake() {
+            lock.lock();
+            try {
+                window.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
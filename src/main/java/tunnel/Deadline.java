@@ -0,0 +1,72 @@
+package tunnel;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The deadlines enforced on client and server connections, each with its own expiry counter:
+ * HANDSHAKE bounds a TLS handshake, HEADER the arrival of a complete request head (slowloris), IDLE a
+ * tunnel without open streams or a CONNECT splice or origin connection that carries no bytes, and
+ * REQUEST the whole of one proxied HTTP exchange. All of them run on the shared {@link TimerWheel}.
+ *
+ * Tunables (system properties, milliseconds, 0 disables): vpn.timeout.handshakeMs (10000),
+ * vpn.timeout.headerMs (15000), vpn.timeout.idleMs (120000), vpn.timeout.requestMs (3600000).
+ */
+public enum Deadline {
+    HANDSHAKE("handshake", 10_000),
+    HEADER("header", 15_000),
+    IDLE("idle", 120_000),
+    REQUEST("request", 3_600_000);
+
+    private final String label;
+    private final long millis;
+    private final LongAdder expired = new LongAdder();
+
+    Deadline(String label, long defaultMillis) {
+        this.label = label;
+        this.millis = Long.getLong("vpn.timeout." + label + "Ms", defaultMillis);
+    }
+
+    /**
+     * Starts this deadline; {@code onExpire} runs (off the caller's thread) unless the returned timeout
+     * is cancelled in time. Returns {@link TimerWheel.Timeout#NONE} when the deadline is disabled.
+     */
+    public TimerWheel.Timeout arm(Runnable onExpire) {
+        return arm(() -> true, onExpire);
+    }
+
+    /**
+     * Starts this deadline, which only fires if {@code applies} holds when it is reached; otherwise it
+     * starts over. A tunnel, for one, is only idle while no stream is open.
+     */
+    public TimerWheel.Timeout arm(BooleanSupplier applies, Runnable onExpire) {
+        if (millis <= 0) return TimerWheel.Timeout.NONE;
+        return TimerWheel.shared().schedule(millis, applies, () -> {
+            expired.increment();
+            onExpire.run();
+        });
+    }
+
+    /**
+     * Configured duration in milliseconds, 0 when disabled.
+     */
+    public long millis() {
+        return Math.max(millis, 0);
+    }
+
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Expiries per deadline, e.g. "handshake 0, header 3, idle 12, request 0".
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Deadline deadline : values()) {
+            if (!report.isEmpty()) report.append(", ");
+            report.append(deadline.label).append(' ').append(deadline.expiredCount());
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package tunnel;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wire format of the multiplexed tunnel between VPNClient and VPNHandler.
+ * Every frame is: [type:1][flags:1][streamId:4][length:4][payload:length].
+ */
+public final class Frame {
+    public static final int HEADER_SIZE = 10;
+    public static final int MAX_PAYLOAD = 16 * 1024;
+
+    // Frame types
+    public static final byte OPEN = 1;          // Opens a new stream
+    public static final byte DATA = 2;          // Carries stream payload
+    public static final byte WINDOW_UPDATE = 3; // Returns receive credit (payload: 4-byte increment)
+    public static final byte FIN = 4;           // Sender has finished writing on this stream
+    public static final byte RESET = 5;         // Abort the stream in both directions
+    public static final byte SETTINGS = 6;      // Connection-level (stream 0) feature offer (payload: 4-byte bitmask)
+    public static final byte PING = 7;          // Stream 0 round-trip probe (payload: 8 opaque bytes, echoed with FLAG_ACK)
+    public static final byte DATAGRAM = 8;      // Stream 0 datagram transport setup (see TunnelConnection#openDatagramTunnel)
+
+    // Flags
+    public static final byte FLAG_COMPRESSED = 1; // DATA payload is one zlib block (see Compression)
+    public static final byte FLAG_ACK = 2;        // PING is the echo of the peer's PING, DATAGRAM the answer to a setup
+
+    // SETTINGS feature bits
+    public static final int FEATURE_COMPRESSION = 1; // Sender accepts compressed DATA frames
+    public static final int FEATURE_PING = 2;        // Sender answers PING frames
+    public static final int FEATURE_DATAGRAM = 4;    // Sender accepts DATAGRAM setups
+
+    public final byte type;
+    public final byte flags;
+    public final int streamId;
+    public final byte[] payload;
+
+    Frame(byte type, byte flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    /**
+     * Reads one complete frame, or returns null if the connection was closed cleanly between frames.
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) return null;
+        byte flags = in.readByte();
+        int streamId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length + " on stream " + streamId);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame((byte) type, flags, streamId, payload);
+    }
+
+    /**
+     * Writes the frame header followed by the payload slice. The caller is responsible for serializing writers.
+     */
+    static void write(OutputStream out, byte[] header, byte type, byte flags, int streamId,
+                      byte[] buf, int off, int len) throws IOException {
+        header[0] = type;
+        header[1] = flags;
+        putInt(header, 2, streamId);
+        putInt(header, 6, len);
+        out.write(header, 0, HEADER_SIZE);
+        if (len > 0) out.write(buf, off, len);
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int) (v >>> 32));
+        putInt(b, off + 4, (int) v);
+    }
+
+    static long getLong(byte[] b, int off) {
+        return ((long) getInt(b, off) << 32) | (getInt(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
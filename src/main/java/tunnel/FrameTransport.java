@@ -0,0 +1,24 @@
+package tunnel;
+
+import java.io.IOException;
+
+/**
+ * How a {@link TunnelConnection} moves its frames: as a byte stream over the TLS socket, or as
+ * encrypted datagrams ({@link DatagramTransport}).
+ */
+interface FrameTransport {
+    /**
+     * Next frame from the peer, or null once the transport is closed. Only the connection's reader
+     * thread calls this.
+     */
+    Frame read() throws IOException;
+
+    /**
+     * Sends one frame; any number of threads may write at once.
+     */
+    void write(byte type, byte flags, int streamId, byte[] buf, int off, int len) throws IOException;
+
+    boolean isClosed();
+
+    void close();
+}
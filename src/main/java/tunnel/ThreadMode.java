@@ -0,0 +1,38 @@
+package tunnel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How blocking per-connection work (VPNHandler, handleClient, relay loops) is scheduled.
+ * VIRTUAL runs every task on its own virtual thread so tens of thousands of mostly idle
+ * connections only cost heap, not OS threads. Selected with {@code -Dvpn.threads=virtual}.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode configured() {
+        return valueOf(System.getProperty("vpn.threads", "PLATFORM").toUpperCase());
+    }
+
+    /**
+     * Creates an executor that starts a new thread per task (cached platform threads or virtual threads).
+     */
+    public ExecutorService newExecutor(String name) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newCachedThreadPool(Thread.ofPlatform().name(name + "-", 0).factory());
+    }
+
+    /**
+     * Starts a single named thread running the task.
+     */
+    public Thread start(String name, Runnable task) {
+        if (this == VIRTUAL) {
+            return Thread.ofVirtual().name(name).start(task);
+        }
+        return Thread.ofPlatform().name(name).start(task);
+    }
+}
@@ -0,0 +1,195 @@
+package tunnel;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hashed timer wheel for connection deadlines: one daemon thread advances a ring of slots every tick
+ * and fires the timeouts due in the current slot. Scheduling and cancelling only enqueue (the wheel
+ * thread links and unlinks), and {@link Timeout#touch()} is a single volatile write, so many thousands
+ * of connections can refresh an idle deadline on every read at no measurable cost. Deadlines are
+ * accurate to one tick.
+ *
+ * Expired tasks run on their own virtual thread, as closing a TLS socket may block on its close_notify.
+ *
+ * Tunables (system properties): vpn.timer.tickMs (100).
+ */
+public final class TimerWheel {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("vpn.timer.tickMs", 100));
+    private static final int SLOTS = 512;
+    private static final TimerWheel SHARED = new TimerWheel("vpn-timer");
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    // Doubly linked timeouts per slot; only touched by the wheel thread.
+    private final Timeout[] slots = new Timeout[SLOTS];
+    private final long start = System.nanoTime();
+    private long tick = 0;
+
+    private TimerWheel(String name) {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static TimerWheel shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs {@code task} once after {@code delayMillis}, unless the timeout is cancelled first or
+     * touched to push its deadline out.
+     */
+    public Timeout schedule(long delayMillis, Runnable task) {
+        return schedule(delayMillis, () -> true, task);
+    }
+
+    /**
+     * Like {@link #schedule(long, Runnable)}, but when {@code applies} is false at the deadline (checked
+     * on the wheel thread, so it must be cheap) the timeout starts over instead of firing.
+     */
+    public Timeout schedule(long delayMillis, BooleanSupplier applies, Runnable task) {
+        Timeout timeout = new Timeout(this, applies, task, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long sleep = start + (tick + 1) * TICK_NANOS - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.slot >= 0) unlink(timeout);
+            }
+            while ((timeout = added.poll()) != null) {
+                if (timeout.state.get() == PENDING) link(timeout, slotOf(timeout));
+            }
+            expire((int) (tick & (SLOTS - 1)));
+            tick++;
+        }
+    }
+
+    private void expire(int slot) {
+        long now = System.nanoTime();
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() != PENDING) {
+                unlink(timeout);
+            } else if (timeout.deadline - now <= 0 && !timeout.applies.getAsBoolean()) {
+                timeout.touch();
+                unlink(timeout);
+                link(timeout, slotOf(timeout));
+            } else if (timeout.deadline - now <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) Thread.ofVirtual().start(timeout.task);
+            } else {
+                // Not due yet: a later round, or touched since it was placed.
+                int due = slotOf(timeout);
+                if (due != slot) {
+                    unlink(timeout);
+                    link(timeout, due);
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private int slotOf(Timeout timeout) {
+        long ticks = Math.max(tick + 1, (timeout.deadline - start + TICK_NANOS - 1) / TICK_NANOS);
+        return (int) (ticks & (SLOTS - 1));
+    }
+
+    private void link(Timeout timeout, int slot) {
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (slots[slot] != null) slots[slot].prev = timeout;
+        slots[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+    }
+
+    /**
+     * A scheduled task. {@link #NONE} stands for a disabled deadline and never fires.
+     */
+    public static final class Timeout {
+        public static final Timeout NONE = new Timeout(null, null, null, 0);
+
+        private final TimerWheel wheel;
+        private final BooleanSupplier applies;
+        private final Runnable task;
+        private final long delay;
+        private final AtomicInteger state = new AtomicInteger();
+        private volatile long deadline;
+        // Wheel-thread state.
+        private int slot = -1;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, BooleanSupplier applies, Runnable task, long delay) {
+            this.wheel = wheel;
+            this.applies = applies;
+            this.task = task;
+            this.delay = delay;
+            this.deadline = System.nanoTime() + delay;
+            if (wheel == null) state.set(CANCELLED);
+        }
+
+        public void cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) wheel.cancelled.add(this);
+        }
+
+        /**
+         * Restarts the full delay from now; used for idle deadlines on every bit of activity.
+         */
+        public void touch() {
+            deadline = System.nanoTime() + delay;
+        }
+
+        /**
+         * Wraps a stream so that every successful read touches this timeout.
+         */
+        public InputStream touching(InputStream in) {
+            if (this == NONE) return in;
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    touch();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    touch();
+                    return n;
+                }
+            };
+        }
+    }
+}
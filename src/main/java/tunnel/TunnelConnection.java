@@ -0,0 +1,457 @@
+package tunnel;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Multiplexes many independent request/response streams over a single TLS socket.
+ * One thread runs {@link #run()} and dispatches incoming frames to their streams; any number of
+ * threads may write concurrently, their frames are interleaved at frame granularity so a slow
+ * stream never blocks the others.
+ * Both sides announce their features in a SETTINGS frame before anything else; DATA frames are only
+ * compressed towards a peer that offered {@link Frame#FEATURE_COMPRESSION}, and PING frames are only
+ * sent to a peer that offered {@link Frame#FEATURE_PING}.
+ * A connection without open streams that carries no frame for the {@link Deadline#IDLE} time is closed;
+ * open streams are left to the deadlines of the requests they carry.
+ *
+ * A server that offered {@link Frame#FEATURE_DATAGRAM} lets the client set up a second connection
+ * over UDP ({@link #openDatagramTunnel}), keyed through this one. It carries the same frames, but
+ * a lost packet only delays the stream it belonged to instead of every stream behind it in the TCP
+ * byte stream.
+ */
+public class TunnelConnection implements Runnable {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Length of each side's contribution to the datagram keys.
+    private static final int DATAGRAM_RANDOM = 32;
+
+    private final FrameTransport transport;
+    private final Map<Integer, TunnelStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId;
+    private final Consumer<TunnelStream> acceptor;
+    private final Compression compression;
+    // TLS cipher suite of the socket the connection (or the one that keyed it) runs on.
+    private final String cipherSuite;
+    // Server side: where DATAGRAM setups are bound, and who runs the resulting connections.
+    private final DatagramEndpoint datagrams;
+    private final Consumer<TunnelConnection> datagramAcceptor;
+    private final CompletableFuture<Integer> peerFeatures = new CompletableFuture<>();
+    private volatile CompletableFuture<byte[]> datagramSetup;
+    private volatile boolean peerAcceptsCompression = false;
+    private volatile boolean peerAnswersPing = false;
+    // Round-trip time of the last answered PING (-1 before the first) and when that answer arrived.
+    private volatile long rttNanos = -1;
+    private volatile long lastPongNanos = System.nanoTime();
+    private volatile CompletableFuture<Long> nextPong = new CompletableFuture<>();
+    // Frame bytes (headers included) handed to and taken from the transport, before encryption.
+    private volatile long bytesReceived = 0;
+    private final LongAdder bytesSent = new LongAdder();
+    private final TimerWheel.Timeout idle = Deadline.IDLE.arm(() -> streams.isEmpty(), this::close);
+    private volatile boolean closed = false;
+
+    /**
+     * @param socket   connected (and handshaken) tunnel socket
+     * @param client   true on the VPNClient side; clients open odd stream IDs, servers even ones
+     * @param acceptor invoked on the reader thread for every stream opened by the peer; must not block
+     */
+    public TunnelConnection(Socket socket, boolean client, Consumer<TunnelStream> acceptor) throws IOException {
+        this(socket, client, acceptor, null, null);
+    }
+
+    /**
+     * Server side connection that also offers datagram transport on {@code datagrams}.
+     *
+     * @param datagramAcceptor invoked on the reader thread with every datagram connection the client sets
+     *                         up; it must run it and must not block
+     */
+    public TunnelConnection(Socket socket, boolean client, Consumer<TunnelStream> acceptor,
+                            DatagramEndpoint datagrams, Consumer<TunnelConnection> datagramAcceptor) throws IOException {
+        this(new SocketTransport(socket), client, acceptor, Compression.ENABLED ? new Compression() : null,
+                socket instanceof SSLSocket ssl ? ssl.getSession().getCipherSuite() : "",
+                datagrams, datagramAcceptor);
+    }
+
+    private TunnelConnection(FrameTransport transport, boolean client, Consumer<TunnelStream> acceptor, Compression compression,
+                             String cipherSuite, DatagramEndpoint datagrams, Consumer<TunnelConnection> datagramAcceptor) throws IOException {
+        this.transport = transport;
+        this.nextStreamId = new AtomicInteger(client ? 1 : 2);
+        this.acceptor = acceptor;
+        this.compression = compression;
+        this.cipherSuite = cipherSuite;
+        this.datagrams = datagrams;
+        this.datagramAcceptor = datagramAcceptor;
+        byte[] settings = new byte[4];
+        Frame.putInt(settings, 0, Frame.FEATURE_PING | (compression != null ? Frame.FEATURE_COMPRESSION : 0)
+                | (datagrams != null ? Frame.FEATURE_DATAGRAM : 0));
+        writeFrame(Frame.SETTINGS, (byte) 0, 0, settings, 0, settings.length);
+    }
+
+    /**
+     * Opens a new outgoing stream.
+     */
+    public TunnelStream openStream() throws IOException {
+        if (closed) throw new IOException("Tunnel is closed");
+        int id = nextStreamId.getAndAdd(2);
+        TunnelStream stream = new TunnelStream(this, id);
+        streams.put(id, stream);
+        writeFrame(Frame.OPEN, id, null, 0, 0);
+        return stream;
+    }
+
+    /**
+     * Frame reader loop. Returns when the peer closes the connection or an I/O error occurs.
+     */
+    @Override
+    public void run() {
+        try {
+            Frame frame;
+            while (!closed && (frame = transport.read()) != null) {
+                bytesReceived += Frame.HEADER_SIZE + frame.payload.length;
+                idle.touch();
+                dispatch(frame);
+            }
+        } catch (IOException e) {
+            // Connection lost; fall through to close all streams.
+        } finally {
+            close();
+            if (compression != null) compression.close();
+            peerFeatures.complete(0);
+        }
+    }
+
+    private void dispatch(Frame frame) throws IOException {
+        TunnelStream stream = streams.get(frame.streamId);
+        switch (frame.type) {
+            case Frame.OPEN -> {
+                if (stream != null) throw new IOException("Stream " + frame.streamId + " already open");
+                stream = new TunnelStream(this, frame.streamId);
+                streams.put(frame.streamId, stream);
+                acceptor.accept(stream);
+            }
+            case Frame.DATA -> {
+                byte[] payload = frame.payload;
+                if ((frame.flags & Frame.FLAG_COMPRESSED) != 0) {
+                    if (compression == null) throw new IOException("Compressed frame without negotiation");
+                    payload = compression.inflate(payload);
+                }
+                if (stream != null) stream.receive(payload);
+            }
+            case Frame.WINDOW_UPDATE -> {
+                if (stream != null) stream.addSendWindow(Frame.getInt(frame.payload, 0));
+            }
+            case Frame.FIN -> {
+                if (stream != null) stream.receiveFin();
+            }
+            case Frame.RESET -> {
+                if (stream != null) stream.receiveReset();
+            }
+            case Frame.SETTINGS -> {
+                if (frame.payload.length < 4) throw new IOException("Short SETTINGS frame");
+                int features = Frame.getInt(frame.payload, 0);
+                peerAcceptsCompression = (features & Frame.FEATURE_COMPRESSION) != 0;
+                peerAnswersPing = (features & Frame.FEATURE_PING) != 0;
+                peerFeatures.complete(features);
+            }
+            case Frame.PING -> {
+                if (frame.payload.length != 8) throw new IOException("Bad PING frame");
+                if ((frame.flags & Frame.FLAG_ACK) != 0) {
+                    long now = System.nanoTime();
+                    rttNanos = now - Frame.getLong(frame.payload, 0);
+                    lastPongNanos = now;
+                    CompletableFuture<Long> pong = nextPong;
+                    nextPong = new CompletableFuture<>();
+                    pong.complete(rttNanos);
+                } else {
+                    writeFrame(Frame.PING, Frame.FLAG_ACK, 0, frame.payload, 0, 8);
+                }
+            }
+            case Frame.DATAGRAM -> {
+                if ((frame.flags & Frame.FLAG_ACK) != 0) {
+                    CompletableFuture<byte[]> setup = datagramSetup;
+                    if (setup != null) setup.complete(frame.payload);
+                } else {
+                    acceptDatagramSetup(frame.payload);
+                }
+            }
+            default -> throw new IOException("Unknown frame type " + frame.type);
+        }
+    }
+
+    /**
+     * Writes one frame through the transport; a failed write closes the connection.
+     */
+    void writeFrame(byte type, int streamId, byte[] buf, int off, int len) throws IOException {
+        writeFrame(type, (byte) 0, streamId, buf, off, len);
+    }
+
+    private void writeFrame(byte type, byte flags, int streamId, byte[] buf, int off, int len) throws IOException {
+        if (closed) throw new IOException("Tunnel is closed");
+        try {
+            transport.write(type, flags, streamId, buf, off, len);
+            bytesSent.add(Frame.HEADER_SIZE + len);
+            idle.touch();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes one DATA frame, compressing it first when asked to and the peer accepts compression.
+     * Compression runs before the write lock is taken, so it never holds up other streams' frames.
+     */
+    void writeData(int streamId, byte[] buf, int off, int len, boolean compress) throws IOException {
+        if (compress && canCompress()) {
+            compression.write(buf, off, len, (flags, b, o, n) -> writeFrame(Frame.DATA, flags, streamId, b, o, n));
+        } else {
+            writeFrame(Frame.DATA, streamId, buf, off, len);
+        }
+    }
+
+    /**
+     * True once the peer has offered to accept compressed DATA frames and compression is enabled here.
+     */
+    public boolean canCompress() {
+        return compression != null && peerAcceptsCompression;
+    }
+
+    /**
+     * Compression figures for this connection, or null when compression is disabled.
+     */
+    public String compressionReport() {
+        return compression == null ? null : compression.report();
+    }
+
+    /**
+     * Sends a PING carrying the current time; its echo updates {@link #rttNanos()}. Returns false without
+     * sending anything if the peer did not offer to answer pings.
+     */
+    public boolean ping() throws IOException {
+        if (!peerAnswersPing) return false;
+        byte[] payload = new byte[8];
+        Frame.putLong(payload, 0, System.nanoTime());
+        writeFrame(Frame.PING, 0, payload, 0, 8);
+        return true;
+    }
+
+    /**
+     * Waits for the peer's SETTINGS, sends a PING and waits for its answer: the round-trip time in nanos,
+     * or -1 if none came within {@code timeoutMillis} or the peer does not answer pings.
+     */
+    public long pingAndWait(long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            peerFeatures.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            CompletableFuture<Long> pong = nextPong;
+            if (!ping()) return -1;
+            return pong.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for PING answer");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Round-trip time of the last answered PING in nanos, or -1 if none was answered yet.
+     */
+    public long rttNanos() {
+        return rttNanos;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the last PING answer, or of the connection's creation before the first.
+     */
+    public long lastPongNanos() {
+        return lastPongNanos;
+    }
+
+    /**
+     * Client side: sets up a datagram connection to the server at {@code host}, keyed over this one, and
+     * returns it (not yet running). Returns null when the server does not offer datagrams or refuses.
+     * The first frames only prove the keys; whether UDP actually gets through is up to the caller to
+     * check, e.g. with {@link #pingAndWait}.
+     *
+     * @param acceptor as for the constructor, for streams the server opens on the datagram connection
+     */
+    public TunnelConnection openDatagramTunnel(String host, long timeoutMillis, Consumer<TunnelStream> acceptor) throws IOException {
+        byte[] clientRandom = new byte[DATAGRAM_RANDOM];
+        RANDOM.nextBytes(clientRandom);
+        CompletableFuture<byte[]> setup = new CompletableFuture<>();
+        byte[] reply;
+        try {
+            if ((peerFeatures.get(timeoutMillis, TimeUnit.MILLISECONDS) & Frame.FEATURE_DATAGRAM) == 0) return null;
+            datagramSetup = setup;
+            writeFrame(Frame.DATAGRAM, 0, clientRandom, 0, clientRandom.length);
+            reply = setup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("No answer to datagram setup");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during datagram setup");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            datagramSetup = null;
+        }
+        // [serverRandom:32][port:4][connectionId:8], or empty when refused
+        if (reply.length != DATAGRAM_RANDOM + 12) return null;
+        byte[] serverRandom = Arrays.copyOf(reply, DATAGRAM_RANDOM);
+        int port = Frame.getInt(reply, DATAGRAM_RANDOM);
+        long connectionId = Frame.getLong(reply, DATAGRAM_RANDOM + 4);
+        DatagramEndpoint endpoint = DatagramEndpoint.connect(host, port);
+        try {
+            DatagramTransport udp = endpoint.open(connectionId, clientRandom, serverRandom, cipherSuite, true);
+            return new TunnelConnection(udp, true, acceptor, null, cipherSuite, null, null);
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            endpoint.close();
+            throw e instanceof IOException io ? io : new IOException(e);
+        }
+    }
+
+    /**
+     * Server side of {@link #openDatagramTunnel}: binds a datagram connection to the client's keys and
+     * answers with where to reach it.
+     */
+    private void acceptDatagramSetup(byte[] clientRandom) throws IOException {
+        if (clientRandom.length != DATAGRAM_RANDOM) throw new IOException("Bad DATAGRAM frame");
+        if (datagrams == null) {
+            writeFrame(Frame.DATAGRAM, Frame.FLAG_ACK, 0, null, 0, 0);
+            return;
+        }
+        byte[] reply = new byte[DATAGRAM_RANDOM + 12];
+        RANDOM.nextBytes(reply);
+        byte[] serverRandom = Arrays.copyOf(reply, DATAGRAM_RANDOM);
+        long connectionId = RANDOM.nextLong();
+        TunnelConnection connection;
+        try {
+            DatagramTransport udp = datagrams.open(connectionId, clientRandom, serverRandom, cipherSuite, false);
+            connection = new TunnelConnection(udp, false, acceptor, null, cipherSuite, null, null);
+        } catch (GeneralSecurityException e) {
+            writeFrame(Frame.DATAGRAM, Frame.FLAG_ACK, 0, null, 0, 0);
+            return;
+        }
+        Frame.putInt(reply, DATAGRAM_RANDOM, datagrams.advertisedPort());
+        Frame.putLong(reply, DATAGRAM_RANDOM + 4, connectionId);
+        writeFrame(Frame.DATAGRAM, Frame.FLAG_ACK, 0, reply, 0, reply.length);
+        datagramAcceptor.accept(connection);
+    }
+
+    /**
+     * "TCP", or "UDP" with its packet figures.
+     */
+    public String transportReport() {
+        return transport instanceof DatagramTransport udp ? "UDP " + udp.report() : "TCP";
+    }
+
+    void sendWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        Frame.putInt(payload, 0, increment);
+        writeFrame(Frame.WINDOW_UPDATE, streamId, payload, 0, 4);
+    }
+
+    void removeStream(int streamId) {
+        streams.remove(streamId);
+    }
+
+    public boolean isClosed() {
+        return closed || transport.isClosed();
+    }
+
+    public long bytesReceived() {
+        return bytesReceived;
+    }
+
+    public long bytesSent() {
+        return bytesSent.sum();
+    }
+
+    public int activeStreams() {
+        return streams.size();
+    }
+
+    /**
+     * Closes the transport and fails every open stream.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        idle.cancel();
+        for (TunnelStream stream : streams.values()) {
+            stream.receiveReset();
+        }
+        streams.clear();
+        transport.close();
+        CompletableFuture<byte[]> setup = datagramSetup;
+        if (setup != null) setup.complete(new byte[0]);
+    }
+
+    /**
+     * Frames as a byte stream over the TLS socket. Flushing is skipped while other writers are queued so
+     * that their frames coalesce into the same TLS record.
+     */
+    private static final class SocketTransport implements FrameTransport {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final byte[] writeHeader = new byte[Frame.HEADER_SIZE];
+
+        SocketTransport(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), Frame.MAX_PAYLOAD + Frame.HEADER_SIZE));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), Frame.MAX_PAYLOAD + Frame.HEADER_SIZE);
+        }
+
+        @Override
+        public Frame read() throws IOException {
+            return Frame.read(in);
+        }
+
+        @Override
+        public void write(byte type, byte flags, int streamId, byte[] buf, int off, int len) throws IOException {
+            writeLock.lock();
+            try {
+                Frame.write(out, writeHeader, type, flags, streamId, buf, off, len);
+                if (!writeLock.hasQueuedThreads()) {
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
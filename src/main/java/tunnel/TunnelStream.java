@@ -0,0 +1,303 @@
+package tunnel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One logical bidirectional byte stream inside a {@link TunnelConnection}.
+ * Each direction is flow controlled by a credit window so that a reader which falls behind only
+ * stalls its own stream instead of the shared socket.
+ */
+public class TunnelStream {
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final TunnelConnection connection;
+    private final int id;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+
+    // Receive side: frames queued by the reader thread, drained by the application.
+    private final ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int headOffset = 0;
+    private int consumedSinceUpdate = 0;
+    // Bytes the peer may still send: the initial window plus the credit returned, less what arrived.
+    private int receiveWindow = INITIAL_WINDOW;
+    private boolean finReceived = false;
+
+    // Send side: remaining credit granted by the peer.
+    private int sendWindow = INITIAL_WINDOW;
+    private boolean finSent = false;
+    private volatile boolean compressOutput = false;
+
+    private boolean reset = false;
+    // Reset on this side, which discards unread data even after the peer's FIN.
+    private boolean abandoned = false;
+
+    private final InputStream inputStream = new StreamInput();
+    private final OutputStream outputStream = new StreamOutput();
+
+    TunnelStream(TunnelConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Compresses the DATA frames written from now on, if the peer accepts compression. Flow control
+     * keeps counting uncompressed bytes.
+     */
+    public void setCompressOutput(boolean compress) {
+        this.compressOutput = compress;
+    }
+
+    /**
+     * True if the peer accepts compressed DATA frames on this connection.
+     */
+    public boolean canCompressOutput() {
+        return connection.canCompress();
+    }
+
+    /**
+     * Aborts the stream in both directions and notifies the peer.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            if (reset) return;
+            reset = true;
+            abandoned = true;
+            received.clear();
+            readable.signalAll();
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.removeStream(id);
+        try {
+            connection.writeFrame(Frame.RESET, id, null, 0, 0);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ---- Called from the connection reader thread ----
+
+    /**
+     * Queues a DATA payload for the reader. A peer that sends more than the credit it was given is
+     * broken or hostile; the stream is reset rather than buffering without bound.
+     */
+    void receive(byte[] payload) {
+        if (payload.length == 0) return;
+        lock.lock();
+        try {
+            if (reset || finReceived) return;
+            if (payload.length <= receiveWindow) {
+                receiveWindow -= payload.length;
+                received.addLast(payload);
+                readable.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        reset();
+    }
+
+    void receiveFin() {
+        lock.lock();
+        try {
+            finReceived = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        removeIfDone();
+    }
+
+    void receiveReset() {
+        lock.lock();
+        try {
+            reset = true;
+            // Data that arrived before the peer's FIN is complete and stays readable.
+            if (!finReceived) received.clear();
+            readable.signalAll();
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        connection.removeStream(id);
+    }
+
+    void addSendWindow(int increment) {
+        lock.lock();
+        try {
+            sendWindow += increment;
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeIfDone() {
+        boolean done;
+        lock.lock();
+        try {
+            done = finReceived && finSent;
+        } finally {
+            lock.unlock();
+        }
+        if (done) connection.removeStream(id);
+    }
+
+    // ---- Application side ----
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n;
+        int update = 0;
+        lock.lock();
+        try {
+            while (received.isEmpty()) {
+                // A peer reset after its FIN leaves the data complete, so it ends in EOF.
+                if (finReceived && !abandoned) return -1;
+                if (reset) throw new IOException("Stream " + id + " reset");
+                readable.awaitUninterruptibly();
+            }
+            n = 0;
+            while (n < len && !received.isEmpty()) {
+                byte[] head = received.peekFirst();
+                int count = Math.min(len - n, head.length - headOffset);
+                System.arraycopy(head, headOffset, b, off + n, count);
+                n += count;
+                headOffset += count;
+                if (headOffset == head.length) {
+                    received.removeFirst();
+                    headOffset = 0;
+                }
+            }
+            // Return credit in batches to keep WINDOW_UPDATE traffic low.
+            consumedSinceUpdate += n;
+            if (consumedSinceUpdate >= INITIAL_WINDOW / 2 && !finReceived) {
+                update = consumedSinceUpdate;
+                consumedSinceUpdate = 0;
+                receiveWindow += update;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (update > 0) connection.sendWindowUpdate(id, update);
+        return n;
+    }
+
+    private int available() {
+        lock.lock();
+        try {
+            int total = -headOffset;
+            for (byte[] chunk : received) total += chunk.length;
+            return Math.max(total, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            lock.lock();
+            try {
+                while (sendWindow == 0 && !reset) {
+                    writable.awaitUninterruptibly();
+                }
+                if (reset) throw new IOException("Stream " + id + " reset");
+                if (finSent) throw new IOException("Stream " + id + " already closed for writing");
+                n = Math.min(Math.min(len, sendWindow), Frame.MAX_PAYLOAD);
+                sendWindow -= n;
+            } finally {
+                lock.unlock();
+            }
+            connection.writeData(id, b, off, n, compressOutput);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void closeOutput() throws IOException {
+        lock.lock();
+        try {
+            if (finSent || reset) return;
+            finSent = true;
+        } finally {
+            lock.unlock();
+        }
+        connection.writeFrame(Frame.FIN, id, null, 0, 0);
+        removeIfDone();
+    }
+
+    private class StreamInput extends InputStream {
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int n = TunnelStream.this.read(single, 0, 1);
+            return n == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return TunnelStream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return TunnelStream.this.available();
+        }
+
+        @Override
+        public void close() {
+            // Abandoning the stream before the peer finished: tell it to stop sending.
+            boolean abandon;
+            lock.lock();
+            try {
+                abandon = !finReceived && !reset;
+                received.clear();
+                headOffset = 0;
+            } finally {
+                lock.unlock();
+            }
+            if (abandon) TunnelStream.this.reset();
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            TunnelStream.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            TunnelStream.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeOutput();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ui;
+
+import javax.swing.*;
+import javax.swing.text.Element;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link LogPipeline} display for a GUI text area: appends each batch in one EDT task, with at most one
+ * task queued at a time, and caps the scrollback.
+ */
+final class LogArea implements Consumer<List<String>> {
+    private final JTextArea area;
+    private final boolean follow;
+
+    // Lines waiting for the EDT.
+    private final ArrayDeque<String> pendingLines = new ArrayDeque<>();
+    private boolean displayQueued = false;
+
+    /**
+     * @param follow whether to keep the area scrolled to the newest line
+     */
+    LogArea(JTextArea area, boolean follow) {
+        this.area = area;
+        this.follow = follow;
+    }
+
+    @Override
+    public void accept(List<String> lines) {
+        synchronized (pendingLines) {
+            pendingLines.addAll(lines);
+            while (pendingLines.size() > LogPipeline.SCROLLBACK) pendingLines.removeFirst();
+            if (displayQueued) return;
+            displayQueued = true;
+        }
+        SwingUtilities.invokeLater(this::append);
+    }
+
+    private void append() {
+        StringBuilder batch = new StringBuilder();
+        synchronized (pendingLines) {
+            for (String line : pendingLines) batch.append(line).append('\n');
+            pendingLines.clear();
+            displayQueued = false;
+        }
+        area.append(batch.toString());
+        Element root = area.getDocument().getDefaultRootElement();
+        // The text ends with a newline, so the last element is an empty line.
+        int excess = root.getElementCount() - 1 - LogPipeline.SCROLLBACK;
+        if (excess > 0) area.replaceRange("", 0, root.getElement(excess - 1).getEndOffset());
+        if (follow) area.setCaretPosition(area.getDocument().getLength());
+    }
+}
@@ -0,0 +1,9 @@
+package ui;
+
+/**
+ * Severity of a log message; messages below the configured level (vpn.log.level, INFO) are discarded
+ * before they are queued.
+ */
+public enum LogLevel {
+    DEBUG, INFO, WARN, ERROR
+}
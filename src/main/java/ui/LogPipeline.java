@@ -0,0 +1,251 @@
+package ui;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous log pipeline behind the GUIs' log areas and the headless daemon. Request threads only
+ * claim a slot in a bounded lock-free ring buffer and store the message pattern and its arguments; when
+ * the ring is full the message is dropped and counted instead of blocking. A single flusher thread drains
+ * the ring at a fixed frame rate, formats the messages ("{}" placeholders), hands each batch to the
+ * display (see {@link LogArea}) and optionally writes them to standard output and a size-rotated file.
+ * The pipeline itself does not touch AWT or Swing.
+ *
+ * Tunables (system properties): vpn.log.level (INFO), vpn.log.bufferSize (8192), vpn.log.fps (10),
+ * vpn.log.scrollback (5000 lines), vpn.log.dir (unset: no file), vpn.log.fileMaxBytes (10 MB),
+ * vpn.log.files (5), vpn.log.console (false; the daemon defaults it to true).
+ */
+public final class LogPipeline implements VPNListener {
+    private static final LogLevel LEVEL = LogLevel.valueOf(System.getProperty("vpn.log.level", "INFO").trim().toUpperCase(Locale.ROOT));
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(Integer.getInteger("vpn.log.bufferSize", 8192), 2));
+    private static final int FPS = Math.max(Integer.getInteger("vpn.log.fps", 10), 1);
+    static final int SCROLLBACK = Math.max(Integer.getInteger("vpn.log.scrollback", 5000), 1);
+    private static final String DIRECTORY = System.getProperty("vpn.log.dir");
+    private static final long FILE_MAX_BYTES = Long.getLong("vpn.log.fileMaxBytes", 10L * 1024 * 1024);
+    private static final int FILES = Math.max(Integer.getInteger("vpn.log.files", 5), 1);
+    private static final boolean CONSOLE = Boolean.getBoolean("vpn.log.console");
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    // Ring buffer (Vyukov style): a slot is free for position p when sequence == p and readable when p + 1.
+    private final int mask = BUFFER_SIZE - 1;
+    private final AtomicLongArray sequence = new AtomicLongArray(BUFFER_SIZE);
+    private final long[] times = new long[BUFFER_SIZE];
+    private final LogLevel[] levels = new LogLevel[BUFFER_SIZE];
+    private final String[] patterns = new String[BUFFER_SIZE];
+    private final Object[][] arguments = new Object[BUFFER_SIZE][];
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // flusher thread only
+    private final LongAdder dropped = new LongAdder();
+
+    private final Consumer<List<String>> display;
+    // UTF-8 like the file, whatever the service's locale, so the emoji survive.
+    private final PrintStream console = CONSOLE
+            ? new PrintStream(new FileOutputStream(FileDescriptor.out), false, StandardCharsets.UTF_8) : null;
+    private final RotatingFile file;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param name    used for the flusher thread and the log file name (vpn-{name}.log)
+     * @param display receives each batch of formatted lines on the flusher thread, or null for none
+     */
+    public LogPipeline(String name, Consumer<List<String>> display) {
+        this.display = display;
+        for (int i = 0; i < BUFFER_SIZE; i++) sequence.set(i, i);
+        this.file = DIRECTORY == null ? null : new RotatingFile(Path.of(DIRECTORY, "vpn-" + name + ".log"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vpn-log-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        long period = 1_000_000 / FPS;
+        flusher.scheduleAtFixedRate(this::flush, period, period, TimeUnit.MICROSECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    @Override
+    public void log(String message) {
+        log(LogLevel.INFO, message);
+    }
+
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * Queues a message. {@code pattern} is formatted on the flusher thread, each "{}" replaced by the
+     * next argument, so callers on hot paths never build strings themselves.
+     */
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        if (!isEnabled(level)) return;
+        long pos = tail.get();
+        while (true) {
+            int i = (int) pos & mask;
+            long seq = sequence.getAcquire(i);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    times[i] = System.currentTimeMillis();
+                    levels[i] = level;
+                    patterns[i] = pattern;
+                    arguments[i] = args;
+                    sequence.setRelease(i, pos + 1);
+                    return;
+                }
+                pos = tail.get();
+            } else if (seq < pos) {
+                // Full: the flusher is a whole ring behind. Drop rather than stall a request thread.
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Drains the ring: one batch per frame to the display, the console and the file.
+     */
+    private void flush() {
+        boolean stamped = file != null || console != null;
+        StringBuilder text = new StringBuilder();
+        ArrayDeque<String> lines = new ArrayDeque<>();
+        while (true) {
+            int i = (int) head & mask;
+            if (sequence.getAcquire(i) != head + 1) break;
+            long time = times[i];
+            LogLevel level = levels[i];
+            String message = format(patterns[i], arguments[i]);
+            patterns[i] = null;
+            arguments[i] = null;
+            sequence.setRelease(i, head + BUFFER_SIZE);
+            head++;
+
+            lines.addLast(message);
+            if (lines.size() > SCROLLBACK) lines.removeFirst();
+            if (stamped) {
+                text.append(TIMESTAMP.format(Instant.ofEpochMilli(time))).append(' ').append(level).append(' ')
+                        .append(message).append('\n');
+            }
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            String warning = "⚠️ " + lost + " log messages dropped (logging faster than it can be shown)";
+            lines.addLast(warning);
+            if (stamped) text.append(TIMESTAMP.format(Instant.now())).append(" WARN ").append(warning).append('\n');
+        }
+        if (text.length() > 0) {
+            if (console != null) {
+                console.print(text);
+                console.flush();
+            }
+            if (file != null) file.write(text);
+        }
+        if (display != null && !lines.isEmpty()) display.accept(List.copyOf(lines));
+    }
+
+    static String format(String pattern, Object[] args) {
+        if (args == null || args.length == 0) return pattern;
+        StringBuilder sb = new StringBuilder(pattern.length() + 32 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) break;
+            sb.append(pattern, from, at);
+            try {
+                sb.append(arg);
+            } catch (RuntimeException e) {
+                // A failing toString() must not take the flusher thread down with it.
+                sb.append('[').append(e).append(']');
+            }
+            from = at + 2;
+        }
+        return sb.append(pattern, from, pattern.length()).toString();
+    }
+
+    /**
+     * Stops the flusher after a last drain.
+     */
+    public void close() {
+        if (flusher.isShutdown()) return;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (file != null) file.close();
+    }
+
+    /**
+     * Appends to {name}.log and rolls it over to {name}.log.1 ... {name}.log.N at the size limit.
+     */
+    private static final class RotatingFile {
+        private final Path path;
+        private BufferedWriter writer;
+        private long size;
+
+        RotatingFile(Path path) {
+            this.path = path;
+        }
+
+        void write(CharSequence text) {
+            try {
+                if (writer == null) open();
+                writer.append(text);
+                writer.flush();
+                size += text.length();
+                if (size >= FILE_MAX_BYTES) rotate();
+            } catch (IOException e) {
+                // The file sink is best effort; the display still shows everything.
+                close();
+            }
+        }
+
+        private void open() throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            size = Files.size(path);
+        }
+
+        private void rotate() throws IOException {
+            close();
+            for (int i = FILES - 1; i >= 1; i--) {
+                Path older = Path.of(path + "." + i);
+                if (Files.exists(older)) Files.move(older, Path.of(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(path, Path.of(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        void close() {
+            if (writer == null) return;
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+}
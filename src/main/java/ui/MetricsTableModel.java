@@ -0,0 +1,74 @@
+package ui;
+
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only table model for the metrics dashboard; the rows are replaced wholesale on every refresh.
+ */
+class MetricsTableModel extends AbstractTableModel {
+    private final String[] columns;
+    private final Class<?>[] types;
+    private List<Object[]> rows = new ArrayList<>();
+
+    MetricsTableModel(String[] columns, Class<?>[] types) {
+        this.columns = columns;
+        this.types = types;
+    }
+
+    void setRows(List<Object[]> rows) {
+        this.rows = rows;
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return types[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return rows.get(row)[column];
+    }
+
+    /**
+     * Shows a byte count as B/KB/MB/GB while the cell keeps the raw number for sorting.
+     */
+    static class BytesRenderer extends DefaultTableCellRenderer {
+        BytesRenderer() {
+            setHorizontalAlignment(RIGHT);
+        }
+
+        @Override
+        protected void setValue(Object value) {
+            if (!(value instanceof Long bytes)) {
+                super.setValue(value);
+            } else if (bytes < 1024) {
+                super.setValue(bytes + " B");
+            } else if (bytes < 1024 * 1024) {
+                super.setValue(String.format("%.1f KB", bytes / 1024.0));
+            } else if (bytes < 1024L * 1024 * 1024) {
+                super.setValue(String.format("%.1f MB", bytes / (1024.0 * 1024)));
+            } else {
+                super.setValue(String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024)));
+            }
+        }
+    }
+}
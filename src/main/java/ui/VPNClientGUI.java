@@ -4,11 +4,12 @@ import client.VPNClient;
 import javax.swing.*;
 import java.awt.*;
 
-public class VPNClientGUI extends JFrame {
+public class VPNClientGUI extends JFrame implements VPNListener {
     private VPNClient vpnClient;
     private JTextArea logArea;
     private JButton startButton;
     private JButton stopButton;
+    private final LogPipeline logs;
 
     public VPNClientGUI() {
         // Set up the window
@@ -25,6 +26,7 @@ public class VPNClientGUI extends JFrame {
         logArea.setBackground(new Color(30, 30, 30));
         logArea.setForeground(new Color(0, 255, 0));
         logArea.setFont(new Font("Consolas", Font.PLAIN, 14));
+        logs = new LogPipeline("client", new LogArea(logArea, true));
         JScrollPane scrollPane = new JScrollPane(logArea);
         add(scrollPane, BorderLayout.CENTER);
 
@@ -62,12 +64,16 @@ public class VPNClientGUI extends JFrame {
         stopButton.setEnabled(false); // Start with stop disabled
     }
 
-    // Thread-safe method to log messages in the GUI
+    // Thread-safe method to log messages in the GUI; batched by the log pipeline
+    @Override
     public void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength()); // Scroll to the bottom
-        });
+        logs.log(LogLevel.INFO, message);
+    }
+
+    // Logs without building the message on the calling thread
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        logs.log(level, pattern, args);
     }
 
     // Helper method to style buttons
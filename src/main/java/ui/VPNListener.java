@@ -0,0 +1,21 @@
+package ui;
+
+/**
+ * What the VPN engines report to whoever runs them: the GUIs, or the headless daemon. Deliberately free
+ * of AWT and Swing, so that an engine can run without loading either.
+ */
+public interface VPNListener {
+    void log(String message);
+
+    /**
+     * Logs without building the message on the calling thread; see {@link LogPipeline#log}.
+     */
+    void log(LogLevel level, String pattern, Object... args);
+
+    /**
+     * Called once the engine accepts connections on {@code port}, the port actually bound (a configured
+     * port of 0 picks a free one).
+     */
+    default void listening(int port) {
+    }
+}
@@ -1,23 +1,37 @@
 package ui;
 
+import server.ConnectionRegistry;
 import server.VPNServer;
 import javax.swing.*;
 import java.awt.*;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
-public class VPNServerGUI extends JFrame {
-    private JTextArea logArea, userListArea;
+public class VPNServerGUI extends JFrame implements VPNListener {
+    private static final int DASHBOARD_REFRESH_MS = 1000;
+
+    private JTextArea logArea;
     private JTextField serverStatusField;
     private JButton startServerButton, stopServerButton;
+    private JComboBox<VPNServer.Engine> engineBox;
     private VPNServer server;
     private Thread serverThread;
-    private Set<String> connectedUsers = new HashSet<>();
+    private final LogPipeline logs;
+    private final MetricsTableModel users = new MetricsTableModel(
+            new String[]{"User", "Connections", "Total", "Requests", "Active streams", "Bytes in", "Bytes out", "p50 ms", "p99 ms"},
+            new Class<?>[]{String.class, Long.class, Long.class, Long.class, Long.class, Long.class, Long.class, Long.class, Long.class});
+    private final MetricsTableModel connections = new MetricsTableModel(
+            new String[]{"Id", "User", "Engine", "Since", "Requests", "Active streams", "Bytes in", "Bytes out", "p50 ms", "p99 ms"},
+            new Class<?>[]{Long.class, String.class, String.class, Date.class, Long.class, Long.class, Long.class, Long.class, Long.class, Long.class});
+    private final MetricsTableModel origins = new MetricsTableModel(
+            new String[]{"Origin", "Requests", "Errors", "p50 ms", "p99 ms", "Mean ms"},
+            new Class<?>[]{String.class, Long.class, Long.class, Long.class, Long.class, Double.class});
 
     public VPNServerGUI() {
         server = new VPNServer(this);
         setTitle("VPN Server");
-        setSize(600, 400);
+        setSize(1100, 500);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
         getContentPane().setBackground(new Color(30, 30, 30));
@@ -32,27 +46,40 @@ public class VPNServerGUI extends JFrame {
         startServerButton = createStyledButton("Start Server", new Color(0, 128, 0));
         stopServerButton = createStyledButton("Stop Server", new Color(128, 0, 0));
         stopServerButton.setEnabled(false);
+        engineBox = new JComboBox<>(VPNServer.Engine.values());
+        engineBox.setSelectedItem(server.getEngine());
 
         topPanel.add(new JLabel("Server Status:"));
         topPanel.add(serverStatusField);
+        topPanel.add(engineBox);
         topPanel.add(startServerButton);
         topPanel.add(stopServerButton);
         add(topPanel, BorderLayout.NORTH);
 
         JPanel centerPanel = new JPanel(new GridLayout(1, 2));
         logArea = createStyledTextArea("Logs:\n");
-        userListArea = createStyledTextArea("Connected Users:\n");
+        logs = new LogPipeline("server", new LogArea(logArea, false));
+
+        JTabbedPane dashboard = new JTabbedPane();
+        dashboard.addTab("Users", createStyledTable(users, 5, 6));
+        dashboard.addTab("Connections", createStyledTable(connections, 6, 7));
+        dashboard.addTab("Origins", createStyledTable(origins));
 
         centerPanel.add(new JScrollPane(logArea));
-        centerPanel.add(new JScrollPane(userListArea));
+        centerPanel.add(dashboard);
         add(centerPanel, BorderLayout.CENTER);
 
+        // Metrics are pulled from the registry at a fixed rate rather than pushed per event.
+        new Timer(DASHBOARD_REFRESH_MS, e -> refreshDashboard()).start();
+
         startServerButton.addActionListener(e -> {
+            server.setEngine((VPNServer.Engine) engineBox.getSelectedItem());
             serverThread = new Thread(server::startServer);
             serverThread.start();
             serverStatusField.setText("Running");
             startServerButton.setEnabled(false);
             stopServerButton.setEnabled(true);
+            engineBox.setEnabled(false);
         });
 
         stopServerButton.addActionListener(e -> {
@@ -60,7 +87,7 @@ public class VPNServerGUI extends JFrame {
             serverStatusField.setText("Stopped");
             startServerButton.setEnabled(true);
             stopServerButton.setEnabled(false);
-            clearConnectedUsers();
+            engineBox.setEnabled(true);
         });
         setVisible(true);
     }
@@ -75,6 +102,49 @@ public class VPNServerGUI extends JFrame {
         return area;
     }
 
+    /**
+     * A sortable dark table; {@code byteColumns} are shown as human-readable sizes.
+     */
+    private JScrollPane createStyledTable(MetricsTableModel model, int... byteColumns) {
+        JTable table = new JTable(model);
+        table.setAutoCreateRowSorter(true);
+        table.setFillsViewportHeight(true);
+        table.setForeground(Color.GREEN);
+        table.setBackground(new Color(20, 20, 20));
+        table.setGridColor(new Color(60, 60, 60));
+        table.setFont(new Font("Consolas", Font.PLAIN, 13));
+        for (int column : byteColumns) {
+            table.getColumnModel().getColumn(column).setCellRenderer(new MetricsTableModel.BytesRenderer());
+        }
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.getViewport().setBackground(new Color(20, 20, 20));
+        return scroll;
+    }
+
+    private void refreshDashboard() {
+        ConnectionRegistry registry = server.getRegistry();
+        List<Object[]> rows = new ArrayList<>();
+        for (ConnectionRegistry.UserMXBean u : registry.users()) {
+            rows.add(new Object[]{u.getUser(), u.getConnections(), u.getTotalConnections(), u.getRequests(),
+                    u.getActiveStreams(), u.getBytesIn(), u.getBytesOut(), u.getLatencyP50Millis(), u.getLatencyP99Millis()});
+        }
+        users.setRows(rows);
+
+        rows = new ArrayList<>();
+        for (ConnectionRegistry.ConnectionMXBean c : registry.connections()) {
+            rows.add(new Object[]{c.getId(), c.getUser(), c.getEngine(), new Date(c.getConnectedSince()), c.getRequests(),
+                    c.getActiveStreams(), c.getBytesIn(), c.getBytesOut(), c.getLatencyP50Millis(), c.getLatencyP99Millis()});
+        }
+        connections.setRows(rows);
+
+        rows = new ArrayList<>();
+        for (ConnectionRegistry.OriginMXBean o : registry.origins()) {
+            rows.add(new Object[]{o.getHost(), o.getRequests(), o.getErrors(), o.getLatencyP50Millis(),
+                    o.getLatencyP99Millis(), Math.round(o.getLatencyMeanMillis() * 10) / 10.0});
+        }
+        origins.setRows(rows);
+    }
+
     private JButton createStyledButton(String text, Color bgColor) {
         JButton button = new JButton(text);
         button.setBackground(bgColor);
@@ -85,31 +155,17 @@ public class VPNServerGUI extends JFrame {
         return button;
     }
 
+    @Override
     public void log(String message) {
-        SwingUtilities.invokeLater(() -> logArea.append(message + "\n"));
-    }
-
-    public void addUser(String username) {
-        SwingUtilities.invokeLater(() -> {
-            connectedUsers.add(username);
-            updateUserList();
-        });
-    }
-
-    public void removeUser(String username) {
-        SwingUtilities.invokeLater(() -> {
-            connectedUsers.remove(username);
-            updateUserList();
-        });
-    }
-
-    private void updateUserList() {
-        userListArea.setText("Connected Users:\n" + String.join("\n", connectedUsers));
+        logs.log(LogLevel.INFO, message);
     }
 
-    private void clearConnectedUsers() {
-        connectedUsers.clear();
-        updateUserList();
+    /**
+     * Logs without building the message on the calling thread; see {@link LogPipeline#log}.
+     */
+    @Override
+    public void log(LogLevel level, String pattern, Object... args) {
+        logs.log(level, pattern, args);
     }
 
     public static void main(String[] args) {
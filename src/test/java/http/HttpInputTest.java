@@ -0,0 +1,254 @@
+package http;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpInputTest {
+
+    private static HttpInput input(String text) {
+        return new HttpInput(new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * Hands out one byte per read, so every parse has to resume where the last one stopped.
+     */
+    private static HttpInput trickling(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        return new HttpInput(new InputStream() {
+            private int pos = 0;
+
+            @Override
+            public int read() {
+                return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (pos == bytes.length) return -1;
+                b[off] = bytes[pos++];
+                return 1;
+            }
+        });
+    }
+
+    private static String rest(HttpInput in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    void parsesRequestHeadInPlace() throws IOException {
+        HttpInput in = input("GET http://example.com/a?b=c HTTP/1.1\r\nHost: example.com\r\n"
+                + "Accept-Encoding:  gzip, br \r\nX-Empty:\r\n\r\nbody");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        assertTrue(head.methodIs("GET"));
+        assertEquals("http://example.com/a?b=c", head.token(1));
+        assertTrue(head.isHttp11(false));
+        assertEquals("GET http://example.com/a?b=c HTTP/1.1", head.startLine());
+        assertEquals(3, head.headerCount());
+        assertEquals("example.com", head.header("host"));
+        assertEquals("gzip, br", head.header("accept-encoding"));
+        assertEquals("", head.header("x-empty"));
+        assertTrue(head.hasToken("accept-encoding", "br"));
+        assertFalse(head.hasToken("accept-encoding", "deflate"));
+        assertNull(head.header("content-length"));
+        assertEquals("body", rest(in));
+    }
+
+    @Test
+    void parsesResponseHeadWithReasonPhrase() throws IOException {
+        HttpInput in = input("HTTP/1.0 404 Not Found Here\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        assertEquals(404, head.statusCode());
+        assertEquals("Not Found Here", head.token(2));
+        assertFalse(head.isHttp11(true));
+        assertTrue(head.isKeepAlive(true));
+        assertEquals(0, head.contentLength());
+    }
+
+    @Test
+    void resumesAHeadSplitAcrossReads() throws IOException {
+        HttpInput in = trickling("POST /up HTTP/1.1\nHost: h\nContent-Length: 3\n\nabc");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        assertEquals("/up", head.token(1));
+        assertEquals(3, head.contentLength());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        in.relay(body, head.contentLength());
+        assertEquals("abc", body.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void skipsEmptyLinesBeforeTheStartLine() throws IOException {
+        HttpInput in = input("\r\n\r\nGET / HTTP/1.1\r\nHost: h\r\n\r\n");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        assertTrue(head.methodIs("GET"));
+    }
+
+    @Test
+    void readsPipelinedHeadsOneAfterAnother() throws IOException {
+        HttpInput in = input("GET /1 HTTP/1.1\r\nHost: h\r\n\r\nGET /2 HTTP/1.1\r\nHost: h\r\n\r\n");
+        HttpHead first = new HttpHead();
+        assertTrue(in.readHead(first));
+        HttpHead copy = first.copy();
+        HttpHead second = new HttpHead();
+        assertTrue(in.readHead(second));
+        assertEquals("/1", copy.token(1));
+        assertEquals("/2", second.token(1));
+        assertFalse(in.readHead(new HttpHead()));
+    }
+
+    @Test
+    void takesOnlyCompletelyBufferedHeads() throws IOException {
+        HttpInput in = input("GET /1 HTTP/1.1\r\nHost: h\r\n\r\nGET /2 HTTP/1.1\r\nHo");
+        HttpHead first = new HttpHead();
+        assertTrue(in.readHead(first));
+        assertTrue(in.buffered() > 0);
+        int buffered = in.buffered();
+        assertFalse(in.readBufferedHead(new HttpHead()));
+        assertEquals(buffered, in.buffered());
+    }
+
+    @Test
+    void endOfStreamBeforeAHeadIsClean() throws IOException {
+        assertFalse(input("").readHead(new HttpHead()));
+        assertThrows(EOFException.class, () -> input("GET / HTTP/1.1\r\nHost:").readHead(new HttpHead()));
+    }
+
+    @Test
+    void rejectsMalformedHeads() {
+        assertThrows(IOException.class, () -> input("GET\r\n\r\n").readHead(new HttpHead()));
+        assertThrows(IOException.class, () -> input("GET / HTTP/1.1\r\nNoColon\r\n\r\n").readHead(new HttpHead()));
+        assertThrows(IOException.class, () -> input("GET / HTTP/1.1\r\n: empty\r\n\r\n").readHead(new HttpHead()));
+        assertThrows(IOException.class, () -> input("GET / HTTP/1.1\r\nA: b\r\n  folded\r\n\r\n").readHead(new HttpHead()));
+        String many = "GET / HTTP/1.1\r\n" + "X: y\r\n".repeat(HttpHead.MAX_HEADERS + 1) + "\r\n";
+        assertThrows(IOException.class, () -> input(many).readHead(new HttpHead()));
+        String huge = "GET / HTTP/1.1\r\nX: " + "a".repeat(HttpInput.MAX_HEAD_SIZE) + "\r\n\r\n";
+        assertThrows(IOException.class, () -> input(huge).readHead(new HttpHead()));
+    }
+
+    @Test
+    void invalidContentLengthIsAbsent() throws IOException {
+        HttpHead head = new HttpHead();
+        input("HTTP/1.1 200 OK\r\nContent-Length: 12x\r\n\r\n").readHead(head);
+        assertEquals(-1, head.contentLength());
+        input("HTTP/1.1 200 OK\r\nContent-Length: 99999999999999999999\r\n\r\n").readHead(head);
+        assertEquals(-1, head.contentLength());
+    }
+
+    @Test
+    void acceptsUnambiguousRequestFraming() throws IOException {
+        HttpHead head = new HttpHead();
+        input("POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n").readHead(head);
+        head.checkRequestFraming();
+        input("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: Chunked\r\n\r\n").readHead(head);
+        head.checkRequestFraming();
+        input("GET / HTTP/1.1\r\nHost: h\r\n\r\n").readHead(head);
+        head.checkRequestFraming();
+    }
+
+    @Test
+    void rejectsRequestsWithBothTransferEncodingAndContentLength() throws IOException {
+        HttpHead head = new HttpHead();
+        input("POST / HTTP/1.1\r\nContent-Length: 4\r\nTransfer-Encoding: chunked\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+        input("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 0\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+    }
+
+    @Test
+    void rejectsRequestsWithConflictingContentLengths() throws IOException {
+        HttpHead head = new HttpHead();
+        input("POST / HTTP/1.1\r\nContent-Length: 4\r\nContent-Length: 40\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+        input("POST / HTTP/1.1\r\nContent-Length: 4, 40\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+    }
+
+    @Test
+    void rejectsRequestsWithInvalidContentLength() throws IOException {
+        HttpHead head = new HttpHead();
+        input("POST / HTTP/1.1\r\nContent-Length: 12x\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+        input("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+        input("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+    }
+
+    @Test
+    void rejectsRequestsWhoseTransferEncodingIsNotChunkedLast() throws IOException {
+        HttpHead head = new HttpHead();
+        input("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+        input("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n").readHead(head);
+        assertThrows(IOException.class, head::checkRequestFraming);
+    }
+
+    @Test
+    void relaysChunkedBodyWithExtensionsAndTrailers()throws IOException {
+        String body = "4;name=value\r\nWiki\r\nA \r\npedia in c\r\n0\r\nExpires: never\r\n\r\n";
+        HttpInput in = trickling("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, Chunked\r\n\r\n" + body + "NEXT");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        assertTrue(head.isChunked());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(Relay.body(in, head, true, out));
+        assertEquals(body, out.toString(StandardCharsets.ISO_8859_1));
+        assertEquals("NEXT", rest(in));
+    }
+
+    @Test
+    void rejectsBadChunkSizes() throws IOException {
+        HttpInput in = input("zz\r\n");
+        assertThrows(IOException.class, () -> in.relayChunked(new ByteArrayOutputStream()));
+        HttpInput huge = input("1234567890abcdef0\r\n");
+        assertThrows(IOException.class, () -> huge.relayChunked(new ByteArrayOutputStream()));
+        HttpInput cut = input("5\r\nab");
+        assertThrows(EOFException.class, () -> cut.relayChunked(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void bodyWithoutFramingRunsToEndOfStream() throws IOException {
+        HttpInput in = input("HTTP/1.0 200 OK\r\n\r\nall of it");
+        HttpHead head = new HttpHead();
+        assertTrue(in.readHead(head));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertFalse(Relay.body(in, head, true, out));
+        assertEquals("all of it", out.toString(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void streamChunkedRoundTrips() throws IOException {
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        assertEquals(data.length, Relay.streamChunked(new ByteArrayInputStream(data), encoded));
+
+        HttpInput in = new HttpInput(new ByteArrayInputStream(encoded.toByteArray()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        long size;
+        while ((size = in.relayChunkSize(OutputStream.nullOutputStream())) > 0) {
+            in.relay(decoded, size);
+            in.relayLine(OutputStream.nullOutputStream());
+        }
+        assertEquals(0, in.relayLine(OutputStream.nullOutputStream()));
+        assertArrayEquals(data, decoded.toByteArray());
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DomainTrieTest {
+    private static final int ADS = 1;
+    private static final int MAL = 2;
+
+    private static DomainTrie trie() {
+        DomainTrie.Builder builder = new DomainTrie.Builder(new String[]{"ads", "mal"});
+        builder.add("ads.example.com", 0);
+        builder.add("com.evil", 0);
+        builder.add("example.com.evil", 1);
+        builder.add("tracker.net", 0);
+        builder.add("tracker.net", 1);
+        return builder.build();
+    }
+
+    @Test
+    void matchesListedDomainsAndNamesUnderThem() {
+        DomainTrie trie = trie();
+        assertEquals(ADS, trie.match("ads.example.com"));
+        assertEquals(ADS, trie.match("cdn.ads.example.com"));
+        assertEquals(0, trie.match("example.com"));
+        assertEquals(0, trie.match("bads.example.com"));
+        assertEquals(0, trie.match("com"));
+        assertEquals(0, trie.match(""));
+    }
+
+    @Test
+    void ignoresPortTrailingDotAndCase() {
+        DomainTrie trie = trie();
+        assertEquals(ADS, trie.match("ads.example.com:8080"));
+        assertEquals(ADS, trie.match("ads.example.com."));
+        assertEquals(ADS, trie.match("ads.example.com.:443"));
+        assertEquals(ADS, trie.match("Ads.EXAMPLE.Com"));
+        assertEquals(0, trie.match("[::1]:443"));
+    }
+
+    @Test
+    void combinesEveryListAlongThePath() {
+        DomainTrie trie = trie();
+        assertEquals(ADS, trie.match("com.evil"));
+        assertEquals(ADS | MAL, trie.match("example.com.evil"));
+        assertEquals(ADS | MAL, trie.match("x.example.com.evil"));
+        assertEquals(ADS | MAL, trie.match("tracker.net"));
+    }
+
+    @Test
+    void nonAsciiLabelMatchesNoEntry() {
+        DomainTrie trie = trie();
+        assertEquals(0, trie.match("ads.exämple.com"));
+        // The listed suffix still applies below a label that cannot be in any list.
+        assertEquals(ADS, trie.match("bücher.ads.example.com"));
+    }
+
+    @Test
+    void mappedIndexMatchesLikeTheBuiltTrie(@TempDir Path dir) throws IOException {
+        DomainTrie built = trie();
+        Path index = dir.resolve("blocklist.idx");
+        built.save(index, 42);
+
+        DomainTrie mapped = DomainTrie.map(index);
+        assertArrayEquals(new String[]{"ads", "mal"}, mapped.lists());
+        assertEquals(42, mapped.stamp());
+        assertEquals(built.entries(), mapped.entries());
+        assertEquals(built.size(), mapped.size());
+        for (String host : new String[]{"ads.example.com", "x.example.com.evil", "tracker.net:80", "example.org"}) {
+            assertEquals(built.match(host), mapped.match(host), host);
+        }
+    }
+
+    @Test
+    void rejectsForeignOrTruncatedIndex(@TempDir Path dir) throws IOException {
+        Path index = dir.resolve("blocklist.idx");
+        Files.writeString(index, "not an index at all");
+        assertThrows(IOException.class, () -> DomainTrie.map(index));
+
+        trie().save(index, 1);
+        byte[] bytes = Files.readAllBytes(index);
+        Files.write(index, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> DomainTrie.map(index));
+    }
+
+    @Test
+    void readsListLineFormats() {
+        assertEquals("ads.example.com", DomainFilter.entry("ads.example.com"));
+        assertEquals("ads.example.com", DomainFilter.entry("0.0.0.0 ads.example.com # tracker"));
+        assertEquals("ads.example.com", DomainFilter.entry("||Ads.Example.com^"));
+        assertEquals("ads.example.com", DomainFilter.entry("*.ads.example.com."));
+        assertNull(DomainFilter.entry("127.0.0.1 localhost"));
+        assertNull(DomainFilter.entry("! adblock comment"));
+        assertNull(DomainFilter.entry("bad..name"));
+    }
+}
@@ -0,0 +1,188 @@
+package tunnel;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(20)
+class DatagramTransportTest {
+    private static final String SUITE = "TLS_AES_128_GCM_SHA256";
+    private static final Pattern REPORT = Pattern.compile("(\\d+) packets out .*, (\\d+) in, (\\d+) rejected");
+
+    private static final byte[] CLIENT_RANDOM = new byte[32];
+    private static final byte[] SERVER_RANDOM = new byte[32];
+
+    static {
+        Arrays.fill(CLIENT_RANDOM, (byte) 1);
+        Arrays.fill(SERVER_RANDOM, (byte) 2);
+    }
+
+    /**
+     * Packets out, packets in and packets rejected, from the transport's report.
+     */
+    private static long[] counts(DatagramTransport transport) {
+        Matcher m = REPORT.matcher(transport.report());
+        assertTrue(m.find(), transport.report());
+        return new long[]{Long.parseLong(m.group(1)), Long.parseLong(m.group(2)), Long.parseLong(m.group(3))};
+    }
+
+    private static void assertCounts(DatagramTransport transport, long in, long rejected) {
+        long[] counts = counts(transport);
+        assertEquals(in, counts[1], "accepted");
+        assertEquals(rejected, counts[2], "rejected");
+    }
+
+    @Test
+    void replayWindowTakesEachPacketOnce() throws Exception {
+        int total = 1100;
+        try (DatagramSocket capture = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramEndpoint serverEndpoint = DatagramEndpoint.bind(0, 0)) {
+            DatagramTransport client = DatagramEndpoint.connect("127.0.0.1", capture.getLocalPort())
+                    .open(7, CLIENT_RANDOM, SERVER_RANDOM, SUITE, true);
+            DatagramTransport server = serverEndpoint.open(7, CLIENT_RANDOM, SERVER_RANDOM, SUITE, false);
+            SocketAddress from = sink.getLocalSocketAddress();
+
+            // Stream 0 frames are not held back by the send window, so each write is one packet; take it
+            // before the next so none is lost to the socket buffer. A resend takes a new number, past these.
+            capture.setSoTimeout(5_000);
+            byte[][] packets = new byte[total][];
+            byte[] ping = new byte[8];
+            byte[] buf = new byte[2048];
+            for (int i = 0; i < total; i++) {
+                client.write(Frame.PING, (byte) 0, 0, ping, 0, ping.length);
+                while (packets[i] == null) {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    capture.receive(p);
+                    long number = Frame.getLong(buf, 8);
+                    if (number < total) packets[(int) number] = Arrays.copyOf(buf, p.getLength());
+                }
+            }
+            client.close();
+
+            for (int i = 0; i < 10; i++) server.receive(packets[i], packets[i].length, from);
+            assertCounts(server, 10, 0);
+
+            // A duplicate of a recent packet.
+            server.receive(packets[5], packets[5].length, from);
+            assertCounts(server, 10, 1);
+
+            // Out of order within the window: each taken once.
+            server.receive(packets[12], packets[12].length, from);
+            server.receive(packets[11], packets[11].length, from);
+            server.receive(packets[11], packets[11].length, from);
+            assertCounts(server, 12, 2);
+
+            // Run past the window size, skipping 1050: its bit is the one packet 26 set before the window
+            // wrapped around, and has to be cleared as the window passes it.
+            for (int i = 13; i < total; i++) {
+                if (i != 1050) server.receive(packets[i], packets[i].length, from);
+            }
+            assertCounts(server, total - 2, 2);
+
+            // 10 was never seen, but is now further behind than the window reaches.
+            server.receive(packets[10], packets[10].length, from);
+            assertCounts(server, total - 2, 3);
+
+            server.receive(packets[1050], packets[1050].length, from);
+            assertCounts(server, total - 1, 3);
+            server.receive(packets[1050], packets[1050].length, from);
+            assertCounts(server, total - 1, 4);
+
+            // A packet that does not authenticate must not move the window either.
+            byte[] forged = packets[total - 1].clone();
+            Frame.putLong(forged, 8, total + 5_000);
+            server.receive(forged, forged.length, from);
+            assertCounts(server, total - 1, 5);
+            server.receive(packets[1049], packets[1049].length, from);
+            assertCounts(server, total - 1, 6);
+
+            server.close();
+        }
+    }
+
+    @Test
+    void earlyBitsSpareSegmentsThatArrived() throws Exception {
+        int frames = 10;
+        try (DatagramSocket capture = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramEndpoint serverEndpoint = DatagramEndpoint.bind(0, 0)) {
+            DatagramTransport client = DatagramEndpoint.connect("127.0.0.1", capture.getLocalPort())
+                    .open(9, CLIENT_RANDOM, SERVER_RANDOM, SUITE, true);
+            DatagramTransport server = serverEndpoint.open(9, CLIENT_RANDOM, SERVER_RANDOM, SUITE, false);
+            SocketAddress from = sink.getLocalSocketAddress();
+
+            // One initial window of segments, all sent at once.
+            capture.setSoTimeout(5_000);
+            byte[] payload = new byte[100];
+            byte[][] sent = new byte[frames][];
+            SocketAddress clientAddress = null;
+            byte[] buf = new byte[2048];
+            for (int i = 0; i < frames; i++) {
+                Arrays.fill(payload, (byte) i);
+                client.write(Frame.DATA, (byte) 0, 5, payload, 0, payload.length);
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                capture.receive(p);
+                sent[i] = Arrays.copyOf(buf, p.getLength());
+                clientAddress = p.getSocketAddress();
+            }
+            // Old enough that overtaken segments count as lost rather than reordered.
+            Thread.sleep(30);
+
+            // Lose the 4th and 5th. What the server acknowledges goes back to the client, and whatever the
+            // client sends after that goes on to the server, until both have been quiet for a while.
+            for (int i = 0; i < frames; i++) {
+                if (i != 3 && i != 4) server.receive(sent[i], sent[i].length, from);
+            }
+            capture.setSoTimeout(10);
+            sink.setSoTimeout(10);
+            int resent = 0;
+            long quietSince = System.nanoTime();
+            while (System.nanoTime() - quietSince < 1_000_000_000L) {
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    sink.receive(p);
+                    capture.send(new DatagramPacket(buf, p.getLength(), clientAddress));
+                    quietSince = System.nanoTime();
+                } catch (SocketTimeoutException e) {
+                    // No acknowledgement pending
+                }
+                try {
+                    capture.receive(p);
+                    server.receive(Arrays.copyOf(buf, p.getLength()), p.getLength(), from);
+                    resent++;
+                    quietSince = System.nanoTime();
+                } catch (SocketTimeoutException e) {
+                    // Nothing resent
+                }
+            }
+            // Just the two lost segments. Ignoring the early bits, the retransmission timeout would resend
+            // everything behind the gap as well.
+            assertEquals(2, resent, client.report());
+
+            for (int i = 0; i < frames; i++) {
+                Frame frame = server.read();
+                assertEquals(Frame.DATA, frame.type);
+                assertEquals(5, frame.streamId);
+                Arrays.fill(payload, (byte) i);
+                assertArrayEquals(payload, frame.payload, "frame " + i);
+            }
+            assertEquals(0, counts(server)[2], server.report());
+
+            client.close();
+            server.close();
+        }
+    }
+}
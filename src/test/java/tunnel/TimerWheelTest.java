@@ -0,0 +1,124 @@
+package tunnel;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs against the shared wheel with its default 100 ms tick, so the bounds allow a tick or two of slack.
+ */
+class TimerWheelTest {
+    private static final TimerWheel WHEEL = TimerWheel.shared();
+
+    @Test
+    void firesOnceAfterTheDelay() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        long start = System.nanoTime();
+        AtomicLong firedAfter = new AtomicLong();
+        WHEEL.schedule(300, () -> {
+            firedAfter.set(System.nanoTime() - start);
+            runs.incrementAndGet();
+            fired.countDown();
+        });
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(firedAfter.get() >= TimeUnit.MILLISECONDS.toNanos(300), "fired early");
+        Thread.sleep(300);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void cancelledTimeoutNeverFires() throws InterruptedException {
+        AtomicBoolean fired = new AtomicBoolean();
+        TimerWheel.Timeout timeout = WHEEL.schedule(200, () -> fired.set(true));
+        timeout.cancel();
+        // Cancelling twice, or after the wheel has unlinked it, is harmless.
+        timeout.cancel();
+        Thread.sleep(500);
+        assertFalse(fired.get());
+    }
+
+    @Test
+    void cancellingOneOfManyInASlotLeavesTheOthers() throws InterruptedException {
+        // Same deadline, so all share a slot; cancel from the middle of its list.
+        CountDownLatch fired = new CountDownLatch(4);
+        AtomicBoolean cancelledFired = new AtomicBoolean();
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[5];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = i == 2
+                    ? WHEEL.schedule(200, () -> cancelledFired.set(true))
+                    : WHEEL.schedule(200, fired::countDown);
+        }
+        timeouts[2].cancel();
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertFalse(cancelledFired.get());
+    }
+
+    @Test
+    void touchPushesTheDeadlineOut() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = WHEEL.schedule(300, fired::countDown);
+        // Touched well inside the delay for over twice its length, so the wheel has to re-link it each
+        // time it comes due.
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(700);
+        while (System.nanoTime() < until) {
+            timeout.touch();
+            Thread.sleep(50);
+        }
+        assertEquals(1, fired.getCount(), "fired although touched");
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void startsOverWhileTheConditionDoesNotApply() throws InterruptedException {
+        AtomicBoolean applies = new AtomicBoolean(false);
+        CountDownLatch fired = new CountDownLatch(1);
+        WHEEL.schedule(150, applies::get, fired::countDown);
+        assertFalse(fired.await(600, TimeUnit.MILLISECONDS));
+        applies.set(true);
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void touchingStreamKeepsAnIdleDeadlineAlive() throws Exception {
+        TimerWheel.Timeout.NONE.touch();
+        TimerWheel.Timeout.NONE.cancel();
+        InputStream in = new ByteArrayInputStream(new byte[]{1, 2, 3});
+        assertSame(in, TimerWheel.Timeout.NONE.touching(in));
+
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout idle = WHEEL.schedule(300, fired::countDown);
+        InputStream slow = idle.touching(new InputStream() {
+            private int left = 8;
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return left-- > 0 ? 0 : -1;
+            }
+        });
+        // Eight reads 100 ms apart: well past the delay, but never idle that long.
+        while (slow.read() != -1) {
+            assertEquals(1, fired.getCount());
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+    }
+}